@@ -0,0 +1,473 @@
+package trabe;
+
+import trabe.lw14.CipherText;
+import trabe.lw14.Lw14PrivateKeyComponent;
+import trabe.lw14.policy.Lw14PolicyEvaluator;
+import trabe.policyparser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index over many encrypted objects which answers which of them a private key
+ * can decrypt without touching the ciphertexts.
+ *
+ * <p>Only the policy header of every object is kept (see
+ * {@link Lw14PolicyEvaluator#writeToStream(DataOutputStream)}). Objects with
+ * the same policy share a single entry which is identified by the SHA-256
+ * fingerprint of the header. Every distinct policy is evaluated at most once
+ * per attribute set; the results are kept in a size-bounded LRU cache so that
+ * repeated queries with the same key only look up bits. A policy is dropped
+ * together with its last object and its id is reused by the next new policy,
+ * so the memory of the index is bounded by the live objects and policies.</p>
+ *
+ * <p>The index can be persisted with {@link #writeToFile(File)} and loaded with
+ * {@link #readFromFile(File, AbePublicKey)}, both of which work on memory-mapped
+ * files. All methods are synchronized, so a single instance can be shared
+ * between threads.</p>
+ */
+public class AbeAccessIndex {
+    private static final int MAGIC = 0x41424958; // "ABIX"
+    private static final int SERIALIZE_VERSION = 1;
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+    private static final String OBJECT_ID_CHARSET = "UTF-8";
+
+    public static final int DEFAULT_CACHED_ATTRIBUTE_SETS = 64;
+
+    private final AbePublicKey publicKey;
+
+    /** serialized policy header per policy id (null for a free id) **/
+    private final List<byte[]> policyHeaders = new ArrayList<byte[]>();
+    private final List<Lw14PolicyEvaluator> evaluators = new ArrayList<Lw14PolicyEvaluator>();
+    private final List<Fingerprint> fingerprints = new ArrayList<Fingerprint>();
+    private final Map<Fingerprint, Integer> policyIds = new HashMap<Fingerprint, Integer>();
+    /** number of objects per policy id **/
+    private final List<Integer> policyUsage = new ArrayList<Integer>();
+    /** ids of dropped policies which can be reused **/
+    private final BitSet freePolicyIds = new BitSet();
+
+    /** policy id per object in insertion order **/
+    private final Map<String, Integer> objectPolicies = new LinkedHashMap<String, Integer>();
+
+    private final ResultCache results;
+
+    private long evaluations = 0;
+
+    /**
+     * @param publicKey    Public key of the indexed ciphertexts
+     */
+    public AbeAccessIndex(AbePublicKey publicKey) {
+        this(publicKey, DEFAULT_CACHED_ATTRIBUTE_SETS);
+    }
+
+    /**
+     * @param publicKey              Public key of the indexed ciphertexts
+     * @param maxCachedAttributeSets Maximum number of attribute sets (keys)
+     *                               for which the policy results are cached
+     */
+    public AbeAccessIndex(AbePublicKey publicKey, int maxCachedAttributeSets) {
+        if (maxCachedAttributeSets < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.publicKey = publicKey;
+        this.results = new ResultCache(maxCachedAttributeSets);
+    }
+
+    public AbePublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * Adds or replaces an object with the policy of the ciphertext.
+     * @param objectId    Identifier of the encrypted object
+     * @param cipher      Ciphertext of the object (has to use a policy tree)
+     */
+    public void add(String objectId, CipherText cipher) {
+        if (cipher.accessTree == null) {
+            throw new IllegalArgumentException("Only ciphertexts with a policy tree can be indexed");
+        }
+        add(objectId, new Lw14PolicyEvaluator(cipher.accessTree, publicKey));
+    }
+
+    /**
+     * Adds or replaces an object by reading the policy header of a serialized
+     * ciphertext (e.g. an encrypted file). The rest of the stream is not read.
+     * @param objectId    Identifier of the encrypted object
+     * @param input       Stream positioned at the start of the encrypted object
+     * @throws IOException Stream couldn't be read
+     * @throws ParseException The policy of an older ciphertext couldn't be parsed
+     */
+    public void add(String objectId, InputStream input) throws IOException, ParseException {
+        add(objectId, CipherText.readPolicyEvaluator(new AbeInputStream(input, publicKey), publicKey));
+    }
+
+    /**
+     * Adds or replaces an object with the given policy.
+     * @param objectId     Identifier of the encrypted object
+     * @param evaluator    Policy of the object (has to contain the attribute hashes)
+     */
+    public synchronized void add(String objectId, Lw14PolicyEvaluator evaluator) {
+        byte[] header = serialize(evaluator);
+        Fingerprint fingerprint = new Fingerprint(header);
+        Integer policyId = policyIds.get(fingerprint);
+        if (policyId == null) {
+            policyId = addPolicy(fingerprint, header, evaluator);
+        }
+        // count the new object first, so replacing an object with the same policy keeps the policy
+        policyUsage.set(policyId, policyUsage.get(policyId) + 1);
+        remove(objectId);
+        objectPolicies.put(objectId, policyId);
+    }
+
+    private int addPolicy(Fingerprint fingerprint, byte[] header, Lw14PolicyEvaluator evaluator) {
+        int policyId = freePolicyIds.nextSetBit(0);
+        if (policyId < 0) {
+            policyId = policyHeaders.size();
+            policyHeaders.add(header);
+            evaluators.add(evaluator);
+            fingerprints.add(fingerprint);
+            policyUsage.add(0);
+        } else {
+            freePolicyIds.clear(policyId);
+            policyHeaders.set(policyId, header);
+            evaluators.set(policyId, evaluator);
+            fingerprints.set(policyId, fingerprint);
+            // the cached results belong to the dropped policy
+            for (CachedResult cached : results.values()) {
+                cached.evaluated.clear(policyId);
+                cached.satisfied.clear(policyId);
+            }
+        }
+        policyIds.put(fingerprint, policyId);
+        return policyId;
+    }
+
+    private void dropPolicy(int policyId) {
+        policyIds.remove(fingerprints.get(policyId));
+        policyHeaders.set(policyId, null);
+        evaluators.set(policyId, null);
+        fingerprints.set(policyId, null);
+        freePolicyIds.set(policyId);
+    }
+
+    /**
+     * @param objectId    Identifier of the encrypted object
+     * @return The object was indexed
+     */
+    public synchronized boolean remove(String objectId) {
+        Integer policyId = objectPolicies.remove(objectId);
+        if (policyId == null) {
+            return false;
+        }
+        int usage = policyUsage.get(policyId) - 1;
+        policyUsage.set(policyId, usage);
+        if (usage == 0) {
+            dropPolicy(policyId);
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(String objectId) {
+        return objectPolicies.containsKey(objectId);
+    }
+
+    /**
+     * @return Number of indexed objects
+     */
+    public synchronized int size() {
+        return objectPolicies.size();
+    }
+
+    /**
+     * @return Number of distinct policies of the indexed objects
+     */
+    public synchronized int getPolicyCount() {
+        return policyIds.size();
+    }
+
+    /**
+     * @return Number of policy evaluations so far (cache misses)
+     */
+    public synchronized long getEvaluationCount() {
+        return evaluations;
+    }
+
+    /**
+     * Checks a single object.
+     * @param privateKey    Private key
+     * @param objectId      Identifier of the encrypted object
+     * @return The private key satisfies the policy of the object
+     * @throws IllegalArgumentException if the object is not indexed
+     */
+    public synchronized boolean canDecrypt(AbePrivateKey privateKey, String objectId) {
+        Integer policyId = objectPolicies.get(objectId);
+        if (policyId == null) {
+            throw new IllegalArgumentException("Unknown object: " + objectId);
+        }
+        return satisfiedPolicies(privateKey).get(policyId);
+    }
+
+    /**
+     * @param privateKey    Private key
+     * @return All the indexed objects (in insertion order) that the private key can decrypt
+     */
+    public synchronized List<String> findDecryptable(AbePrivateKey privateKey) {
+        BitSet satisfied = satisfiedPolicies(privateKey);
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : objectPolicies.entrySet()) {
+            if (satisfied.get(entry.getValue())) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Bulk variant of {@link #canDecrypt(AbePrivateKey, String)}. Objects
+     * which are not indexed are not returned.
+     * @param privateKey    Private key
+     * @param objectIds     Identifiers of the objects to check
+     * @return The given objects (in the given order) that the private key can decrypt
+     */
+    public synchronized List<String> findDecryptable(AbePrivateKey privateKey, Collection<String> objectIds) {
+        BitSet satisfied = satisfiedPolicies(privateKey);
+        List<String> result = new ArrayList<String>();
+        for (String objectId : objectIds) {
+            Integer policyId = objectPolicies.get(objectId);
+            if (policyId != null && satisfied.get(policyId)) {
+                result.add(objectId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops all cached policy results.
+     */
+    public synchronized void clearCache() {
+        results.clear();
+    }
+
+    /**
+     * Returns the ids of all the policies that the attributes of the key
+     * satisfy. Policies which were added after the last query with the same
+     * attribute set are evaluated now. Bits of free ids are never set.
+     */
+    private BitSet satisfiedPolicies(AbePrivateKey privateKey) {
+        Set<BigInteger> attributes = new HashSet<BigInteger>();
+        for (Lw14PrivateKeyComponent component : privateKey.getComponents()) {
+            attributes.add(component.hashedAttributeZr.toBigInteger());
+        }
+        CachedResult cached = results.get(attributes);
+        if (cached == null) {
+            cached = new CachedResult();
+            results.put(attributes, cached);
+        }
+        for (int policyId = cached.evaluated.nextClearBit(0); policyId < evaluators.size();
+             policyId = cached.evaluated.nextClearBit(policyId + 1)) {
+            Lw14PolicyEvaluator evaluator = evaluators.get(policyId);
+            if (evaluator == null) {
+                continue; // free id, cleared again when it is reused
+            }
+            if (evaluator.satisfies(privateKey)) {
+                cached.satisfied.set(policyId);
+            }
+            cached.evaluated.set(policyId);
+            evaluations++;
+        }
+        return cached.satisfied;
+    }
+
+    private static byte[] serialize(Lw14PolicyEvaluator evaluator) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try {
+            evaluator.writeToStream(new DataOutputStream(header));
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // cannot happen with an in-memory stream
+        }
+        return header.toByteArray();
+    }
+
+    /**
+     * Writes the index to a file through a memory mapping. The policy ids are
+     * compacted and the cached results are not persisted.
+     * @param file    Destination, will be overwritten
+     * @throws IOException File couldn't be written
+     */
+    public synchronized void writeToFile(File file) throws IOException {
+        // compact the policy ids
+        int[] newIds = new int[policyHeaders.size()];
+        List<byte[]> usedHeaders = new ArrayList<byte[]>();
+        long size = 4 + 4 + 4 + 4;
+        for (int i = 0; i < newIds.length; i++) {
+            if (policyUsage.get(i) > 0) {
+                newIds[i] = usedHeaders.size();
+                usedHeaders.add(policyHeaders.get(i));
+                size += 4 + policyHeaders.get(i).length;
+            } else {
+                newIds[i] = -1;
+            }
+        }
+        List<byte[]> encodedIds = new ArrayList<byte[]>(objectPolicies.size());
+        for (String objectId : objectPolicies.keySet()) {
+            byte[] encoded = objectId.getBytes(OBJECT_ID_CHARSET);
+            encodedIds.add(encoded);
+            size += 4 + encoded.length + 4;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Index is too large for a single mapping");
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            buffer.putInt(SERIALIZE_VERSION);
+            buffer.putInt(usedHeaders.size());
+            for (byte[] header : usedHeaders) {
+                buffer.putInt(header.length);
+                buffer.put(header);
+            }
+            buffer.putInt(objectPolicies.size());
+            int i = 0;
+            for (Integer policyId : objectPolicies.values()) {
+                byte[] encoded = encodedIds.get(i++);
+                buffer.putInt(encoded.length);
+                buffer.put(encoded);
+                buffer.putInt(newIds[policyId]);
+            }
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads an index that was written with {@link #writeToFile(File)} through
+     * a read-only memory mapping.
+     * @param file         Index file
+     * @param publicKey    Public key of the indexed ciphertexts
+     * @return Index
+     * @throws IOException File couldn't be read or is malformed
+     */
+    public static AbeAccessIndex readFromFile(File file, AbePublicKey publicKey) throws IOException {
+        AbeAccessIndex index = new AbeAccessIndex(publicKey);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not an access index");
+            }
+            int version = buffer.getInt();
+            if (version != SERIALIZE_VERSION) {
+                throw new IOException("Unsupported access index version: " + version);
+            }
+            int policies = buffer.getInt();
+            for (int i = 0; i < policies; i++) {
+                byte[] header = new byte[checkedLength(buffer.getInt(), buffer.remaining())];
+                buffer.get(header);
+                Lw14PolicyEvaluator evaluator = Lw14PolicyEvaluator.readFromStream(
+                        new DataInputStream(new ByteArrayInputStream(header)), publicKey);
+                index.addPolicy(new Fingerprint(header), header, evaluator);
+            }
+            int objects = buffer.getInt();
+            for (int i = 0; i < objects; i++) {
+                byte[] encoded = new byte[checkedLength(buffer.getInt(), buffer.remaining())];
+                buffer.get(encoded);
+                int policyId = buffer.getInt();
+                if (policyId < 0 || policyId >= policies) {
+                    throw new IOException("Invalid policy id: " + policyId);
+                }
+                index.objectPolicies.put(new String(encoded, OBJECT_ID_CHARSET), policyId);
+                index.policyUsage.set(policyId, index.policyUsage.get(policyId) + 1);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated access index");
+        } finally {
+            raf.close();
+        }
+        return index;
+    }
+
+    private static int checkedLength(int length, int remaining) throws IOException {
+        if (length < 0 || length > remaining) {
+            throw new IOException("Invalid length in access index: " + length);
+        }
+        return length;
+    }
+
+    private static class CachedResult {
+        final BitSet satisfied = new BitSet();
+        final BitSet evaluated = new BitSet();
+    }
+
+    private static class ResultCache extends LinkedHashMap<Set<BigInteger>, CachedResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        ResultCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Set<BigInteger>, CachedResult> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private static class Fingerprint {
+        private static final ThreadLocal<MessageDigest> fingerprinters = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+        private final byte[] digest;
+        private final int hashCode;
+
+        Fingerprint(byte[] header) {
+            digest = fingerprinters.get().digest(header); // digest resets the hasher
+            hashCode = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Fingerprint && Arrays.equals(digest, ((Fingerprint) obj).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
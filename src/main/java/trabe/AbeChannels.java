@@ -0,0 +1,154 @@
+package trabe;
+
+import it.unisa.dia.gas.jpbc.Element;
+import trabe.aes.AesEncryption;
+import trabe.lw14.CipherText;
+import trabe.lw14.RevocationContext;
+
+import javax.crypto.Cipher;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * File to file encryption and decryption over {@link FileChannel}s. The data
+ * is moved through the cipher with {@link Cipher#update(ByteBuffer, ByteBuffer)}
+ * between two direct buffers, so no byte arrays are allocated or copied per
+ * chunk. The buffers come from a small pool: calls beyond its size allocate
+ * their own pair, which is left to the garbage collector if the pool is
+ * already full again. The format is the same as the one of
+ * {@link AbeEncrypted#writeEncryptedFile(java.io.OutputStream, AbePublicKey)}.
+ */
+public class AbeChannels {
+    /** Java 6 can't query the page size, 4 KiB is the common one **/
+    private static final int PAGE_SIZE = 4096;
+    private static final int BUFFER_SIZE = 64 * PAGE_SIZE;
+    /** the header is usually a few KiB **/
+    private static final int HEADER_BUFFER_SIZE = 2 * PAGE_SIZE;
+
+    /** bounds the direct memory that is kept between calls (about 0.5 MiB per pair) **/
+    private static final int POOL_SIZE = 4;
+
+    /** pairs of input and output buffer, the output has space for the padding block **/
+    private static final BlockingQueue<ByteBuffer[]> buffers = new ArrayBlockingQueue<ByteBuffer[]>(POOL_SIZE);
+
+    private AbeChannels() {}
+
+    /**
+     * Encrypts from the current position of the input to its end and writes
+     * at the current position of the output.
+     * @param publicKey     Public key
+     * @param policy        Policy as a boolean formula
+     * @param revocation    Revoked users (may be null)
+     * @param userIndex     Index of the first user that is eligible for the encrypted data
+     * @param input         Plaintext
+     * @param output        Ciphertext
+     * @throws AbeEncryptionException Encryption failed
+     * @throws IOException Channels couldn't be read or written
+     */
+    public static void encrypt(AbePublicKey publicKey, String policy, RevocationContext revocation, int userIndex,
+                               FileChannel input, FileChannel output) throws AbeEncryptionException, IOException {
+        if (revocation == null) {
+            revocation = new RevocationContext(publicKey, new int[0]);
+        }
+        Pair<CipherText, Element> ctak = AbePairingExecutor.encrypt(publicKey, policy, revocation, userIndex, null);
+        if (ctak.getFirst() == null || ctak.getSecond() == null) {
+            throw new AbeEncryptionException("ABE Encryption failed");
+        }
+        byte[] iv = new byte[16];
+        new SecureRandom().nextBytes(iv);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        AbeOutputStream stream = new AbeOutputStream(header, publicKey);
+        ctak.getFirst().writeToStream(stream);
+        stream.writeInt(iv.length);
+        stream.write(iv);
+        stream.flush();
+        writeFully(output, ByteBuffer.wrap(header.toByteArray()));
+
+        Cipher cipher = AesEncryption.encrypt(ctak.getSecond().toBytes(), null, iv);
+        try {
+            transfer(cipher, input, output);
+        } catch (GeneralSecurityException e) {
+            throw new AbeEncryptionException("AES encryption failed", e);
+        }
+    }
+
+    /**
+     * Decrypts from the current position of the input to its end and writes
+     * at the current position of the output.
+     * @param privateKey    Private key
+     * @param input         Ciphertext
+     * @param output        Plaintext
+     * @throws AbeDecryptionException Decryption failed
+     * @throws IOException Channels couldn't be read or written
+     */
+    public static void decrypt(AbePrivateKey privateKey, FileChannel input, FileChannel output)
+            throws AbeDecryptionException, IOException {
+        long start = input.position();
+        // the buffered stream reads ahead, so the header length is counted and the channel repositioned
+        CountingInputStream counter = new CountingInputStream(
+                new BufferedInputStream(Channels.newInputStream(input), HEADER_BUFFER_SIZE));
+        AbeInputStream stream = new AbeInputStream(counter, privateKey.getPublicKey());
+        CipherText cipherText = CipherText.readFromStream(stream);
+        byte[] iv = new byte[stream.readInt()];
+        stream.readFully(iv);
+        input.position(start + counter.count);
+
+        Element secret = AbePairingExecutor.decrypt(privateKey, cipherText);
+        if (secret == null) {
+            throw new AbeDecryptionException("Couldn't recover the secret");
+        }
+        Cipher cipher = AesEncryption.decrypt(secret.toBytes(), null, iv);
+        try {
+            transfer(cipher, input, output);
+        } catch (GeneralSecurityException e) {
+            throw new AbeDecryptionException("AES decryption failed", e);
+        }
+    }
+
+    private static void transfer(Cipher cipher, FileChannel input, FileChannel output)
+            throws IOException, GeneralSecurityException {
+        ByteBuffer[] pair = buffers.poll();
+        if (pair == null) {
+            pair = new ByteBuffer[] {
+                    ByteBuffer.allocateDirect(BUFFER_SIZE),
+                    ByteBuffer.allocateDirect(BUFFER_SIZE + PAGE_SIZE)
+            };
+        }
+        try {
+            ByteBuffer src = pair[0];
+            ByteBuffer dst = pair[1];
+            src.clear();
+            while (input.read(src) != -1) {
+                src.flip();
+                dst.clear();
+                cipher.update(src, dst);
+                dst.flip();
+                writeFully(output, dst);
+                src.clear();
+            }
+            src.clear();
+            src.flip();
+            dst.clear();
+            cipher.doFinal(src, dst);
+            dst.flip();
+            writeFully(output, dst);
+        } finally {
+            buffers.offer(pair); // dropped if the pool is full
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
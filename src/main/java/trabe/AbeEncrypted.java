@@ -3,6 +3,9 @@ package trabe;
 import it.unisa.dia.gas.jpbc.Element;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import trabe.aes.AesDecryptionException;
 import trabe.aes.AesEncryption;
@@ -12,23 +15,65 @@ import trabe.lw14.Lw14;
 /**
  * The AbeEncrypted object can only be used once per method, because it is based
  * on streams and the streams cannot be read anew.
+ *
+ * <p>Objects backed by a seekable source can be decrypted, serialized and
+ * forwarded any number of times, also from several threads. Those are created
+ * by {@link Cpabe#encrypt(AbePublicKey, String, byte[])} and by the
+ * <code>read</code> methods for byte arrays, {@link ByteBuffer}s (e.g. a
+ * {@link MappedByteBuffer}) and {@link FileChannel}s. The header is parsed
+ * once and the AES ciphertext is read in place, see {@link #isSeekable()}.</p>
  */
 public class AbeEncrypted {
+    /** read-ahead while the header is parsed from a seekable source **/
+    private static final int HEADER_BUFFER_SIZE = 8192;
+
     private final CipherText cipher;
 	private final byte[] iv;
 	private final InputStream dataStream; // the encrypted data
+	private final AbePayload payload; // the encrypted data of a seekable source
+
+	/** serialized ciphertext and IV for headerPublicKey **/
+	private byte[] header = null;
+	private AbePublicKey headerPublicKey = null;
 
 	AbeEncrypted(byte[] iv, CipherText cipher, InputStream dataStream) {
 		this.iv = iv;
 		this.cipher = cipher;
 		this.dataStream = dataStream;
+		this.payload = null;
+	}
+
+	AbeEncrypted(byte[] iv, CipherText cipher, AbePayload payload) {
+		this.iv = iv;
+		this.cipher = cipher;
+		this.dataStream = null;
+		this.payload = payload;
 	}
 
 	public CipherText getCipher() {
 		return cipher;
 	}
 
+	/**
+	 * @return Copy of the IV of the AES ciphertext
+	 */
+	public byte[] getIv() {
+		return iv.clone();
+	}
+
+	/**
+	 * @return The AES ciphertext is backed by a seekable source and this object can be used repeatedly
+	 */
+	public boolean isSeekable() {
+		return payload != null;
+	}
+
 	public void writeEncryptedFile(OutputStream out, AbePublicKey publicKey) throws IOException {
+		if (payload != null) {
+			out.write(getHeader(publicKey));
+			payload.writeTo(out);
+			return;
+		}
 		AbeOutputStream abeOut = new AbeOutputStream(out, publicKey);
 		cipher.writeToStream(abeOut);
 		abeOut.writeInt(iv.length);
@@ -40,10 +85,97 @@ public class AbeEncrypted {
 		}
 	}
 
+	/**
+	 * Writes only the AES ciphertext, without the ABE ciphertext and the IV.
+	 * Stream backed objects are used up afterwards.
+	 * @param out    Output stream
+	 * @throws IOException The ciphertext couldn't be read or written
+	 */
+	public void writeEncryptedPayload(OutputStream out) throws IOException {
+		if (payload != null) {
+			payload.writeTo(out);
+			return;
+		}
+		byte[] buffer = new byte[1024];
+		int len;
+		while ((len = dataStream.read(buffer)) != -1) {
+			out.write(buffer, 0, len);
+		}
+	}
+
+	/**
+	 * Assembles an object from parts that were stored separately, e.g. when
+	 * the ABE ciphertext is shared between several objects. The AES
+	 * ciphertext between the position and the limit of the buffer is read in
+	 * place.
+	 * @param cipher    ABE ciphertext
+	 * @param iv        IV of the AES ciphertext
+	 * @param data      AES ciphertext
+	 * @return Seekable object
+	 */
+	public static AbeEncrypted create(CipherText cipher, byte[] iv, ByteBuffer data) {
+		return new AbeEncrypted(iv.clone(), cipher, AbePayload.of(data));
+	}
+
 	public static AbeEncrypted readFromFile(AbePublicKey publicKey, File file) throws IOException {
 		return AbeEncrypted.readFromStream(publicKey, new BufferedInputStream(new FileInputStream(file)));
 	}
 
+	/**
+	 * Number of bytes that {@link #writeEncryptedData(AbePublicKey, byte[], int)} writes.
+	 * Only available for seekable objects.
+	 * @param publicKey    Public key
+	 * @return Length of the serialized object
+	 * @throws IOException The header couldn't be serialized
+	 */
+	public long getEncryptedLength(AbePublicKey publicKey) throws IOException {
+		checkSeekable();
+		return getHeader(publicKey).length + payload.length();
+	}
+
+	/**
+	 * Serializes into a buffer of the caller in the format of
+	 * {@link #writeEncryptedFile(OutputStream, AbePublicKey)}. The header is
+	 * serialized once per public key and copied on every following call.
+	 * Only available for seekable objects.
+	 * @param publicKey    Public key
+	 * @param buffer       Target buffer
+	 * @param offset       Offset in the buffer
+	 * @return Number of bytes written
+	 * @throws IOException The header couldn't be serialized, the source couldn't be read or the buffer is too small
+	 */
+	public int writeEncryptedData(AbePublicKey publicKey, byte[] buffer, int offset) throws IOException {
+		checkSeekable();
+		byte[] serializedHeader = getHeader(publicKey);
+		long length = serializedHeader.length + payload.length();
+		if (buffer.length - offset < length) {
+			throw new IOException("Buffer too small, " + length + " bytes required");
+		}
+		System.arraycopy(serializedHeader, 0, buffer, offset, serializedHeader.length);
+		payload.readFully(0, buffer, offset + serializedHeader.length, (int) payload.length());
+		return (int) length;
+	}
+
+	private void checkSeekable() {
+		if (payload == null) {
+			throw new IllegalStateException("The ciphertext is backed by a stream");
+		}
+	}
+
+	private synchronized byte[] getHeader(AbePublicKey publicKey) throws IOException {
+		if (header == null || headerPublicKey != publicKey) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			AbeOutputStream abeOut = new AbeOutputStream(baos, publicKey);
+			cipher.writeToStream(abeOut);
+			abeOut.writeInt(iv.length);
+			abeOut.write(iv);
+			abeOut.flush();
+			header = baos.toByteArray();
+			headerPublicKey = publicKey;
+		}
+		return header;
+	}
+
 	public static AbeEncrypted readFromStream(AbePublicKey publicKey, InputStream input) throws IOException {
 		AbeInputStream stream = new AbeInputStream(input, publicKey);
 		CipherText cipher = CipherText.readFromStream(stream);
@@ -76,12 +208,34 @@ public class AbeEncrypted {
      */
 	public void writeDecryptedData(AbePrivateKey privateKey, byte[] lbeKey, OutputStream output)
 			throws AbeDecryptionException, IOException {
-		Element secret = Lw14.decrypt(privateKey, cipher);
+		writeDecryptedData(AbePairingExecutor.decrypt(privateKey, cipher), lbeKey, output);
+    }
+
+    /**
+     * Writes the plaintext with the secret that was already recovered from
+     * the ABE ciphertext, so the pairing computations and the stream
+     * decryption can run on different threads.
+     *
+     * @param secret        Secret that was recovered with {@link Lw14#decrypt(AbePrivateKey, CipherText)}
+     * @param lbeKey        Location-based key
+     * @param output        Output stream
+     * @throws AbeDecryptionException Decryption failed
+     * @throws IOException Problem with reading the ciphertext or writing the plaintext
+     */
+    void writeDecryptedData(Element secret, byte[] lbeKey, OutputStream output)
+            throws AbeDecryptionException, IOException {
         if (secret == null) {
             throw new AbeDecryptionException("Couldn't recover the secret");
         }
 		byte[] cpabeKey = secret.toBytes();
         try {
+            if (payload instanceof AbePayload.ArrayPayload) {
+                output.write(decryptArray(cpabeKey, lbeKey));
+                return;
+            } else if (payload != null) {
+                AesEncryption.decrypt(cpabeKey, lbeKey, iv, payload.openStream(), output);
+                return;
+            }
             AesEncryption.decrypt(cpabeKey, lbeKey, iv, dataStream, output);
         } catch (AesDecryptionException e) {
             throw new AbeDecryptionException("AES ciphertext couldn't be decrypted", e);
@@ -89,7 +243,43 @@ public class AbeEncrypted {
         dataStream.close();
     }
 
+    /**
+     * Decrypts a ciphertext that is backed by a byte array with a single AES
+     * call into an array of exactly the plaintext length. Other objects are
+     * decrypted through a buffer.
+     *
+     * @param privateKey    Private key
+     * @param lbeKey        Location-based key (may be null)
+     * @return Plaintext
+     * @throws AbeDecryptionException Decryption failed
+     * @throws IOException Problem with reading the ciphertext
+     */
+    public byte[] decrypt(AbePrivateKey privateKey, byte[] lbeKey) throws AbeDecryptionException, IOException {
+        if (!(payload instanceof AbePayload.ArrayPayload)) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            writeDecryptedData(privateKey, lbeKey, baos);
+            return baos.toByteArray();
+        }
+        Element secret = AbePairingExecutor.decrypt(privateKey, cipher);
+        if (secret == null) {
+            throw new AbeDecryptionException("Couldn't recover the secret");
+        }
+        try {
+            return decryptArray(secret.toBytes(), lbeKey);
+        } catch (AesDecryptionException e) {
+            throw new AbeDecryptionException("AES ciphertext couldn't be decrypted", e);
+        }
+    }
+
+    private byte[] decryptArray(byte[] cpabeKey, byte[] lbeKey) throws IOException, AesDecryptionException {
+        AbePayload.ArrayPayload array = (AbePayload.ArrayPayload) payload;
+        return AesEncryption.decrypt(cpabeKey, lbeKey, iv, array.data, array.offset, array.length);
+    }
+
     public byte[] writeDecryptedData(AbePrivateKey privateKey) throws IOException, AbeDecryptionException {
+        if (payload != null) {
+            return decrypt(privateKey, null);
+        }
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         AbeOutputStream stream = new AbeOutputStream(baos, privateKey.getPublicKey());
         writeDecryptedData(privateKey, stream);
@@ -97,15 +287,69 @@ public class AbeEncrypted {
     }
 
     public byte[] writeEncryptedData(AbePublicKey pub) throws IOException, AbeDecryptionException {
+        if (payload != null) {
+            long length = getEncryptedLength(pub);
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Too large for an array: " + length + " bytes");
+            }
+            byte[] buffer = new byte[(int) length];
+            writeEncryptedData(pub, buffer, 0);
+            return buffer;
+        }
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         AbeOutputStream stream = new AbeOutputStream(baos, pub);
         writeEncryptedFile(stream, pub);
         return baos.toByteArray();
     }
 
+    /**
+     * Parses the header, the AES ciphertext is used in place, so the array
+     * must not be changed while the returned object is in use. The object
+     * can be used repeatedly.
+     */
     public static AbeEncrypted read(byte[] data, AbePublicKey pub) throws IOException {
-        AbeInputStream stream = new AbeInputStream(new ByteArrayInputStream(data), pub);
-        return readFromStream(pub, stream);
+        return read(data, 0, data.length, pub);
+    }
+
+    public static AbeEncrypted read(byte[] data, int offset, int length, AbePublicKey pub) throws IOException {
+        return read(AbePayload.of(data, offset, length), pub);
+    }
+
+    /**
+     * Parses the header from the bytes between the position and the limit of
+     * the buffer, e.g. a {@link MappedByteBuffer}. The AES ciphertext is read
+     * in place and the position of the buffer isn't changed.
+     */
+    public static AbeEncrypted read(ByteBuffer buffer, AbePublicKey pub) throws IOException {
+        return read(AbePayload.of(buffer), pub);
+    }
+
+    /**
+     * Parses the header from the position to the end of the channel. The AES
+     * ciphertext is read with positional reads, so the position of the
+     * channel isn't changed and the channel can be shared. It has to stay
+     * open while the returned object is in use.
+     */
+    public static AbeEncrypted read(FileChannel channel, long position, AbePublicKey pub) throws IOException {
+        return read(AbePayload.of(channel, position, channel.size() - position), pub);
+    }
+
+    private static AbeEncrypted read(AbePayload source, AbePublicKey pub) throws IOException {
+        // the buffered stream reads ahead, so the header length is counted
+        CountingInputStream counter = new CountingInputStream(
+                new BufferedInputStream(source.openStream(), HEADER_BUFFER_SIZE));
+        AbeInputStream stream = new AbeInputStream(counter, pub);
+        CipherText cipher = CipherText.readFromStream(stream);
+        byte[] iv = new byte[stream.readInt()];
+        stream.readFully(iv);
+
+        AbeEncrypted encrypted = new AbeEncrypted(iv, cipher, source.slice(counter.count));
+        // keep the serialized header, so forwarding doesn't serialize it again
+        byte[] header = new byte[(int) counter.count];
+        source.readFully(0, header, 0, header.length);
+        encrypted.header = header;
+        encrypted.headerPublicKey = pub;
+        return encrypted;
     }
 
 	public static AbeEncrypted createDuringEncryption(byte[] iv, CipherText cipher, InputStream input, Element plainSecret) throws AbeEncryptionException, IOException {
@@ -115,5 +359,10 @@ public class AbeEncrypted {
 	public static AbeEncrypted createDuringEncryption(byte[] iv, byte[] lbeKey, CipherText cipher, InputStream input, Element plainSecret) throws AbeEncryptionException, IOException {
 		return new AbeEncrypted(iv, cipher, AesEncryption.encrypt(plainSecret.toBytes(), lbeKey, iv, input));
 	}
+
+	public static AbeEncrypted createDuringEncryption(byte[] iv, byte[] lbeKey, CipherText cipher, byte[] input, Element plainSecret) throws AbeEncryptionException, IOException {
+		byte[] encrypted = AesEncryption.encrypt(plainSecret.toBytes(), lbeKey, iv, input);
+		return new AbeEncrypted(iv, cipher, AbePayload.of(encrypted, 0, encrypted.length));
+	}
 	
 }
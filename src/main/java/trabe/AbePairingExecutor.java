@@ -0,0 +1,207 @@
+package trabe;
+
+import it.unisa.dia.gas.jpbc.Element;
+import trabe.lw14.CipherText;
+import trabe.lw14.Lw14;
+import trabe.lw14.Lw14EncryptionPreprocessing;
+import trabe.lw14.RevocationContext;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the pairing computations of encryption and decryption on a dedicated
+ * pool of platform threads if {@link AbeSettings#PAIRING_THREADS} is
+ * positive.
+ *
+ * <p>The native PBC pairing calls block the calling thread for their whole
+ * duration. A virtual thread which does this pins its carrier thread, so a
+ * few concurrent decryptions can stall all the other virtual threads of a
+ * server. In this mode the calling thread only waits on a {@link Future},
+ * which releases the carrier of a virtual thread, and the number of
+ * concurrent native calls is bounded by the size of the pool.</p>
+ *
+ * <p>With the default of 0 threads everything runs on the calling thread
+ * as before.</p>
+ */
+public class AbePairingExecutor {
+    private static volatile PairingPool pool = null;
+
+    private AbePairingExecutor() {}
+
+    /**
+     * Same as {@link Lw14#decrypt(AbePrivateKey, CipherText)}, but runs on the
+     * pairing pool if it is enabled.
+     * @param privateKey    Private key
+     * @param cipher        ABE ciphertext
+     * @return Recovered secret
+     * @throws AbeDecryptionException Decryption failed
+     */
+    public static Element decrypt(final AbePrivateKey privateKey, final CipherText cipher) throws AbeDecryptionException {
+        Future<Element> future = submit(new Callable<Element>() {
+            @Override
+            public Element call() throws AbeDecryptionException {
+                return Lw14.decrypt(privateKey, cipher);
+            }
+        });
+        if (future == null) {
+            return Lw14.decrypt(privateKey, cipher);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during decryption", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AbeDecryptionException) {
+                throw (AbeDecryptionException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Decryption failed", e.getCause());
+        }
+    }
+
+    /**
+     * Same as {@link Lw14#encrypt(AbePublicKey, String, RevocationContext, int, Lw14EncryptionPreprocessing)},
+     * but runs on the pairing pool if it is enabled.
+     * @param pub           Public key
+     * @param policy        Policy as a boolean formula
+     * @param revocation    Revoked users
+     * @param userIndex     Index of the first user that is eligible for the encrypted data
+     * @param epp           Shared preprocessing (may be null)
+     * @return CipherText and key container object
+     * @throws AbeEncryptionException Encryption failed
+     */
+    public static Pair<CipherText, Element> encrypt(final AbePublicKey pub, final String policy,
+                                                    final RevocationContext revocation, final int userIndex,
+                                                    final Lw14EncryptionPreprocessing epp) throws AbeEncryptionException {
+        Future<Pair<CipherText, Element>> future = submit(new Callable<Pair<CipherText, Element>>() {
+            @Override
+            public Pair<CipherText, Element> call() throws AbeEncryptionException {
+                return Lw14.encrypt(pub, policy, revocation, userIndex, epp);
+            }
+        });
+        if (future == null) {
+            return Lw14.encrypt(pub, policy, revocation, userIndex, epp);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during encryption", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AbeEncryptionException) {
+                throw (AbeEncryptionException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Encryption failed", e.getCause());
+        }
+    }
+
+    /**
+     * Submits the task to the pool for the current setting.
+     * @return Future of the task or null if the pool is disabled
+     */
+    private static <T> Future<T> submit(Callable<T> task) {
+        while (true) {
+            PairingPool pairingPool = getPool();
+            if (pairingPool == null) {
+                return null;
+            }
+            if (pairingPool.acquire()) {
+                try {
+                    return pairingPool.executor.submit(task);
+                } finally {
+                    pairingPool.release();
+                }
+            }
+            // the pool was replaced in the meantime, the replacement is used
+        }
+    }
+
+    /**
+     * Returns the pool for the current setting and replaces it when the
+     * number of threads was changed.
+     */
+    private static PairingPool getPool() {
+        PairingPool pairingPool = pool;
+        if (AbeSettings.PAIRING_THREADS == threadsOf(pairingPool)) {
+            return pairingPool; // no lock on the hot path, it would pin virtual threads as well
+        }
+        synchronized (AbePairingExecutor.class) {
+            int threads = AbeSettings.PAIRING_THREADS;
+            PairingPool replaced = pool;
+            if (threads == threadsOf(replaced)) {
+                return replaced;
+            }
+            pool = threads > 0 ? new PairingPool(threads) : null;
+            if (replaced != null) {
+                replaced.release(); // shut down as soon as no caller is submitting to it anymore
+            }
+            return pool;
+        }
+    }
+
+    private static int threadsOf(PairingPool pairingPool) {
+        return pairingPool == null ? 0 : pairingPool.threads;
+    }
+
+    /**
+     * Pool with a count of the callers which are submitting to it. A thread
+     * pool may lose a task that is submitted while it is shut down, neither
+     * running nor rejecting it. So a replaced pool is only shut down after
+     * the last submission; the tasks that were submitted are still run.
+     */
+    private static class PairingPool {
+        final ExecutorService executor;
+        final int threads;
+        /** submitting callers plus one while the pool is the current one, 0 once it is shut down **/
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        PairingPool(int threads) {
+            this.threads = threads;
+            this.executor = Executors.newFixedThreadPool(threads, new PairingThreadFactory());
+        }
+
+        /**
+         * @return false if the pool was already shut down
+         */
+        boolean acquire() {
+            while (true) {
+                int current = users.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (users.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (users.decrementAndGet() == 0) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static class PairingThreadFactory implements ThreadFactory {
+        private static final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "abe-pairing-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package trabe;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Seekable AES ciphertext of an {@link AbeEncrypted}. All reads are
+ * positional and don't change any shared state, so a payload can be read any
+ * number of times and from several threads at once.
+ */
+abstract class AbePayload {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @return Number of bytes of the payload
+     */
+    abstract long length();
+
+    /**
+     * Reads up to len bytes at the position, which is relative to the start
+     * of the payload.
+     * @return Number of bytes read or -1 if the position is at the end
+     */
+    abstract int read(long position, byte[] b, int off, int len) throws IOException;
+
+    /**
+     * @return The part of the payload behind the offset
+     */
+    abstract AbePayload slice(long offset);
+
+    void readFully(long position, byte[] b, int off, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            int n = read(position + done, b, off + done, len - done);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            done += n;
+        }
+    }
+
+    /**
+     * @return A new stream over the whole payload
+     */
+    InputStream openStream() {
+        return new InputStream() {
+            private long position = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == 1 ? (single[0] & 0xff) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int n = AbePayload.this.read(position, b, off, len);
+                if (n > 0) {
+                    position += n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, length() - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, length() - position);
+            }
+        };
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, length()))];
+        long position = 0;
+        int n;
+        while ((n = read(position, buffer, 0, buffer.length)) > 0) {
+            out.write(buffer, 0, n);
+            position += n;
+        }
+    }
+
+    static AbePayload of(byte[] data, int offset, int length) {
+        return new ArrayPayload(data, offset, length);
+    }
+
+    /**
+     * Uses the bytes between the position and the limit of the buffer, later
+     * changes of the position or limit don't affect the payload.
+     */
+    static AbePayload of(ByteBuffer buffer) {
+        if (buffer.hasArray() && !buffer.isReadOnly()) {
+            return new ArrayPayload(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return new BufferPayload(buffer.slice());
+    }
+
+    static AbePayload of(FileChannel channel, long position, long length) {
+        return new ChannelPayload(channel, position, length);
+    }
+
+    static class ArrayPayload extends AbePayload {
+        final byte[] data;
+        final int offset;
+        final int length;
+
+        ArrayPayload(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        long length() {
+            return length;
+        }
+
+        @Override
+        int read(long position, byte[] b, int off, int len) {
+            if (position >= length) {
+                return -1;
+            }
+            int n = (int) Math.min(len, length - position);
+            System.arraycopy(data, offset + (int) position, b, off, n);
+            return n;
+        }
+
+        @Override
+        AbePayload slice(long from) {
+            return new ArrayPayload(data, offset + (int) from, length - (int) from);
+        }
+
+        @Override
+        InputStream openStream() {
+            return new ByteArrayInputStream(data, offset, length);
+        }
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            out.write(data, offset, length);
+        }
+    }
+
+    private static class BufferPayload extends AbePayload {
+        private final ByteBuffer buffer;
+
+        BufferPayload(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        long length() {
+            return buffer.remaining();
+        }
+
+        @Override
+        int read(long position, byte[] b, int off, int len) {
+            if (position >= buffer.remaining()) {
+                return -1;
+            }
+            int n = (int) Math.min(len, buffer.remaining() - position);
+            ByteBuffer view = buffer.duplicate(); // Java 6 has no absolute bulk get
+            view.position((int) position);
+            view.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        AbePayload slice(long from) {
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) from);
+            return new BufferPayload(view.slice());
+        }
+    }
+
+    private static class ChannelPayload extends AbePayload {
+        private final FileChannel channel;
+        private final long start;
+        private final long length;
+
+        ChannelPayload(FileChannel channel, long start, long length) {
+            this.channel = channel;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        long length() {
+            return length;
+        }
+
+        @Override
+        int read(long position, byte[] b, int off, int len) throws IOException {
+            if (position >= length) {
+                return -1;
+            }
+            ByteBuffer target = ByteBuffer.wrap(b, off, (int) Math.min(len, length - position));
+            while (target.hasRemaining()) {
+                int n = channel.read(target, start + position + target.position() - off);
+                if (n < 0) {
+                    break;
+                }
+            }
+            int read = target.position() - off;
+            return read > 0 ? read : -1;
+        }
+
+        @Override
+        AbePayload slice(long from) {
+            return new ChannelPayload(channel, start + from, length - from);
+        }
+    }
+}
@@ -2,22 +2,35 @@ package trabe;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
+import it.unisa.dia.gas.jpbc.Field;
 import it.unisa.dia.gas.jpbc.Pairing;
 import it.unisa.dia.gas.jpbc.PairingParameters;
 import it.unisa.dia.gas.plaf.jpbc.pairing.PairingFactory;
 import it.unisa.dia.gas.plaf.jpbc.pairing.parameters.PropertiesParameters;
+import trabe.lw14.Lw14AttributeHashCache;
 import trabe.lw14.Lw14Util;
 
 public class AbePublicKey {
     private static final int SERIALIZE_VERSION = 1;
+    private static final int SECTIONED_MAGIC = 0x41425053; // "ABPS"
+    private static final int SECTIONED_VERSION = 1;
 
     /*
      * A public key
      */
     private final String pairingDesc;
     private transient Pairing p;
+    private transient Lw14AttributeHashCache attributeHashCache;
+    /** start of the columns in the sectioned file, -1 if the key wasn't read from one **/
+    private transient long sectionsOffset = -1;
+    /** GT fixed-base tables per row of E_i, see {@link #getEPreProcessing(int)} **/
+    private transient volatile ETables eTables;
     /** G_1 **/
     public Element g;
     /** G_1 **/
@@ -65,6 +78,110 @@ public class AbePublicKey {
         return p;
     }
 
+    /**
+     * Returns the cache of hashed attributes for this public key. It is
+     * created on first use with {@link AbeSettings#ATTRIBUTE_HASH_CACHE_SIZE}
+     * entries.
+     * @return Attribute hash cache
+     */
+    public synchronized Lw14AttributeHashCache getAttributeHashCache() {
+        if (attributeHashCache == null) {
+            attributeHashCache = new Lw14AttributeHashCache(this, Math.max(1, AbeSettings.ATTRIBUTE_HASH_CACHE_SIZE));
+        }
+        return attributeHashCache;
+    }
+
+    /**
+     * Returns the fixed-base table for E_i of a row. Exponentiations in G_T
+     * are much more expensive than in G_1, but the table costs a few of them
+     * and a lot of memory, so it is only built after the row was used
+     * {@link AbeSettings#PREPROCESSING_THRESHOLD} times and at most
+     * {@link AbeSettings#MAX_GT_TABLES} tables are kept. Only the caller
+     * whose use reaches the threshold builds the table, concurrent callers
+     * exponentiate without it in the meantime. The tables can be used by
+     * multiple threads and are kept until {@link #clearEPreProcessing()}.
+     * @param row    Row
+     * @return Table or null if it isn't (yet) worth building one
+     */
+    public ElementPowPreProcessing getEPreProcessing(int row) {
+        if (!AbeSettings.PREPROCESSING || E_i[row] == null) {
+            return null;
+        }
+        ETables e = getETables();
+        ElementPowPreProcessing table = e.tables.get(row);
+        if (table == null && e.uses.incrementAndGet(row) == AbeSettings.PREPROCESSING_THRESHOLD) {
+            table = e.build(row);
+        }
+        return table;
+    }
+
+    /**
+     * Builds the fixed-base tables of all the loaded rows of E_i now instead
+     * of after a few encryptions, e.g. before many encryptions are run. Rows
+     * whose table is already being built are skipped.
+     */
+    public void buildEPreProcessing() {
+        if (!AbeSettings.PREPROCESSING) {
+            return;
+        }
+        ETables e = getETables();
+        for (int i = 0; i < E_i.length; i++) {
+            // claim the row like the caller that reaches the threshold
+            if (E_i[i] != null && e.tables.get(i) == null
+                    && e.uses.getAndSet(i, AbeSettings.PREPROCESSING_THRESHOLD) < AbeSettings.PREPROCESSING_THRESHOLD) {
+                e.build(i);
+            }
+        }
+    }
+
+    /**
+     * Drops the G_T tables and the use counts of the rows, e.g. once a batch
+     * of encryptions is done. Tables are built again on demand.
+     */
+    public synchronized void clearEPreProcessing() {
+        eTables = null;
+    }
+
+    private ETables getETables() {
+        ETables e = eTables;
+        if (e == null) {
+            synchronized (this) {
+                e = eTables;
+                if (e == null) {
+                    e = new ETables(E_i.length);
+                    eTables = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Tables and use counts of the rows, replaced as a whole when they are dropped.
+     */
+    private class ETables {
+        final AtomicReferenceArray<ElementPowPreProcessing> tables;
+        /** exponentiations per row of E_i before its table was built **/
+        final AtomicIntegerArray uses;
+        final AtomicInteger built = new AtomicInteger();
+
+        ETables(int rows) {
+            tables = new AtomicReferenceArray<ElementPowPreProcessing>(rows);
+            uses = new AtomicIntegerArray(rows);
+        }
+
+        /** builds the table of a claimed row unless the limit is reached **/
+        ElementPowPreProcessing build(int row) {
+            if (built.incrementAndGet() > AbeSettings.MAX_GT_TABLES) {
+                built.decrementAndGet();
+                return null;
+            }
+            ElementPowPreProcessing table = E_i[row].getElementPowPreProcessing();
+            tables.set(row, table);
+            return table;
+        }
+    }
+
     public void setElements(Element g, Element h, Element f, Element[] f_j,
                             Element G, Element H, Element[] E_i, Element[] G_i,
                             Element[] Z_i, Element[] H_j, Element Gquote) {
@@ -79,6 +196,7 @@ public class AbePublicKey {
         this.Z_i = Z_i;
         this.H_j = H_j;
         this.Gquote = Gquote;
+        this.eTables = null;
     }
 
     public static AbePublicKey readFromFile(File file) throws IOException {
@@ -144,6 +262,201 @@ public class AbePublicKey {
         fos.close();
     }
 
+    /**
+     * Writes the public key in the sectioned format. All elements are stored
+     * with a fixed length, so that every row (E_i, G_i, Z_i) and every column
+     * (f_j, H_j) can be read on its own with
+     * {@link #readSectioned(File, int, int, boolean)}. The file is written
+     * sequentially, one row or column at a time.
+     * @param file    Destination
+     * @throws IOException File couldn't be written or a row isn't loaded
+     */
+    public void writeSectioned(File file) throws IOException {
+        Pairing pairing = getPairing();
+        int lengthG1 = pairing.getG1().getLengthInBytes();
+        int lengthGT = pairing.getGT().getLengthInBytes();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(SECTIONED_MAGIC);
+            out.writeInt(SECTIONED_VERSION);
+            byte[] description = pairingDesc.getBytes(AbeSettings.STRINGS_LOCALE);
+            out.writeInt(description.length);
+            out.write(description);
+            out.writeInt(getSqrtUsers());
+
+            writeFixed(g, lengthG1, out);
+            writeFixed(h, lengthG1, out);
+            writeFixed(f, lengthG1, out);
+            writeFixed(G, lengthG1, out);
+            writeFixed(H, lengthG1, out);
+            out.writeBoolean(Gquote != null);
+            if (Gquote != null) {
+                writeFixed(Gquote, lengthG1, out);
+            }
+
+            for (int j = 0; j < getSqrtUsers(); j++) {
+                writeFixed(f_j[j], lengthG1, out);
+                writeFixed(H_j[j], lengthG1, out);
+            }
+            for (int i = 0; i < getSqrtUsers(); i++) {
+                writeFixed(E_i[i], lengthGT, out);
+                writeFixed(G_i[i], lengthG1, out);
+                writeFixed(Z_i[i], lengthG1, out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeFixed(Element e, int length, DataOutputStream out) throws IOException {
+        if (e == null) {
+            throw new IOException("Can't write a public key with sections that are not loaded");
+        }
+        byte[] bytes = e.toBytes();
+        if (bytes.length != length) {
+            throw new IOException("Unexpected element length " + bytes.length + " instead of " + length);
+        }
+        out.write(bytes);
+    }
+
+    /**
+     * Reads the constant part and the requested sections of a public key that
+     * was written with {@link #writeSectioned(File)}. The arrays have their
+     * full length, but the entries of sections that were not read are null.
+     * Decryption doesn't need any section, key generation needs all the
+     * columns and the row of the user and encryption needs everything.
+     * @param file        Sectioned public key
+     * @param firstRow    First row to read
+     * @param rows        Number of rows to read (may be 0)
+     * @param columns     Read all the columns
+     * @return Partially loaded public key
+     * @throws IOException File couldn't be read or is malformed
+     */
+    public static AbePublicKey readSectioned(File file, int firstRow, int rows, boolean columns) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.readInt() != SECTIONED_MAGIC) {
+                throw new IOException("Not a sectioned public key");
+            }
+            int version = raf.readInt();
+            if (version != SECTIONED_VERSION) {
+                throw new IOException("Unsupported sectioned public key version: " + version);
+            }
+            int descriptionLength = raf.readInt();
+            if (descriptionLength < 0 || descriptionLength > raf.length()) {
+                throw new IOException("Invalid pairing description length: " + descriptionLength);
+            }
+            byte[] description = new byte[descriptionLength];
+            raf.readFully(description);
+            AbePublicKey publicKey = new AbePublicKey(new String(description, AbeSettings.STRINGS_LOCALE));
+            int usersSqrt = raf.readInt();
+            if (usersSqrt < 1) {
+                throw new IOException("Invalid number of rows: " + usersSqrt);
+            }
+
+            Pairing pairing = publicKey.getPairing();
+            int lengthG1 = pairing.getG1().getLengthInBytes();
+            publicKey.g = readFixed(pairing.getG1(), lengthG1, raf);
+            publicKey.h = readFixed(pairing.getG1(), lengthG1, raf);
+            publicKey.f = readFixed(pairing.getG1(), lengthG1, raf);
+            publicKey.G = readFixed(pairing.getG1(), lengthG1, raf);
+            publicKey.H = readFixed(pairing.getG1(), lengthG1, raf);
+            if (raf.readBoolean()) {
+                publicKey.Gquote = readFixed(pairing.getG1(), lengthG1, raf);
+            }
+
+            publicKey.f_j = new Element[usersSqrt];
+            publicKey.H_j = new Element[usersSqrt];
+            publicKey.E_i = new Element[usersSqrt];
+            publicKey.G_i = new Element[usersSqrt];
+            publicKey.Z_i = new Element[usersSqrt];
+            publicKey.sectionsOffset = raf.getFilePointer();
+            publicKey.loadSections(raf, firstRow, rows, columns);
+            return publicKey;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads more sections of a public key that was read with
+     * {@link #readSectioned(File, int, int, boolean)} from the same file.
+     * @param file        Sectioned public key
+     * @param firstRow    First row to read
+     * @param rows        Number of rows to read (may be 0)
+     * @param columns     Read all the columns
+     * @throws IOException File couldn't be read
+     */
+    public void loadSections(File file, int firstRow, int rows, boolean columns) throws IOException {
+        if (sectionsOffset < 0) {
+            throw new IllegalStateException("The public key wasn't read from a sectioned file");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            loadSections(raf, firstRow, rows, columns);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void loadSections(RandomAccessFile raf, int firstRow, int rows, boolean columns) throws IOException {
+        int usersSqrt = getSqrtUsers();
+        if (firstRow < 0 || rows < 0 || firstRow + rows > usersSqrt) {
+            throw new IllegalArgumentException("Rows " + firstRow + " to " + (firstRow + rows) + " are out of range");
+        }
+        Pairing pairing = getPairing();
+        int lengthG1 = pairing.getG1().getLengthInBytes();
+        int lengthGT = pairing.getGT().getLengthInBytes();
+        int columnLength = 2 * lengthG1;
+        int rowLength = lengthGT + 2 * lengthG1;
+
+        if (columns) {
+            byte[] buffer = new byte[columnLength];
+            raf.seek(sectionsOffset);
+            for (int j = 0; j < usersSqrt; j++) {
+                raf.readFully(buffer);
+                f_j[j] = pairing.getG1().newElementFromBytes(buffer, 0);
+                H_j[j] = pairing.getG1().newElementFromBytes(buffer, lengthG1);
+            }
+        }
+        if (rows > 0) {
+            byte[] buffer = new byte[rowLength];
+            raf.seek(sectionsOffset + (long) usersSqrt * columnLength + (long) firstRow * rowLength);
+            for (int i = firstRow; i < firstRow + rows; i++) {
+                raf.readFully(buffer);
+                E_i[i] = pairing.getGT().newElementFromBytes(buffer, 0);
+                G_i[i] = pairing.getG1().newElementFromBytes(buffer, lengthGT);
+                Z_i[i] = pairing.getG1().newElementFromBytes(buffer, lengthGT + lengthG1);
+            }
+        }
+    }
+
+    private static Element readFixed(Field<?> field, int length, RandomAccessFile raf) throws IOException {
+        byte[] bytes = new byte[length];
+        raf.readFully(bytes);
+        return field.newElementFromBytes(bytes);
+    }
+
+    /**
+     * @param i    Row
+     * @return The row (E_i, G_i, Z_i) is loaded
+     */
+    public boolean isRowLoaded(int i) {
+        return E_i[i] != null && G_i[i] != null && Z_i[i] != null;
+    }
+
+    /**
+     * @return All the columns (f_j, H_j) are loaded
+     */
+    public boolean areColumnsLoaded() {
+        for (int j = 0; j < getSqrtUsers(); j++) {
+            if (f_j[j] == null || H_j[j] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public byte[] getAsByteArray() throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         this.writeToStream(baos);
@@ -15,8 +15,12 @@ public class AbeSettings {
             + "sign1 1\n" + "sign0 1\n";
     public final static boolean USE_TREE = true; // otherwise LSSS matrix
 
+    public static boolean OPTIMIZE_POLICY_TREE = true; // flatten and deduplicate the policy tree before encryption
     public static boolean PREPROCESSING = true;
     public static int PREPROCESSING_THRESHOLD = 6; // how many exponentiations with the same basis are needed for pre-processing to make sense
+    public static int MAX_GT_TABLES = 64; // G_T fixed-base tables of E_i kept per public key (about 128 KiB each), see AbePublicKey#getEPreProcessing
+    public static int ATTRIBUTE_HASH_CACHE_SIZE = 4096; // hashed attributes kept per public key, 0 disables the cache
+    public static int PAIRING_THREADS = 0; // platform threads for the pairings of Cpabe.encrypt/decrypt (see AbePairingExecutor), 0 runs them on the calling thread
 
     // currently broken:
     public final static boolean USE_THRESHOLD_MATRIX = false; // otherwise LSSS matrix from boolean formula
@@ -0,0 +1,113 @@
+package trabe;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves data through a symmetric cipher from a source to a destination
+ * buffer without blocking. Input is only consumed when the output of the
+ * previous chunk was completely written to a destination, so at most one
+ * chunk is buffered internally and a full destination stops the consumption
+ * of the source (backpressure).
+ */
+abstract class AbeStreamCipher {
+    /** largest piece of input that is passed to the cipher at once **/
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    /** output that didn't fit into the destination yet, in read mode **/
+    private ByteBuffer pending = ByteBuffer.allocate(0);
+    private Cipher cipher = null;
+    private boolean finalized = false;
+
+    /**
+     * Queues bytes which are written before any cipher output (e.g. a header).
+     */
+    void queue(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(pending.remaining() + bytes.length);
+        buffer.put(pending);
+        buffer.put(bytes);
+        buffer.flip();
+        pending = buffer;
+    }
+
+    void setCipher(Cipher cipher) {
+        this.cipher = cipher;
+    }
+
+    boolean hasCipher() {
+        return cipher != null;
+    }
+
+    /**
+     * @return Number of bytes that were written to the destination
+     */
+    int drain(ByteBuffer dst) {
+        int n = Math.min(pending.remaining(), dst.remaining());
+        if (n > 0) {
+            ByteBuffer slice = pending.duplicate();
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            pending.position(pending.position() + n);
+        }
+        return n;
+    }
+
+    boolean hasPending() {
+        return pending.hasRemaining();
+    }
+
+    /**
+     * Runs the source through the cipher as long as the destination has space.
+     * @return Number of bytes that were written to the destination
+     */
+    int update(ByteBuffer src, ByteBuffer dst) throws ShortBufferException {
+        int written = drain(dst);
+        while (!pending.hasRemaining() && src.hasRemaining() && dst.hasRemaining()) {
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + Math.min(src.remaining(), CHUNK_SIZE));
+            int length = chunk.remaining();
+            ByteBuffer output = output(cipher.getOutputSize(length));
+            cipher.update(chunk, output);
+            src.position(src.position() + length);
+            output.flip();
+            pending = output;
+            written += drain(dst);
+        }
+        return written;
+    }
+
+    /**
+     * Completes the cipher after the last input.
+     * @return All the output was written to the destination
+     */
+    boolean finishCipher(ByteBuffer dst) throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        drain(dst);
+        if (!pending.hasRemaining() && !finalized) {
+            ByteBuffer output = output(cipher.getOutputSize(0));
+            cipher.doFinal(ByteBuffer.allocate(0), output);
+            output.flip();
+            pending = output;
+            finalized = true;
+            drain(dst);
+        }
+        return finalized && !pending.hasRemaining();
+    }
+
+    boolean isFinalized() {
+        return finalized && !pending.hasRemaining();
+    }
+
+    /**
+     * Reuses the internal buffer for the next chunk if it is large enough.
+     */
+    private ByteBuffer output(int size) {
+        if (pending.capacity() >= size && !pending.isReadOnly()) {
+            pending.clear();
+            return pending;
+        }
+        return ByteBuffer.allocate(Math.max(size, CHUNK_SIZE + 32));
+    }
+}
@@ -0,0 +1,165 @@
+package trabe;
+
+import it.unisa.dia.gas.jpbc.Element;
+import trabe.aes.AesEncryption;
+import trabe.lw14.CipherText;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Decrypts a stream of {@link ByteBuffer}s in the format of
+ * {@link AbeEncrypted#writeEncryptedFile(java.io.OutputStream, AbePublicKey)}
+ * without blocking, the counterpart of {@link AbeStreamEncryptor}.
+ *
+ * <p>The ABE header is collected until it is complete. Then the secret is
+ * recovered and the AES chunks are decrypted as far as the destination has
+ * space. A full destination stops the consumption of the source.</p>
+ *
+ * <p>Instances are not thread-safe.</p>
+ */
+public class AbeStreamDecryptor extends AbeStreamCipher {
+    /** first size at which the header is parsed, it is doubled after every attempt **/
+    private static final int INITIAL_HEADER_ATTEMPT = 512;
+
+    private final AbePrivateKey privateKey;
+
+    private byte[] header = new byte[INITIAL_HEADER_ATTEMPT];
+    private int headerLength = 0;
+    private int nextAttempt = INITIAL_HEADER_ATTEMPT;
+    private CipherText cipherText = null;
+    /** AES ciphertext that was received together with the end of the header **/
+    private ByteBuffer leftover = ByteBuffer.allocate(0);
+
+    public AbeStreamDecryptor(AbePrivateKey privateKey) {
+        this.privateKey = privateKey;
+    }
+
+    /**
+     * Consumes ciphertext and writes plaintext as far as the destination
+     * has space.
+     * @param src    Ciphertext, the position is moved behind the consumed bytes
+     * @param dst    Plaintext
+     * @return Number of bytes written to the destination
+     * @throws AbeDecryptionException The header is invalid, the key doesn't satisfy the policy or AES failed
+     */
+    public int decrypt(ByteBuffer src, ByteBuffer dst) throws AbeDecryptionException {
+        if (!hasCipher()) {
+            collectHeader(src, false);
+            if (!hasCipher()) {
+                return 0;
+            }
+        }
+        try {
+            int written = update(leftover, dst);
+            if (leftover.hasRemaining()) {
+                return written;
+            }
+            return written + update(src, dst);
+        } catch (GeneralSecurityException e) {
+            throw new AbeDecryptionException("AES decryption failed", e);
+        }
+    }
+
+    /**
+     * Decrypts the last block after all the input was passed to
+     * {@link #decrypt(ByteBuffer, ByteBuffer)}. Has to be called again with
+     * an emptied destination until it returns true.
+     * @param dst    Plaintext
+     * @return The complete plaintext was written
+     * @throws AbeDecryptionException The stream was truncated or the padding is invalid
+     */
+    public boolean finish(ByteBuffer dst) throws AbeDecryptionException {
+        if (!hasCipher()) {
+            collectHeader(ByteBuffer.allocate(0), true);
+        }
+        try {
+            update(leftover, dst);
+            if (leftover.hasRemaining()) {
+                return false;
+            }
+            return finishCipher(dst);
+        } catch (GeneralSecurityException e) {
+            throw new AbeDecryptionException("AES decryption failed", e);
+        }
+    }
+
+    public boolean isFinished() {
+        return isFinalized();
+    }
+
+    /**
+     * @return ABE ciphertext of the header or null if it wasn't completely received yet
+     */
+    public CipherText getCipherText() {
+        return cipherText;
+    }
+
+    /**
+     * Appends the source to the header and parses it once enough bytes are
+     * there. Parsing is retried after the collected bytes doubled, so a large
+     * header that arrives in small pieces isn't parsed over and over. Only
+     * the bytes up to the next attempt are taken from the source, the rest
+     * stays there for the caller.
+     */
+    private void collectHeader(ByteBuffer src, boolean last) throws AbeDecryptionException {
+        while (true) {
+            int n = Math.min(src.remaining(), nextAttempt - headerLength);
+            if (headerLength + n > header.length) {
+                byte[] grown = new byte[Math.max(header.length * 2, nextAttempt)];
+                System.arraycopy(header, 0, grown, 0, headerLength);
+                header = grown;
+            }
+            src.get(header, headerLength, n);
+            headerLength += n;
+            if (headerLength < nextAttempt && !last) {
+                return;
+            }
+            if (parseHeader(last)) {
+                return;
+            }
+            nextAttempt = headerLength * 2;
+        }
+    }
+
+    /**
+     * @return false if more bytes are needed
+     */
+    private boolean parseHeader(boolean last) throws AbeDecryptionException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(header, 0, headerLength);
+        byte[] iv;
+        try {
+            AbeInputStream stream = new AbeInputStream(bytes, privateKey.getPublicKey());
+            cipherText = CipherText.readFromStream(stream);
+            iv = new byte[stream.readInt()];
+            stream.readFully(iv);
+        } catch (EOFException e) {
+            cipherText = null;
+            if (last) {
+                throw new AbeDecryptionException("The stream ended within the header", e);
+            }
+            return false;
+        } catch (IOException e) {
+            throw new AbeDecryptionException("Invalid header", e);
+        }
+
+        Element secret = AbePairingExecutor.decrypt(privateKey, cipherText);
+        if (secret == null) {
+            throw new AbeDecryptionException("Couldn't recover the secret");
+        }
+        try {
+            setCipher(AesEncryption.decrypt(secret.toBytes(), null, iv));
+        } catch (IOException e) {
+            throw new AbeDecryptionException("AES cipher couldn't be initialized", e);
+        }
+
+        // the rest of the collected bytes already belongs to the AES ciphertext
+        int consumed = headerLength - bytes.available();
+        leftover = ByteBuffer.wrap(header, consumed, headerLength - consumed);
+        header = null;
+        return true;
+    }
+}
@@ -0,0 +1,107 @@
+package trabe;
+
+import it.unisa.dia.gas.jpbc.Element;
+import trabe.aes.AesEncryption;
+import trabe.lw14.CipherText;
+import trabe.lw14.RevocationContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Encrypts a stream of {@link ByteBuffer}s without blocking, for event
+ * driven pipelines (e.g. non-blocking HTTP bodies or message chunks) where
+ * a thread per stream isn't affordable.
+ *
+ * <p>The output is the same as the one of
+ * {@link AbeEncrypted#writeEncryptedFile(java.io.OutputStream, AbePublicKey)}:
+ * the ABE header (ciphertext and IV) comes first, the AES chunks after it.
+ * Every call writes as much as fits into the destination and only consumes
+ * as much of the source as was encrypted, so the producer is throttled by
+ * the consumer:</p>
+ *
+ * <pre>
+ * while (more input) {
+ *     encryptor.encrypt(input, output);  // output full: flush it and call again
+ * }
+ * while (!encryptor.finish(output)) {
+ *     // flush output
+ * }
+ * </pre>
+ *
+ * <p>Instances are not thread-safe.</p>
+ */
+public class AbeStreamEncryptor extends AbeStreamCipher {
+
+    /**
+     * Creates the ABE header for the policy.
+     * @param publicKey     Public key
+     * @param policy        Policy as a boolean formula
+     * @param revocation    Revoked users (may be null)
+     * @throws AbeEncryptionException Encryption failed
+     */
+    public AbeStreamEncryptor(AbePublicKey publicKey, String policy, RevocationContext revocation)
+            throws AbeEncryptionException {
+        if (revocation == null) {
+            revocation = new RevocationContext(publicKey, new int[0]);
+        }
+        Pair<CipherText, Element> ctak = AbePairingExecutor.encrypt(publicKey, policy, revocation, 0, null);
+        if (ctak.getFirst() == null || ctak.getSecond() == null) {
+            throw new AbeEncryptionException("ABE Encryption failed");
+        }
+
+        byte[] iv = new byte[16];
+        new SecureRandom().nextBytes(iv);
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            AbeOutputStream stream = new AbeOutputStream(header, publicKey);
+            ctak.getFirst().writeToStream(stream);
+            stream.writeInt(iv.length);
+            stream.write(iv);
+            stream.flush();
+            queue(header.toByteArray());
+        } catch (IOException e) {
+            throw new AbeEncryptionException("Couldn't serialize the header", e);
+        }
+        setCipher(AesEncryption.encrypt(ctak.getSecond().toBytes(), null, iv));
+    }
+
+    /**
+     * Writes the pending header and encrypts the source as far as the
+     * destination has space.
+     * @param src    Plaintext, the position is moved behind the consumed bytes
+     * @param dst    Ciphertext
+     * @return Number of bytes written to the destination
+     * @throws AbeEncryptionException The cipher failed
+     */
+    public int encrypt(ByteBuffer src, ByteBuffer dst) throws AbeEncryptionException {
+        try {
+            return update(src, dst);
+        } catch (GeneralSecurityException e) {
+            throw new AbeEncryptionException("AES encryption failed", e);
+        }
+    }
+
+    /**
+     * Encrypts the last block after all the input was passed to
+     * {@link #encrypt(ByteBuffer, ByteBuffer)}. Has to be called again with
+     * an emptied destination until it returns true.
+     * @param dst    Ciphertext
+     * @return The complete ciphertext was written
+     * @throws AbeEncryptionException The cipher failed
+     */
+    public boolean finish(ByteBuffer dst) throws AbeEncryptionException {
+        try {
+            return finishCipher(dst);
+        } catch (GeneralSecurityException e) {
+            throw new AbeEncryptionException("AES encryption failed", e);
+        }
+    }
+
+    public boolean isFinished() {
+        return isFinalized();
+    }
+}
@@ -0,0 +1,260 @@
+package trabe;
+
+import it.unisa.dia.gas.jpbc.Element;
+import trabe.lw14.CipherText;
+import trabe.lw14.Lw14ProbeGenerator;
+import trabe.lw14.RevocationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Traces the users that lended their keys to a decryption black box.
+ *
+ * <p>For every user index <code>k</code> the success rate <code>p_k</code>
+ * of the black box is estimated by encrypting random messages with index
+ * <code>k</code>. User <code>k</code> is a traitor if <code>p_k</code> drops
+ * noticeably compared to <code>p_(k+1)</code>. The probes of a batch are run
+ * concurrently and are created by a single {@link Lw14ProbeGenerator}, so
+ * the policy and the fixed-base tables are prepared once. Every probe is a
+ * fresh encryption, a black box can't tell it from an honest ciphertext.</p>
+ *
+ * <p>Adjacent indexes are compared with confidence bounds (see
+ * {@link TraceStatistics}): probing of a pair stops as soon as the bounds show
+ * whether the gap is at least the threshold or not. Only pairs that cannot be separated are probed up to the
+ * full number of <code>ceil(8 * lambda * (N / p)^2)</code> probes.</p>
+ */
+public class AbeTracer {
+
+    /**
+     * Receives the progress of a trace. The methods are called from the
+     * thread that runs {@link AbeTracer#trace(double)}.
+     */
+    public interface ProgressCallback {
+        /**
+         * Called after every batch of probes for an index.
+         * @param userIndex    Probed user index
+         * @param probes       Number of probes for the index so far
+         * @param successes    Number of successful decryptions for the index so far
+         */
+        void probed(int userIndex, long probes, long successes);
+
+        /**
+         * Called when it is decided whether the user is a traitor.
+         * @param userIndex    User index
+         * @param traitor      The user is a traitor
+         */
+        void decided(int userIndex, boolean traitor);
+    }
+
+    private static final int MESSAGE_LENGTH = 50; // not a multiple of the block size
+
+    private final AbePublicKey publicKey;
+    private final String policy;
+    private final DecryptionBlackBox blackBox;
+    private final int threads;
+
+    private double lambda = 0.1;
+    private double errorProbability = 0.05;
+    private int batchSize = 32;
+    private ProgressCallback callback = null;
+    private RevocationContext revocation = null;
+
+    private final SecureRandom random = new SecureRandom();
+    private Lw14ProbeGenerator generator = null;
+    private long probeCount = 0;
+
+    /**
+     * @param publicKey    Public key
+     * @param policy       Policy that the black box is able to decrypt
+     * @param blackBox     Decryption black box, has to be thread-safe if more than one thread is used
+     * @param threads      Number of worker threads for the probes
+     */
+    public AbeTracer(AbePublicKey publicKey, String policy, DecryptionBlackBox blackBox, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.publicKey = publicKey;
+        this.policy = policy;
+        this.blackBox = blackBox;
+        this.threads = threads;
+    }
+
+    /**
+     * @param lambda    Security parameter which scales the maximum number of probes per index
+     */
+    public void setLambda(double lambda) {
+        this.lambda = lambda;
+    }
+
+    /**
+     * @param errorProbability    Probability that any of the early decisions is wrong
+     */
+    public void setErrorProbability(double errorProbability) {
+        if (errorProbability <= 0 || errorProbability >= 1) {
+            throw new IllegalArgumentException("Error probability must be in (0, 1)");
+        }
+        this.errorProbability = errorProbability;
+    }
+
+    /**
+     * @param batchSize    Number of probes per index between two checks of the bounds
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public void setProgressCallback(ProgressCallback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * The probes are encrypted like ciphertexts that exclude the revoked
+     * users, so their keys don't contribute to the success rate.
+     * @param revocation    Revoked users (may be null)
+     */
+    public void setRevocation(RevocationContext revocation) {
+        if (revocation != null && revocation.getPublicKey() != publicKey) {
+            throw new IllegalArgumentException("The revocation context belongs to another public key");
+        }
+        this.revocation = revocation;
+        generator = null;
+    }
+
+    /**
+     * @return Number of probes of the last trace
+     */
+    public long getProbeCount() {
+        return probeCount;
+    }
+
+    /**
+     * Calculates the indexes of users that lended their keys to the decryption blackbox.
+     * @param probability    Probability with which the black box decrypts ciphertexts of the policy
+     * @return Indexes of all traced users (traitors)
+     * @throws IOException The probe messages couldn't be encrypted
+     * @throws AbeEncryptionException Probes couldn't be created
+     */
+    public List<Integer> trace(double probability) throws IOException, AbeEncryptionException {
+        if (generator == null) {
+            generator = revocation == null
+                    ? new Lw14ProbeGenerator(publicKey, policy, new int[0], null)
+                    : new Lw14ProbeGenerator(publicKey, policy, revocation, null);
+        }
+        int N = publicKey.getMaxUsers();
+        long maxProbes = (long) Math.ceil(8 * lambda * Math.pow(N / probability, 2));
+        double threshold = probability / (4 * N);
+        TraceStatistics statistics = new TraceStatistics(N + 1, errorProbability);
+        probeCount = 0;
+
+        List<Integer> result = new ArrayList<Integer>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int k = 0; k < N; k++) {
+                Boolean traitor;
+                while ((traitor = statistics.compareDrop(k, k + 1, threshold, maxProbes)) == null) {
+                    probe(executor, statistics, k, maxProbes);
+                }
+                if (traitor) {
+                    result.add(k);
+                }
+                if (callback != null) {
+                    callback.decided(k, traitor);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Runs a batch of probes for the indexes k and k+1 (as far as they are
+     * below the maximum) and updates the statistics.
+     */
+    private void probe(ExecutorService executor, TraceStatistics statistics, int k, long maxProbes)
+            throws IOException, AbeEncryptionException {
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        int[] futuresPerIndex = new int[2];
+        int[] probesPerIndex = new int[2];
+        for (int d = 0; d < 2; d++) {
+            final int userIndex = k + d;
+            probesPerIndex[d] = (int) Math.min(batchSize, maxProbes - statistics.getProbes(userIndex));
+            int chunks = Math.min(threads, probesPerIndex[d]);
+            for (int c = 0; c < chunks; c++) {
+                // distribute the remainder so the total is exactly the batch
+                final int chunkProbes = probesPerIndex[d] / chunks + (c < probesPerIndex[d] % chunks ? 1 : 0);
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return probe(userIndex, chunkProbes);
+                    }
+                }));
+            }
+            futuresPerIndex[d] = chunks;
+        }
+
+        int f = 0;
+        for (int d = 0; d < 2; d++) {
+            int userIndex = k + d;
+            long successes = 0;
+            for (int c = 0; c < futuresPerIndex[d]; c++) {
+                successes += get(futures.get(f++));
+            }
+            statistics.add(userIndex, probesPerIndex[d], successes);
+            probeCount += probesPerIndex[d];
+            if (callback != null && probesPerIndex[d] > 0) {
+                callback.probed(userIndex, statistics.getProbes(userIndex), statistics.getSuccesses(userIndex));
+            }
+        }
+    }
+
+    private int probe(int userIndex, int count) throws IOException, AbeEncryptionException {
+        byte[] message = new byte[MESSAGE_LENGTH];
+        byte[] iv = new byte[16];
+        int counter = 0;
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(message);
+            random.nextBytes(iv);
+            Pair<CipherText, Element> probe = generator.next(userIndex);
+            AbeEncrypted ct = AbeEncrypted.createDuringEncryption(iv, probe.getFirst(),
+                    new ByteArrayInputStream(message), probe.getSecond());
+            byte[] decrypted = blackBox.decrypt(ct);
+            if (Arrays.equals(message, decrypted)) {
+                counter++;
+            }
+        }
+        return counter;
+    }
+
+    private static int get(Future<Integer> future) throws IOException, AbeEncryptionException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during tracing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof AbeEncryptionException) {
+                throw (AbeEncryptionException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Probe failed", cause);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package trabe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Hands out user indexes (positions) for key generation and persists them in
+ * an append-only journal next to the secret master key file, so that the
+ * master key doesn't have to be rewritten after every key generation.
+ *
+ * <p>Indexes are reserved in blocks. A block is only handed out after its
+ * journal record has been forced to disk, so after a crash the allocator
+ * continues behind the last reserved block and an index is never used
+ * twice (the rest of an unfinished block is skipped). Records carry a
+ * checksum, so a torn record at the end of the journal is ignored. The last
+ * record is the state of the journal: {@link #close()} gives the rest of the
+ * block of {@link #next()} back with a record for a lower end.</p>
+ *
+ * <p>Workers can take whole blocks with {@link #allocateBlock()} and consume
+ * them without any synchronization, bulk key generation reserves exactly the
+ * indexes it needs with {@link #allocateBlock(int)}. {@link #next()} hands
+ * out the indexes of a single block in order, so short-lived threads don't
+ * leave unused indexes behind.</p>
+ *
+ * <p>The master key counter is kept at least as high as the reserved
+ * indexes, so keys generated with {@link trabe.lw14.Lw14#generateUserSecretComponent(AbeSecretMasterKey)}
+ * don't collide with allocated ones.</p>
+ */
+public class AbeUserIndexAllocator {
+    private static final int MAGIC = 0x41424a4e; // "ABJN"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+    private static final int RECORD_LENGTH = 16;
+    private static final long CHECKSUM_FACTOR = 0x9E3779B97F4A7C15L;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+
+    /**
+     * Consecutive indexes which are owned by a single worker.
+     */
+    public static class Block {
+        private final int end;
+        private int next;
+
+        Block(int start, int end) {
+            this.next = start;
+            this.end = end;
+        }
+
+        public boolean hasNext() {
+            return next < end;
+        }
+
+        /**
+         * @return Next index of the block
+         * @throws IllegalStateException if the block is used up
+         */
+        public int next() {
+            if (next >= end) {
+                throw new IllegalStateException("The block is used up");
+            }
+            return next++;
+        }
+
+        public int remaining() {
+            return end - next;
+        }
+    }
+
+    private final AbeSecretMasterKey msk;
+    private final int blockSize;
+    private final int maxUsers;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer journal;
+    private int position;
+    /** end (exclusive) of the reserved indexes **/
+    private int reserved;
+
+    /** block of {@link #next()} **/
+    private Block current = null;
+
+    /**
+     * Opens or creates the journal and recovers the reserved indexes.
+     * @param msk          Secret master key
+     * @param journal      Journal file
+     * @param blockSize    Number of indexes per block
+     * @throws IOException Journal couldn't be opened or belongs to another format
+     */
+    public AbeUserIndexAllocator(AbeSecretMasterKey msk, File journal, int blockSize) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.msk = msk;
+        this.blockSize = blockSize;
+        this.maxUsers = msk.getMaxUsers();
+
+        file = new RandomAccessFile(journal, "rw");
+        try {
+            channel = file.getChannel();
+            boolean created = file.length() == 0;
+            map(Math.max(file.length(), HEADER_LENGTH + (long) INITIAL_CAPACITY * RECORD_LENGTH));
+            if (created) {
+                this.journal.putInt(0, MAGIC);
+                this.journal.putInt(4, VERSION);
+                this.journal.force();
+            } else if (this.journal.getInt(0) != MAGIC) {
+                throw new IOException("Not a user index journal");
+            } else if (this.journal.getInt(4) != VERSION) {
+                throw new IOException("Unsupported user index journal version: " + this.journal.getInt(4));
+            }
+            recover();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the journal that belongs to the master key file.
+     * @param msk          Secret master key
+     * @param mskFile      File of the secret master key
+     * @param blockSize    Number of indexes per block
+     * @return Allocator
+     * @throws IOException Journal couldn't be opened
+     */
+    public static AbeUserIndexAllocator forMasterKeyFile(AbeSecretMasterKey msk, File mskFile, int blockSize) throws IOException {
+        return new AbeUserIndexAllocator(msk, new File(mskFile.getPath() + ".journal"), blockSize);
+    }
+
+    private void map(long size) throws IOException {
+        journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void recover() {
+        int recovered = 0;
+        position = HEADER_LENGTH;
+        while (position + RECORD_LENGTH <= journal.capacity()) {
+            long end = journal.getLong(position);
+            long checksum = journal.getLong(position + 8);
+            if (end <= 0 || checksum != checksum(end)) {
+                break; // unused space or a torn record
+            }
+            recovered = (int) end; // a record may give indexes back
+            position += RECORD_LENGTH;
+        }
+        synchronized (msk) {
+            reserved = Math.max(recovered, msk.counter);
+            msk.counter = reserved;
+        }
+    }
+
+    private static long checksum(long end) {
+        return (end * CHECKSUM_FACTOR) ^ MAGIC;
+    }
+
+    /**
+     * Reserves the next block and persists the reservation before returning.
+     * The last block may be smaller than the block size.
+     * @return Block of fresh indexes
+     * @throws IOException Journal couldn't be written
+     * @throws IllegalStateException if all the user indexes are used
+     */
+    public synchronized Block allocateBlock() throws IOException {
+        int start = nextFree();
+        if (start >= maxUsers) {
+            throw new IllegalStateException("All " + maxUsers + " user indexes are used");
+        }
+        return reserve(start, (int) Math.min((long) start + blockSize, maxUsers));
+    }
+
+    /**
+     * Reserves exactly the number of indexes, e.g. for a bulk key generation.
+     * @param size    Number of indexes
+     * @return Block of fresh indexes
+     * @throws IOException Journal couldn't be written
+     * @throws IllegalStateException if fewer indexes are left, nothing is reserved then
+     */
+    public synchronized Block allocateBlock(int size) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        int start = nextFree();
+        if ((long) start + size > maxUsers) {
+            throw new IllegalStateException("Only " + Math.max(0, maxUsers - start) + " of " + maxUsers
+                    + " user indexes are left, " + size + " are needed");
+        }
+        return reserve(start, start + size);
+    }
+
+    private int nextFree() {
+        synchronized (msk) {
+            // keys may have been generated through the master key counter in the meantime
+            return Math.max(reserved, msk.counter);
+        }
+    }
+
+    private Block reserve(int start, int end) throws IOException {
+        writeRecord(end);
+        reserved = end;
+        synchronized (msk) {
+            msk.counter = Math.max(msk.counter, end);
+        }
+        return new Block(start, end);
+    }
+
+    private void writeRecord(int end) throws IOException {
+        if (position + RECORD_LENGTH > journal.capacity()) {
+            map(journal.capacity() * 2L);
+        }
+        journal.putLong(position + 8, checksum(end));
+        journal.putLong(position, end);
+        journal.force();
+        position += RECORD_LENGTH;
+    }
+
+    /**
+     * Returns the next index in order and reserves a new block if necessary.
+     * @return Fresh user index
+     * @throws IOException Journal couldn't be written
+     * @throws IllegalStateException if all the user indexes are used
+     */
+    public synchronized int next() throws IOException {
+        if (current == null || !current.hasNext()) {
+            current = allocateBlock();
+        }
+        return current.next();
+    }
+
+    /**
+     * @return Number of reserved indexes (handed out or part of a handed out block)
+     */
+    public synchronized int getReserved() {
+        return reserved;
+    }
+
+    /**
+     * @return Number of indexes that are handed out, blocks taken with
+     *          {@link #allocateBlock()} count as a whole
+     */
+    public synchronized int getUsed() {
+        return reserved - (current == null ? 0 : current.remaining());
+    }
+
+    public int getMaxUsers() {
+        return maxUsers;
+    }
+
+    /**
+     * @return Fraction of {@link AbeSecretMasterKey#getMaxUsers()} that is handed out, see {@link #getUsed()}
+     */
+    public double getUsage() {
+        return getUsed() / (double) maxUsers;
+    }
+
+    /**
+     * Gives the unused rest of the block of {@link #next()} back if nothing
+     * was reserved behind it and closes the journal.
+     * @throws IOException The journal couldn't be written or closed
+     */
+    public synchronized void close() throws IOException {
+        try {
+            if (current != null && current.hasNext() && current.end == reserved) {
+                synchronized (msk) {
+                    if (msk.counter == reserved) {
+                        writeRecord(current.next);
+                        reserved = current.next;
+                        msk.counter = reserved;
+                    }
+                }
+                current = null;
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -4,9 +4,6 @@ import it.unisa.dia.gas.jpbc.Element;
 import it.unisa.dia.gas.plaf.jpbc.pairing.PairingFactory;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -16,13 +13,21 @@ import java.io.OutputStream;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import trabe.lw14.CipherText;
 import trabe.lw14.Lw14;
+import trabe.lw14.Lw14EncryptionPreprocessing;
+import trabe.lw14.RevocationContext;
 import trabe.policy.AttributeParser;
 import trabe.policyparser.ParseException;
 
 public class Cpabe {
+    /** the policy header is usually small, there is no need to read ahead a lot **/
+    private static final int HEADER_BUFFER_SIZE = 4096;
+
 	static {
         try {
             System.loadLibrary("jpbc-pbc");
@@ -58,6 +63,22 @@ public class Cpabe {
         masterKey.getPublicKey().writeToFile(publicKeyFile);
     }
 
+    /**
+     * Sets up a large system in parallel and writes the public key in the
+     * sectioned format (see {@link AbePublicKey#writeSectioned(File)}), so that
+     * clients can read only the rows and columns they need.
+     * @param users                  Number of users
+     * @param threads                Number of worker threads
+     * @param publicKeyFile          Destination of the sectioned public key
+     * @param secretMasterKeyFile    Destination of the secret master key
+     * @throws IOException Files couldn't be written
+     */
+    public static void setupSectioned(int users, int threads, File publicKeyFile, File secretMasterKeyFile) throws IOException {
+        AbeSecretMasterKey masterKey = Lw14.setup(users, threads);
+        masterKey.writeToFile(secretMasterKeyFile);
+        masterKey.getPublicKey().writeSectioned(publicKeyFile);
+    }
+
     /**
      * Generates a user secret component
      * @param secretMaster    master key
@@ -112,6 +133,63 @@ public class Cpabe {
         return Lw14.keygen(secretMaster, sigmaAndPosition, splitAttributes);
     }
 
+    /**
+     * Generates a private key with a position from the journaled allocator.
+     * @param secretMaster    Secret master key
+     * @param attributes      Attribute string
+     * @param allocator       User index allocator of the master key
+     * @return Private key
+     * @throws ParseException Attribute string couldn't be parsed
+     * @throws IOException The journal of the allocator couldn't be written
+     */
+    public static AbePrivateKey keygenSingle(AbeSecretMasterKey secretMaster, String attributes,
+                                             AbeUserIndexAllocator allocator) throws ParseException, IOException {
+        String parsedAttributes = AttributeParser.parseAttributes(attributes);
+        String[] splitAttributes = parsedAttributes.split(" ");
+        Pair<Element, Integer> sigmaAndPosition = Lw14.generateUserSecretComponent(secretMaster, allocator);
+        return Lw14.keygen(secretMaster, sigmaAndPosition, splitAttributes);
+    }
+
+    /**
+     * Generates the private keys for many users in parallel. All attribute
+     * strings are parsed before any user position is assigned.
+     * @param secretMaster      Secret master key
+     * @param userAttributes    Attribute string for each user identifier
+     * @param threads           Number of worker threads
+     * @return Private key for each user identifier (same iteration order)
+     * @throws ParseException   Attribute string of a user couldn't be parsed
+     */
+    public static Map<String, AbePrivateKey> keygenBulk(AbeSecretMasterKey secretMaster, Map<String, String> userAttributes, int threads) throws ParseException {
+        return keygenBulk(secretMaster, userAttributes, threads, null);
+    }
+
+    /**
+     * Same as {@link #keygenBulk(AbeSecretMasterKey, Map, int)}, but the
+     * user positions are one range of the journaled allocator, reserved per
+     * call and assigned in iteration order.
+     * @param secretMaster      Secret master key
+     * @param userAttributes    Attribute string for each user identifier
+     * @param threads           Number of worker threads
+     * @param allocator         User index allocator of the master key (may be null)
+     * @return Private key for each user identifier (same iteration order)
+     * @throws ParseException   Attribute string of a user couldn't be parsed
+     */
+    public static Map<String, AbePrivateKey> keygenBulk(AbeSecretMasterKey secretMaster, Map<String, String> userAttributes, int threads,
+                                                        AbeUserIndexAllocator allocator) throws ParseException {
+        List<String[]> splitAttributes = new ArrayList<String[]>(userAttributes.size());
+        for (String attributes : userAttributes.values()) {
+            splitAttributes.add(AttributeParser.parseAttributes(attributes).split(" "));
+        }
+        List<AbePrivateKey> keys = Lw14.keygen(secretMaster, splitAttributes, threads, allocator);
+
+        Map<String, AbePrivateKey> result = new LinkedHashMap<String, AbePrivateKey>(userAttributes.size());
+        int i = 0;
+        for (String user : userAttributes.keySet()) {
+            result.put(user, keys.get(i++));
+        }
+        return result;
+    }
+
     public static void keygenSingle(File privateFile, File secretMasterFile, String attributes) throws IOException, ParseException {
         AbeSecretMasterKey secretKey = AbeSecretMasterKey.readFromFile(secretMasterFile);
         AbePrivateKey prv = keygenSingle(secretKey, attributes);
@@ -124,19 +202,42 @@ public class Cpabe {
     }
     
 	public static byte[] decrypt(AbePrivateKey privateKey, AbeEncrypted encryptedData) throws AbeDecryptionException, IOException {
-	  	ByteArrayOutputStream out = new ByteArrayOutputStream();
-	  	encryptedData.writeDecryptedData(privateKey, out);
-	  	return out.toByteArray();
+	  	return encryptedData.decrypt(privateKey, null);
 	}
 
+    /**
+     * Decrypts a serialized ciphertext (see {@link AbeEncrypted#writeEncryptedData(AbePublicKey, byte[], int)})
+     * without wrapping the ciphertext in streams.
+     * @param privateKey    Private key
+     * @param encrypted     Serialized ciphertext
+     * @return Plaintext
+     * @throws AbeDecryptionException Decryption failed
+     * @throws IOException The header couldn't be parsed
+     */
+    public static byte[] decrypt(AbePrivateKey privateKey, byte[] encrypted) throws AbeDecryptionException, IOException {
+        return AbeEncrypted.read(encrypted, privateKey.getPublicKey()).decrypt(privateKey, null);
+    }
+
     public static void decrypt(File privateKeyFile, File encryptedFile, File decryptedFile) throws IOException, AbeDecryptionException {
         AbePrivateKey privateKey = AbePrivateKey.readFromFile(privateKeyFile);
-        BufferedInputStream in = null;
-        BufferedOutputStream out = null;
+        decrypt(privateKey, encryptedFile, decryptedFile);
+    }
+
+    /**
+     * Decrypts a file over file channels, see {@link AbeChannels}.
+     * @param privateKey       Private key
+     * @param encryptedFile    Encrypted file
+     * @param decryptedFile    Plaintext file
+     * @throws IOException Files couldn't be read or written
+     * @throws AbeDecryptionException Decryption failed
+     */
+    public static void decrypt(AbePrivateKey privateKey, File encryptedFile, File decryptedFile) throws IOException, AbeDecryptionException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
         try {
-	        in = new BufferedInputStream(new FileInputStream(encryptedFile));
-	        out = new BufferedOutputStream(new FileOutputStream(decryptedFile));
-	        decrypt(privateKey, in, out);
+	        in = new FileInputStream(encryptedFile);
+	        out = new FileOutputStream(decryptedFile);
+	        AbeChannels.decrypt(privateKey, in.getChannel(), out.getChannel());
         } finally {
         	if (out != null) 
         		out.close();
@@ -177,7 +278,43 @@ public class Cpabe {
     }
 
     public static AbeEncrypted encrypt(AbePublicKey publicKey, String policy, InputStream input, int[] revokedUserIndexes, int userIndex) throws AbeEncryptionException, IOException {
-        Pair<CipherText, Element> ctak = Lw14.encrypt(publicKey, policy, revokedUserIndexes, userIndex);
+        return encrypt(publicKey, policy, input, revokedUserIndexes, userIndex, null);
+    }
+
+    /**
+     * Encrypts with fixed-base tables that are shared between many encryptions
+     * under the same public key.
+     * @param publicKey             Public key
+     * @param policy                Policy as a boolean formula
+     * @param input                 Plaintext
+     * @param revokedUserIndexes    Revoked users by index
+     * @param userIndex             Index of the first user that is eligible for the encrypted data
+     * @param preprocessing         Shared preprocessing (may be null)
+     * @return Encrypted data
+     * @throws AbeEncryptionException Encryption failed
+     * @throws IOException Plaintext couldn't be read
+     */
+    public static AbeEncrypted encrypt(AbePublicKey publicKey, String policy, InputStream input, int[] revokedUserIndexes, int userIndex,
+                                       Lw14EncryptionPreprocessing preprocessing) throws AbeEncryptionException, IOException {
+        return encrypt(publicKey, policy, input, new RevocationContext(publicKey, revokedUserIndexes), userIndex, preprocessing);
+    }
+
+    /**
+     * Encrypts with a revocation context and fixed-base tables that are both
+     * shared between many encryptions under the same public key.
+     * @param publicKey        Public key
+     * @param policy           Policy as a boolean formula
+     * @param input            Plaintext
+     * @param revocation       Revoked users, see {@link RevocationContext}
+     * @param userIndex        Index of the first user that is eligible for the encrypted data
+     * @param preprocessing    Shared preprocessing (may be null)
+     * @return Encrypted data
+     * @throws AbeEncryptionException Encryption failed
+     * @throws IOException Plaintext couldn't be read
+     */
+    public static AbeEncrypted encrypt(AbePublicKey publicKey, String policy, InputStream input, RevocationContext revocation, int userIndex,
+                                       Lw14EncryptionPreprocessing preprocessing) throws AbeEncryptionException, IOException {
+        Pair<CipherText, Element> ctak = AbePairingExecutor.encrypt(publicKey, policy, revocation, userIndex, preprocessing);
         CipherText cipherText = ctak.getFirst();
         Element key = ctak.getSecond();
 
@@ -196,18 +333,49 @@ public class Cpabe {
     }
 
     public static AbeEncrypted encrypt(AbePublicKey publicKey, String policy, byte[] data, int userIndex) throws AbeEncryptionException, IOException {
-    	ByteArrayInputStream byteIn = new ByteArrayInputStream(data);
-    	return encrypt(publicKey, policy, byteIn, userIndex);
+    	return encrypt(publicKey, policy, data, new int[0], userIndex);
     }
 
     public static AbeEncrypted encrypt(AbePublicKey publicKey, String policy, byte[] data, int[] revokedUserIndexes) throws AbeEncryptionException, IOException {
-        ByteArrayInputStream byteIn = new ByteArrayInputStream(data);
-        return encrypt(publicKey, policy, byteIn, revokedUserIndexes);
+        return encrypt(publicKey, policy, data, revokedUserIndexes, 0);
     }
 
     public static AbeEncrypted encrypt(AbePublicKey publicKey, String policy, byte[] data, int[] revokedUserIndexes, int userIndex) throws AbeEncryptionException, IOException {
-        ByteArrayInputStream byteIn = new ByteArrayInputStream(data);
-        return encrypt(publicKey, policy, byteIn, revokedUserIndexes, userIndex);
+        return encrypt(publicKey, policy, data, new RevocationContext(publicKey, revokedUserIndexes), userIndex, null);
+    }
+
+    public static AbeEncrypted encrypt(AbePublicKey publicKey, String policy, byte[] data, RevocationContext revocation) throws AbeEncryptionException, IOException {
+        return encrypt(publicKey, policy, data, revocation, 0, null);
+    }
+
+    /**
+     * Encrypts the data with a single AES call into an exactly sized
+     * ciphertext, which is kept in memory. The returned object can be
+     * serialized and decrypted repeatedly, see {@link AbeEncrypted#isSeekable()}.
+     * @param publicKey        Public key
+     * @param policy           Policy as a boolean formula
+     * @param data             Plaintext
+     * @param revocation       Revoked users, see {@link RevocationContext}
+     * @param userIndex        Index of the first user that is eligible for the encrypted data
+     * @param preprocessing    Shared preprocessing (may be null)
+     * @return Encrypted data
+     * @throws AbeEncryptionException Encryption failed
+     * @throws IOException Never thrown, kept for symmetry with the stream variants
+     */
+    public static AbeEncrypted encrypt(AbePublicKey publicKey, String policy, byte[] data, RevocationContext revocation, int userIndex,
+                                       Lw14EncryptionPreprocessing preprocessing) throws AbeEncryptionException, IOException {
+        Pair<CipherText, Element> ctak = AbePairingExecutor.encrypt(publicKey, policy, revocation, userIndex, preprocessing);
+        CipherText cipherText = ctak.getFirst();
+        Element key = ctak.getSecond();
+
+        if (cipherText == null || key == null) {
+            throw new AbeEncryptionException("ABE Encryption failed");
+        }
+
+        byte[] iv = new byte[16];
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(iv);
+        return AbeEncrypted.createDuringEncryption(iv, null, cipherText, data, key);
     }
 
     public static void encrypt(File publicKeyFile, String policy, File inputFile, File outputFile) throws IOException, AbeEncryptionException {
@@ -216,12 +384,28 @@ public class Cpabe {
 
     public static void encrypt(File publicKeyFile, String policy, File inputFile, File outputFile, int userIndex) throws IOException, AbeEncryptionException {
         AbePublicKey publicKey = AbePublicKey.readFromFile(publicKeyFile);
-        BufferedInputStream in = null;
-        BufferedOutputStream out = null;
+        encrypt(publicKey, policy, inputFile, outputFile, null, userIndex);
+    }
+
+    /**
+     * Encrypts a file over file channels, see {@link AbeChannels}.
+     * @param publicKey     Public key
+     * @param policy        Policy as a boolean formula
+     * @param inputFile     Plaintext file
+     * @param outputFile    Encrypted file
+     * @param revocation    Revoked users (may be null)
+     * @param userIndex     Index of the first user that is eligible for the encrypted data
+     * @throws IOException Files couldn't be read or written
+     * @throws AbeEncryptionException Encryption failed
+     */
+    public static void encrypt(AbePublicKey publicKey, String policy, File inputFile, File outputFile,
+                               RevocationContext revocation, int userIndex) throws IOException, AbeEncryptionException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
         try {
-	        in = new BufferedInputStream(new FileInputStream(inputFile));
-	        out = new BufferedOutputStream(new FileOutputStream(outputFile));
-	        encrypt(publicKey, policy, in, out, userIndex);
+	        in = new FileInputStream(inputFile);
+	        out = new FileOutputStream(outputFile);
+	        AbeChannels.encrypt(publicKey, policy, revocation, userIndex, in.getChannel(), out.getChannel());
         } finally {
         	if (out != null) 
         		out.close();
@@ -232,6 +416,7 @@ public class Cpabe {
 
     /**
      * Returns true if the given privateKey is able to decrypt the cipher of the given File, false otherwise.
+     * Only the policy header at the start of the file is read.
      * 
      * @param privateKey    Private key
      * @param file          the input stream of the file
@@ -241,55 +426,119 @@ public class Cpabe {
      */
     public static boolean canDecrypt(AbePrivateKey privateKey, File file)
             throws ParseException, IOException {
-    	FileInputStream fis = new FileInputStream(file);
-    	AbeEncrypted encrypted = AbeEncrypted.readFromStream(privateKey.getPublicKey(), fis);
-    	return Lw14.canDecrypt(privateKey, encrypted.getCipher());
+        InputStream in = new BufferedInputStream(new FileInputStream(file), HEADER_BUFFER_SIZE);
+        try {
+            return canDecrypt(privateKey, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Checks whether the private key satisfies the policy of the encrypted
+     * stream. Only the policy header of the ciphertext is read if it is
+     * available. The stream is not closed.
+     * @param privateKey    Private key
+     * @param input         Stream positioned at the start of an encrypted file
+     * @return Private key satisfies the policy
+     * @throws ParseException The policy couldn't be parsed
+     * @throws IOException The stream couldn't be read
+     */
+    public static boolean canDecrypt(AbePrivateKey privateKey, InputStream input) throws ParseException, IOException {
+        AbeInputStream stream = new AbeInputStream(input, privateKey.getPublicKey());
+        return CipherText.readPolicyEvaluator(stream, privateKey.getPublicKey()).satisfies(privateKey);
+    }
+
+    /**
+     * Scans all the files in the directory (not recursive) and returns those
+     * that the private key can decrypt. Only the policy header of each file is
+     * read. Files that are not readable as encrypted files are skipped.
+     * @param privateKey    Private key
+     * @param directory     Directory with encrypted files
+     * @return Files with a policy that the private key satisfies
+     */
+    public static List<File> findDecryptable(AbePrivateKey privateKey, File directory) {
+        List<File> result = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return result;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            try {
+                if (canDecrypt(privateKey, file)) {
+                    result.add(file);
+                }
+            } catch (IOException e) {
+                // not an encrypted file
+            } catch (ParseException e) {
+                // not an encrypted file
+            } catch (RuntimeException e) {
+                // malformed content
+            }
+        }
+        return result;
     }
 
     /**
      * Calculates the indexes of users that lended their keys to the decryption blackbox.
+     * The probes run on all available processors.
      * @param pub            Public key
      * @param policy         policy to try
      * @param blackBox       Decryption black box (wrapper to contact the blackbox machine)
-     * @param probability    probability??
+     * @param probability    Probability with which the black box decrypts ciphertexts of the policy
      * @return  Indexes of all traced users (traitors)
-     * @throws IOException See {@link #encrypt(AbePublicKey, String, byte[], int)}
-     * @throws AbeEncryptionException See {@link #encrypt(AbePublicKey, String, byte[], int)}
+     * @throws IOException See {@link AbeTracer#trace(double)}
+     * @throws AbeEncryptionException See {@link AbeTracer#trace(double)}
      */
     public static ArrayList<Integer> trace(AbePublicKey pub, String policy,
                                            DecryptionBlackBox blackBox, double probability)
             throws IOException, AbeEncryptionException {
-        // TODO: add revocation
-        SecureRandom random = new SecureRandom();
-        byte[] message = new byte[50]; // not a multiple of the block size
-        int N = pub.getMaxUsers();
-        int[] p_k = new int[N+1];
-        double lambda = 0.1; // TODO
-        int repeat = (int)Math.ceil(8 * lambda * Math.pow(N / probability, 2));
-        System.out.println("Users: " + N + " repeated: " + repeat);
-        for(int k = 0; k < N + 1; k++) {
-            System.out.println("began with " + k);
-            int counter = 0;
-            for(int i = 0; i < repeat; i++) {
-                random.nextBytes(message);
-                AbeEncrypted ct = encrypt(pub, policy, message, k);
-                byte[] decrypted = blackBox.decrypt(ct);
-                if (Arrays.equals(message, decrypted)) {
-                    counter++;
-                }
-            }
-            p_k[k] = counter;
-        }
-
-        ArrayList<Integer> result = new ArrayList<Integer>();
-        double threshold = probability/(4*N);
+        return trace(pub, policy, blackBox, probability, Runtime.getRuntime().availableProcessors(), null);
+    }
 
-        for(int k = 0; k < N; k++) {
-            if (p_k[k] - p_k[k+1] >= threshold) {
-                result.add(k);
-            }
-        }
+    /**
+     * Calculates the indexes of users that lended their keys to the decryption blackbox.
+     * @param pub            Public key
+     * @param policy         policy to try
+     * @param blackBox       Decryption black box (has to be thread-safe if more than one thread is used)
+     * @param probability    Probability with which the black box decrypts ciphertexts of the policy
+     * @param threads        Number of worker threads for the probes
+     * @param callback       Receives the progress (may be null)
+     * @return  Indexes of all traced users (traitors)
+     * @throws IOException See {@link AbeTracer#trace(double)}
+     * @throws AbeEncryptionException See {@link AbeTracer#trace(double)}
+     */
+    public static ArrayList<Integer> trace(AbePublicKey pub, String policy, DecryptionBlackBox blackBox,
+                                           double probability, int threads, AbeTracer.ProgressCallback callback)
+            throws IOException, AbeEncryptionException {
+        return trace(pub, policy, blackBox, probability, threads, callback, null);
+    }
 
-        return result;
+    /**
+     * Calculates the indexes of users that lended their keys to the decryption blackbox
+     * with probes that exclude the revoked users.
+     * @param pub            Public key
+     * @param policy         policy to try
+     * @param blackBox       Decryption black box (has to be thread-safe if more than one thread is used)
+     * @param probability    Probability with which the black box decrypts ciphertexts of the policy
+     * @param threads        Number of worker threads for the probes
+     * @param callback       Receives the progress (may be null)
+     * @param revocation     Revoked users, see {@link RevocationContext} (may be null)
+     * @return  Indexes of all traced users (traitors)
+     * @throws IOException See {@link AbeTracer#trace(double)}
+     * @throws AbeEncryptionException See {@link AbeTracer#trace(double)}
+     */
+    public static ArrayList<Integer> trace(AbePublicKey pub, String policy, DecryptionBlackBox blackBox,
+                                           double probability, int threads, AbeTracer.ProgressCallback callback,
+                                           RevocationContext revocation)
+            throws IOException, AbeEncryptionException {
+        AbeTracer tracer = new AbeTracer(pub, policy, blackBox, threads);
+        tracer.setProgressCallback(callback);
+        tracer.setRevocation(revocation);
+        return new ArrayList<Integer>(tracer.trace(probability));
     }
 }
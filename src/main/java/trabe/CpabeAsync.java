@@ -0,0 +1,528 @@
+package trabe;
+
+import it.unisa.dia.gas.jpbc.Element;
+import trabe.lw14.CipherText;
+import trabe.lw14.Lw14;
+import trabe.lw14.Lw14EncryptionPreprocessing;
+import trabe.lw14.RevocationContext;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade for {@link Cpabe}. Every operation returns immediately
+ * with a {@link Future} and optionally reports the result to a
+ * {@link Callback}, so the calling thread (e.g. a request thread of a web
+ * server) is never blocked by the pairing computations or the file I/O.
+ *
+ * <p>The pairing computations run on a fixed compute pool (one thread per
+ * processor by default). Reading and writing files and streaming the
+ * symmetric encryption run on a separate I/O pool, so slow disks don't
+ * occupy compute threads. File operations are split into stages which hop
+ * between the two pools.</p>
+ *
+ * <p>The number of operations in flight is bounded. If the bound is reached,
+ * new operations are rejected with a {@link RejectedExecutionException}
+ * instead of queueing up without limit, so callers can shed load.</p>
+ */
+public class CpabeAsync {
+
+    /**
+     * Receives the outcome of an operation. The methods are called on a pool
+     * thread and should return quickly.
+     * @param <T> Type of the result
+     */
+    public interface Callback<T> {
+        void completed(T result);
+
+        void failed(Throwable cause);
+    }
+
+    public static final int DEFAULT_MAX_PENDING = 256;
+
+    private final ExecutorService computePool;
+    private final ExecutorService ioPool;
+    private final Semaphore pending;
+    private final int maxPending;
+    /** guards admission against the shutdown of idle pools **/
+    private final Object admission = new Object();
+    private boolean shutdown = false;
+    private final SecureRandom random = new SecureRandom();
+
+    private AbePublicKey preprocessedKey = null;
+    private Lw14EncryptionPreprocessing preprocessing = null;
+
+    public CpabeAsync() {
+        this(Runtime.getRuntime().availableProcessors(), 4, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param computeThreads    Threads for the pairing computations
+     * @param ioThreads         Threads for the file and stream I/O
+     * @param maxPending        Maximum number of operations in flight
+     */
+    public CpabeAsync(int computeThreads, int ioThreads, int maxPending) {
+        if (computeThreads < 1 || ioThreads < 1 || maxPending < 1) {
+            throw new IllegalArgumentException("Thread counts and the maximum of pending operations must be positive");
+        }
+        computePool = Executors.newFixedThreadPool(computeThreads, new PoolThreadFactory("cpabe-compute"));
+        ioPool = Executors.newFixedThreadPool(ioThreads, new PoolThreadFactory("cpabe-io"));
+        this.maxPending = maxPending;
+        pending = new Semaphore(maxPending);
+    }
+
+    /**
+     * Encrypts the data in memory.
+     * @param publicKey     Public key
+     * @param policy        Policy as a boolean formula
+     * @param data          Plaintext
+     * @param revocation    Revoked users (may be null)
+     * @param callback      Callback (may be null)
+     * @return Future of the serialized ciphertext, see {@link AbeEncrypted#read(byte[], AbePublicKey)}
+     * @throws RejectedExecutionException Too many operations are pending
+     */
+    public Future<byte[]> encryptAsync(final AbePublicKey publicKey, final String policy, final byte[] data,
+                                       final RevocationContext revocation, Callback<byte[]> callback) {
+        final AsyncResult<byte[]> result = admit(callback);
+        computePool.execute(new Stage(result) {
+            @Override
+            void execute() throws Exception {
+                Pair<CipherText, Element> ctak = abeEncrypt(publicKey, policy, revocation);
+                AbeEncrypted encrypted = AbeEncrypted.createDuringEncryption(newIv(), ctak.getFirst(),
+                        new ByteArrayInputStream(data), ctak.getSecond());
+                result.complete(encrypted.writeEncryptedData(publicKey));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Decrypts a serialized ciphertext in memory.
+     * @param privateKey    Private key
+     * @param ciphertext    Serialized ciphertext
+     * @param callback      Callback (may be null)
+     * @return Future of the plaintext
+     * @throws RejectedExecutionException Too many operations are pending
+     */
+    public Future<byte[]> decryptAsync(final AbePrivateKey privateKey, final byte[] ciphertext, Callback<byte[]> callback) {
+        final AsyncResult<byte[]> result = admit(callback);
+        computePool.execute(new Stage(result) {
+            @Override
+            void execute() throws Exception {
+                AbeEncrypted encrypted = AbeEncrypted.read(ciphertext, privateKey.getPublicKey());
+                result.complete(Cpabe.decrypt(privateKey, encrypted));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Encrypts a file. The ABE ciphertext is created on the compute pool,
+     * then the file is encrypted and written on the I/O pool.
+     * @param publicKey     Public key
+     * @param policy        Policy as a boolean formula
+     * @param input         Plaintext file
+     * @param output        Encrypted file
+     * @param revocation    Revoked users (may be null)
+     * @param callback      Callback (may be null)
+     * @return Future which is done when the file is written
+     * @throws RejectedExecutionException Too many operations are pending
+     */
+    public Future<Void> encryptAsync(final AbePublicKey publicKey, final String policy, final File input, final File output,
+                                     final RevocationContext revocation, Callback<Void> callback) {
+        final AsyncResult<Void> result = admit(callback);
+        computePool.execute(new Stage(result) {
+            @Override
+            void execute() throws Exception {
+                final Pair<CipherText, Element> ctak = abeEncrypt(publicKey, policy, revocation);
+                ioPool.execute(new Stage(result) {
+                    @Override
+                    void execute() throws Exception {
+                        InputStream in = null;
+                        OutputStream out = null;
+                        try {
+                            in = new BufferedInputStream(new FileInputStream(input));
+                            out = new BufferedOutputStream(new FileOutputStream(output));
+                            AbeEncrypted.createDuringEncryption(newIv(), ctak.getFirst(), in, ctak.getSecond())
+                                    .writeEncryptedFile(out, publicKey);
+                            out.flush();
+                        } finally {
+                            close(out);
+                            close(in);
+                        }
+                        result.complete(null);
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Decrypts a file. The header is read on the I/O pool, the secret is
+     * recovered on the compute pool and the data is decrypted and written on
+     * the I/O pool again.
+     * @param privateKey    Private key
+     * @param input         Encrypted file
+     * @param output        Plaintext file
+     * @param callback      Callback (may be null)
+     * @return Future which is done when the file is written
+     * @throws RejectedExecutionException Too many operations are pending
+     */
+    public Future<Void> decryptAsync(final AbePrivateKey privateKey, final File input, final File output,
+                                     Callback<Void> callback) {
+        final AsyncResult<Void> result = admit(callback);
+        ioPool.execute(new Stage(result) {
+            @Override
+            void execute() throws Exception {
+                final InputStream in = new BufferedInputStream(new FileInputStream(input));
+                boolean handedOver = false;
+                try {
+                    final AbeEncrypted encrypted = AbeEncrypted.readFromStream(privateKey.getPublicKey(), in);
+                    computePool.execute(new Stage(result, in) {
+                        @Override
+                        void execute() throws Exception {
+                            final Element secret = Lw14.decrypt(privateKey, encrypted.getCipher());
+                            ioPool.execute(new Stage(result, in) {
+                                @Override
+                                void execute() throws Exception {
+                                    OutputStream out = null;
+                                    try {
+                                        out = new BufferedOutputStream(new FileOutputStream(output));
+                                        encrypted.writeDecryptedData(secret, null, out);
+                                        out.flush();
+                                    } finally {
+                                        close(out);
+                                        close(in);
+                                    }
+                                    result.complete(null);
+                                }
+                            });
+                        }
+                    });
+                    handedOver = true;
+                } finally {
+                    // the next stages close the stream
+                    if (!handedOver) {
+                        close(in);
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return Number of operations that can still be started before new ones are rejected
+     */
+    public int getAvailableSlots() {
+        return pending.availablePermits();
+    }
+
+    /**
+     * Stops accepting operations. Pending operations are completed and the
+     * pools are shut down after the last one.
+     */
+    public void shutdown() {
+        synchronized (admission) {
+            shutdown = true;
+        }
+        shutdownPoolsIfIdle();
+    }
+
+    /**
+     * Waits until all the operations are completed after {@link #shutdown()}.
+     * @param timeout    Maximum time to wait
+     * @param unit       Unit of the timeout
+     * @return All the operations are completed
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean terminated = computePool.awaitTermination(timeout, unit);
+        return terminated && ioPool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The stages of an operation submit to both pools, so the pools may only
+     * be shut down when no operation is pending anymore. The check runs under
+     * the same lock as {@link #admit(Callback)}, so an operation is either
+     * admitted before the pools are found idle or rejected.
+     */
+    private void shutdownPoolsIfIdle() {
+        synchronized (admission) {
+            if (shutdown && pending.availablePermits() == maxPending) {
+                computePool.shutdown();
+                ioPool.shutdown();
+            }
+        }
+    }
+
+    private <T> AsyncResult<T> admit(Callback<T> callback) {
+        synchronized (admission) {
+            if (shutdown) {
+                throw new RejectedExecutionException("The facade is shut down");
+            }
+            if (!pending.tryAcquire()) {
+                throw new RejectedExecutionException("Too many pending ABE operations");
+            }
+        }
+        return new AsyncResult<T>(callback);
+    }
+
+    private Pair<CipherText, Element> abeEncrypt(AbePublicKey publicKey, String policy, RevocationContext revocation)
+            throws AbeEncryptionException {
+        Lw14EncryptionPreprocessing epp = getPreprocessing(publicKey);
+        Pair<CipherText, Element> ctak;
+        if (revocation != null) {
+            ctak = Lw14.encrypt(publicKey, policy, revocation, 0, epp);
+        } else {
+            ctak = Lw14.encrypt(publicKey, policy, new int[0], 0, epp);
+        }
+        if (ctak.getFirst() == null || ctak.getSecond() == null) {
+            throw new AbeEncryptionException("ABE Encryption failed");
+        }
+        return ctak;
+    }
+
+    /**
+     * The fixed-base tables are kept for the last public key, which is usually
+     * the only one.
+     */
+    private synchronized Lw14EncryptionPreprocessing getPreprocessing(AbePublicKey publicKey) {
+        if (!AbeSettings.PREPROCESSING) {
+            return null;
+        }
+        if (preprocessedKey != publicKey) {
+            preprocessing = new Lw14EncryptionPreprocessing(publicKey);
+            preprocessedKey = publicKey;
+        }
+        return preprocessing;
+    }
+
+    private byte[] newIv() {
+        byte[] iv = new byte[16];
+        synchronized (random) {
+            random.nextBytes(iv);
+        }
+        return iv;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Step of an operation. Failures complete the operation and close the
+     * resources that are passed on between the steps. Steps of cancelled
+     * operations are skipped, the first skipped step ends the operation.
+     */
+    private static abstract class Stage implements Runnable {
+        private final AsyncResult<?> result;
+        private final Closeable resource;
+
+        Stage(AsyncResult<?> result) {
+            this(result, null);
+        }
+
+        Stage(AsyncResult<?> result, Closeable resource) {
+            this.result = result;
+            this.resource = resource;
+        }
+
+        abstract void execute() throws Exception;
+
+        @Override
+        public final void run() {
+            if (result.isDone()) {
+                // cancelled, no step follows this one
+                close(resource);
+                result.release();
+                return;
+            }
+            try {
+                execute();
+            } catch (Throwable t) {
+                close(resource);
+                result.fail(t);
+            }
+        }
+    }
+
+    /**
+     * Future which is completed by the last stage of an operation. The slot
+     * of the operation is released when its stages are over, which is after
+     * the last stage or, for cancelled operations, when the next stage is
+     * skipped. So the pools aren't shut down while a stage of a cancelled
+     * operation is still running or queued. The callback is called before
+     * waiting threads are woken up.
+     */
+    private class AsyncResult<T> implements Future<T> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final Callback<T> callback;
+        private boolean finished = false;
+        private boolean cancelled = false;
+        private boolean released = false;
+        private T value;
+        private Throwable failure;
+
+        AsyncResult(Callback<T> callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * Called by the last stage, which doesn't schedule any other stage.
+         */
+        void complete(T value) {
+            boolean outcome = finish(value, null, false);
+            release();
+            if (outcome) {
+                try {
+                    if (callback != null) {
+                        callback.completed(value);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        /**
+         * Called by a failed stage, which doesn't schedule any other stage.
+         */
+        void fail(Throwable failure) {
+            boolean outcome = finish(null, failure, false);
+            release();
+            if (outcome) {
+                try {
+                    if (callback != null) {
+                        callback.failed(failure);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        /**
+         * Releases the slot once the stages of the operation are over.
+         */
+        void release() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            pending.release();
+            shutdownPoolsIfIdle();
+        }
+
+        private synchronized boolean finish(T value, Throwable failure, boolean cancelled) {
+            if (finished) {
+                return false;
+            }
+            finished = true;
+            this.value = value;
+            this.failure = failure;
+            this.cancelled = cancelled;
+            return true;
+        }
+
+        /**
+         * Skips the remaining stages. A stage that is already running is
+         * not interrupted and the slot is kept until it is over.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (finish(null, null, true)) {
+                try {
+                    if (callback != null) {
+                        callback.failed(new CancellationException());
+                    }
+                } finally {
+                    done.countDown();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return finished;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            done.await();
+            return report();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        private synchronized T report() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return value;
+        }
+    }
+
+    private static class PoolThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        PoolThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
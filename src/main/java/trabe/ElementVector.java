@@ -150,7 +150,56 @@ public class ElementVector {
      * @return Product
      */
     public Element scalar(ElementVector v) {
-        return duplicate().mul(v).sum();
+        return scalar(v, vector[0].getField().newElement());
+    }
+
+    /**
+     * Computes the scalar product between two vectors and writes it into the
+     * passed element. Neither vector is manipulated and only a single temporary
+     * element is created.
+     *
+     * @param v         Second vector
+     * @param target    Element that receives the product (must not be a component of either vector)
+     * @return target
+     */
+    public Element scalar(ElementVector v, Element target) {
+        if (dimension != v.getDimension()) {
+            return null;
+        }
+        target.set(vector[0]).mul(v.get(0));
+        Element temp = target.duplicate();
+        for(int i = 1; i < dimension; i++){
+            target.add(temp.set(vector[i]).mul(v.get(i)));
+        }
+        return target;
+    }
+
+    /**
+     * Computes <code>this * e + v</code> component wise and writes the result
+     * into the target vector. Neither the current vector nor the addend is
+     * manipulated unless it is passed as the target. Components of the target
+     * vector are reused and only created if they are <code>null</code>.
+     *
+     * @param e         Scalar to multiply with
+     * @param v         Vector to add
+     * @param target    Vector that receives the result (may be this or v)
+     * @return target
+     */
+    public ElementVector mulAdd(Element e, ElementVector v, ElementVector target) {
+        if (dimension != v.getDimension() || dimension != target.getDimension()) {
+            return null;
+        }
+        Element temp = e.getField().newElement();
+        for(int i = 0; i < dimension; i++){
+            // complete the component before writing it, the target may be v
+            temp.set(vector[i]).mul(e).add(v.get(i));
+            if (target.get(i) == null) {
+                target.set(i, temp.duplicate());
+            } else {
+                target.get(i).set(temp);
+            }
+        }
+        return target;
     }
 
     /**
@@ -203,11 +252,61 @@ public class ElementVector {
      * @return New vector
      */
     public ElementVector powInBase(Element base) {
-        Element[] newVector = new Element[dimension];
+        return powInBase(base, new ElementVector(dimension));
+    }
+
+    /**
+     * Raises the passed base element to each of the current vector's components
+     * and writes the result into the target vector. Components of the target
+     * vector are reused and only created if they are <code>null</code>. Neither
+     * the current vector nor the base will be manipulated.
+     * @param base      Base for each component
+     * @param target    Vector that receives the result (must not be this)
+     * @return target
+     */
+    public ElementVector powInBase(Element base, ElementVector target) {
+        if (dimension != target.getDimension()) {
+            return null;
+        }
         for(int i = 0; i < dimension; i++){
-            newVector[i] = base.duplicate().powZn(vector[i]);
+            if (target.get(i) == null) {
+                target.set(i, base.duplicate().powZn(vector[i]));
+            } else {
+                target.get(i).set(base).powZn(vector[i]);
+            }
         }
-        return new ElementVector(newVector);
+        return target;
+    }
+
+    /**
+     * Computes <code>g^a_i * h^b_i</code> for every component and writes the
+     * result into the target vector. This replaces the chain
+     * <code>a.powInBase(g).mul(b.powInBase(h))</code> which creates two
+     * intermediate vectors. Components of the target vector are reused and only
+     * created if they are <code>null</code>. None of the inputs will be
+     * manipulated.
+     * @param g         First base
+     * @param a         Exponents for the first base
+     * @param h         Second base
+     * @param b         Exponents for the second base
+     * @param target    Vector that receives the result (must not be a or b)
+     * @return target
+     */
+    public static ElementVector powInBases(Element g, ElementVector a, Element h, ElementVector b, ElementVector target) {
+        int dimension = target.getDimension();
+        if (dimension != a.getDimension() || dimension != b.getDimension()) {
+            return null;
+        }
+        Element temp = h.duplicate();
+        for(int i = 0; i < dimension; i++){
+            if (target.get(i) == null) {
+                target.set(i, g.duplicate().powZn(a.get(i)));
+            } else {
+                target.get(i).set(g).powZn(a.get(i));
+            }
+            target.get(i).mul(temp.set(h).powZn(b.get(i)));
+        }
+        return target;
     }
 
     /**
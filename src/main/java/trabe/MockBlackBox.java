@@ -32,12 +32,14 @@ public class MockBlackBox extends DecryptionBlackBox {
     public byte[] decrypt(AbeEncrypted ct) {
         for(AbePrivateKey key : userKeys) {
             try {
-                String privKeyAttrs = "";
-                for (String privKeyAttr : key.getAttributeSet()) {
-                    privKeyAttrs += privKeyAttr + " ";
-                }
                 if (Lw14.canDecrypt(key, ct.getCipher())) {
-                    System.out.println(privKeyAttrs + " [" + key.position.counter + "] [" + key.position.i + " , "+ key.position.j + "] can decrypt policy: " + ct.getCipher().policy);
+                    if (AbeSettings.DEBUG) {
+                        String privKeyAttrs = "";
+                        for (String privKeyAttr : key.getAttributeSet()) {
+                            privKeyAttrs += privKeyAttr + " ";
+                        }
+                        System.out.println(privKeyAttrs + " [" + key.position.counter + "] [" + key.position.i + " , "+ key.position.j + "] can decrypt policy: " + ct.getCipher().policy);
+                    }
                     return Cpabe.decrypt(key, ct);
                 }
             } catch (Exception ignored) {
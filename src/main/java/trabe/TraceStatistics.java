@@ -0,0 +1,96 @@
+package trabe;
+
+/**
+ * Success counts of the probes per user index during a trace and the
+ * sequential test whether the success rate drops between two indexes.
+ *
+ * <p>The confidence radius of a rate is the empirical Bernstein bound
+ * <code>sqrt(2 V L / n) + 7 L / (3 (n - 1))</code> with the sample variance
+ * <code>V</code> and <code>L = ln(2 (N + 1) n (n + 1) / delta)</code>. In
+ * contrast to the Hoeffding bound it shrinks with <code>1 / n</code> for
+ * black boxes that (almost) always or never decrypt, which is the common
+ * case.</p>
+ *
+ * <p>The bounds are checked again after every batch, so the error
+ * probability is spent over the indexes and over the sample sizes: the bound
+ * for an index after <code>n</code> probes may fail with probability
+ * <code>delta / ((N + 1) n (n + 1))</code>, which sums up to
+ * <code>delta</code> over all the indexes and sample sizes. Stopping as soon
+ * as the bounds decide therefore keeps the error probability.</p>
+ */
+public class TraceStatistics {
+    private final long[] probes;
+    private final long[] successes;
+    /** ln(2 (N + 1) / delta), the term for the sample size is added per radius **/
+    private final double logTerm;
+
+    /**
+     * @param indexes             Number of user indexes
+     * @param errorProbability    Probability that any of the confidence intervals is wrong
+     */
+    public TraceStatistics(int indexes, double errorProbability) {
+        if (errorProbability <= 0 || errorProbability >= 1) {
+            throw new IllegalArgumentException("Error probability must be in (0, 1)");
+        }
+        probes = new long[indexes];
+        successes = new long[indexes];
+        logTerm = Math.log(2 * indexes / errorProbability);
+    }
+
+    public void add(int index, long newProbes, long newSuccesses) {
+        probes[index] += newProbes;
+        successes[index] += newSuccesses;
+    }
+
+    public long getProbes(int index) {
+        return probes[index];
+    }
+
+    public long getSuccesses(int index) {
+        return successes[index];
+    }
+
+    public double getRate(int index) {
+        return probes[index] == 0 ? 0.0 : successes[index] / (double) probes[index];
+    }
+
+    /**
+     * @param index    User index
+     * @return Radius of the confidence interval around the rate (infinite with less than two probes)
+     */
+    public double getRadius(int index) {
+        long n = probes[index];
+        if (n < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double rate = getRate(index);
+        double variance = rate * (1 - rate) * n / (n - 1);
+        double log = logTerm + Math.log(n) + Math.log(n + 1);
+        return Math.sqrt(2 * variance * log / n) + 7 * log / (3 * (n - 1));
+    }
+
+    /**
+     * Sequential test whether the success rate drops by at least the
+     * threshold from index a to index b.
+     * @param a            Lower index
+     * @param b            Higher index
+     * @param threshold    Minimum drop
+     * @param maxProbes    Probes per index after which the point estimates are used
+     * @return TRUE if the drop is at least the threshold, FALSE if it is lower
+     *          or null if more probes of a or b are needed
+     */
+    public Boolean compareDrop(int a, int b, double threshold, long maxProbes) {
+        double drop = getRate(a) - getRate(b);
+        if (probes[a] >= maxProbes && probes[b] >= maxProbes) {
+            return drop >= threshold;
+        }
+        double radius = getRadius(a) + getRadius(b);
+        if (drop - radius >= threshold) {
+            return Boolean.TRUE;
+        }
+        if (drop + radius < threshold) {
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+}
@@ -5,6 +5,8 @@ import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -26,16 +28,47 @@ public class AesEncryption {
     	//Security.addProvider(new BouncyCastleProvider());
     }
 
+    private static final ThreadLocal<MessageDigest> hashers = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(HASHING_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                System.err.println(HASHING_ALGORITHM + " not provided by runtime environment. Exiting...");
+                System.exit(1);
+            }
+            return null;
+        }
+    };
+
+    /**
+     * Bounded pool of ciphers for the methods which don't hand the cipher
+     * out. A cipher is taken out of the pool while it is in use, calls
+     * beyond the pool size get a fresh instance.
+     */
+    private static final BlockingQueue<Cipher> cachedCiphers = new ArrayBlockingQueue<Cipher>(16);
+
     private static byte[] hash(byte[] cpabeData) {
-        try {
-            MessageDigest sha256 = MessageDigest.getInstance(HASHING_ALGORITHM);
-            return Arrays.copyOf(sha256.digest(cpabeData), AES_KEY_LENGTH);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            System.err.println(HASHING_ALGORITHM + " not provided by runtime environment. Exiting...");
-            System.exit(1);
+        MessageDigest sha256 = hashers.get();
+        return Arrays.copyOf(sha256.digest(cpabeData), AES_KEY_LENGTH); // digest resets the hasher
+    }
+
+    /**
+     * Takes a cached cipher (or a new one) and initializes it.
+     * Has to be returned with {@link #releaseCipher(Cipher)}.
+     */
+    private static Cipher acquireCipher(int mode, byte[] cpabeKey, byte[] lbeKey, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = cachedCiphers.poll();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
         }
-        return null;
+        cipher.init(mode, new SecretKeySpec(combine(cpabeKey, lbeKey), KEY_ALGORITHM), new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    private static void releaseCipher(Cipher cipher) {
+        cachedCiphers.offer(cipher); // the next init resets the state, dropped if the pool is full
     }
     
     private static byte[] combine(byte[] cpabeData, byte[] lbeKey) {
@@ -52,27 +85,58 @@ public class AesEncryption {
     }
 	
 	public static void encrypt(byte[] cpabeKey, byte[] lbeKey, byte[] iv, InputStream input, OutputStream output) throws IOException, AbeEncryptionException {
+        Cipher cipher = null;
         try {
-            CipherInputStream cis = encrypt(cpabeKey, lbeKey, iv, input);
+            cipher = acquireCipher(Cipher.ENCRYPT_MODE, cpabeKey, lbeKey, iv);
             int read;
             byte[] buffer = new byte[BUFFERSIZE];
-            while ((read = cis.read(buffer)) >= 0) {
-            	output.write(buffer, 0, read);
+            byte[] enc = new byte[BUFFERSIZE + 2 * cipher.getBlockSize()];
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(enc, 0, cipher.update(buffer, 0, read, enc));
             }
+            output.write(enc, 0, cipher.doFinal(enc, 0));
             output.close();
-            cis.close();
+            input.close();
         } catch (GeneralSecurityException e) {
             throw new AbeEncryptionException(e.getMessage(), e);
+        } finally {
+            if (cipher != null) {
+                releaseCipher(cipher);
+            }
         }
 	}
 
+    /**
+     * Encrypts the whole array with a single doFinal into an array of exactly
+     * the ciphertext length.
+     */
     public static byte[] encrypt(byte[] cpabeKey, byte[] lbeKey, byte[] iv, byte[] data) throws IOException, AbeEncryptionException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        encrypt(cpabeKey, lbeKey, iv, bais, baos);
-        return baos.toByteArray();
+        Cipher cipher = null;
+        try {
+            cipher = acquireCipher(Cipher.ENCRYPT_MODE, cpabeKey, lbeKey, iv);
+            byte[] output = new byte[cipher.getOutputSize(data.length)]; // exact for a padded block cipher
+            int length = cipher.doFinal(data, 0, data.length, output, 0);
+            return length == output.length ? output : Arrays.copyOf(output, length);
+        } catch (GeneralSecurityException e) {
+            throw new AbeEncryptionException(e.getMessage(), e);
+        } finally {
+            if (cipher != null) {
+                releaseCipher(cipher);
+            }
+        }
     }
 	
+    public static Cipher encrypt(byte[] cpabeKey, byte[] lbeKey, byte[] iv) throws AbeEncryptionException {
+        try {
+            SecretKeySpec skeySpec = new SecretKeySpec(combine(cpabeKey, lbeKey), KEY_ALGORITHM);
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, skeySpec, new IvParameterSpec(iv));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new AbeEncryptionException(e.getMessage(), e);
+        }
+    }
+
 	public static CipherInputStream encrypt(byte[] cpabeKey, byte[] lbeKey, byte[] iv, InputStream input) throws IOException, AbeEncryptionException {
         try {
             SecretKeySpec skeySpec = new SecretKeySpec(combine(cpabeKey, lbeKey), KEY_ALGORITHM);
@@ -108,25 +172,48 @@ public class AesEncryption {
     }
 	
 	public static void decrypt(byte[] cpabeKey, byte[] lbeKey, byte[] iv, InputStream input, OutputStream output) throws IOException, AesDecryptionException {
-        Cipher cipher = decrypt(cpabeKey, lbeKey, iv);
-        int read;
-        byte[] buffer = new byte[BUFFERSIZE];
-        while ((read = input.read(buffer)) >= 0) {
-            byte[] dec = cipher.update(buffer, 0, read);
-            output.write(dec);
-        }
+        Cipher cipher = null;
         try {
-            byte[] dec = cipher.doFinal();
-            output.write(dec);
+            cipher = acquireCipher(Cipher.DECRYPT_MODE, cpabeKey, lbeKey, iv);
+            int read;
+            byte[] buffer = new byte[BUFFERSIZE];
+            byte[] dec = new byte[BUFFERSIZE + 2 * cipher.getBlockSize()]; // space for the buffered block
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(dec, 0, cipher.update(buffer, 0, read, dec));
+            }
+            output.write(dec, 0, cipher.doFinal(dec, 0));
+        } catch (IOException e) {
+            throw e;
         } catch (Exception e) {
             throw new AesDecryptionException(e);
+        } finally {
+            if (cipher != null) {
+                releaseCipher(cipher);
+            }
         }
 	}
 
+    /**
+     * Decrypts the whole array with a single doFinal. The padding is only
+     * known afterwards, so the plaintext is trimmed to its length.
+     */
     public static byte[] decrypt(byte[] cpabeKey, byte[] lbeKey, byte[] iv, byte[] data) throws IOException, AesDecryptionException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        decrypt(cpabeKey, lbeKey, iv, bais, baos);
-        return baos.toByteArray();
+        return decrypt(cpabeKey, lbeKey, iv, data, 0, data.length);
+    }
+
+    public static byte[] decrypt(byte[] cpabeKey, byte[] lbeKey, byte[] iv, byte[] data, int offset, int length) throws IOException, AesDecryptionException {
+        Cipher cipher = null;
+        try {
+            cipher = acquireCipher(Cipher.DECRYPT_MODE, cpabeKey, lbeKey, iv);
+            byte[] output = new byte[length];
+            int written = cipher.doFinal(data, offset, length, output, 0);
+            return written == output.length ? output : Arrays.copyOf(output, written);
+        } catch (GeneralSecurityException e) {
+            throw new AesDecryptionException(e);
+        } finally {
+            if (cipher != null) {
+                releaseCipher(cipher);
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package trabe.benchmark;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import trabe.aes.AesEncryption;
+
+/**
+ * Encrypts and decrypts messages from 100 bytes up to 1 MB, either with
+ * {@link AesEncryption} which reuses its {@link Cipher} and
+ * {@link MessageDigest} per thread, or with a new instance of both for
+ * every message. For small messages the instantiation dominates.
+ */
+public class AesMessageSizeTest extends Benchmark {
+
+	private static final int[] MESSAGE_SIZES = { 100, 1000, 10000, 100000, 1000000 };
+
+	private static final int MESSAGES_PER_RUN = 100;
+
+	private final boolean pooled;
+
+	private byte[] cpabeKey;
+
+	private byte[] iv;
+
+	private byte[] message;
+
+	public AesMessageSizeTest(boolean pooled) {
+		this.pooled = pooled;
+	}
+
+	@Override
+	public void initializeBenchmark() {
+		SecureRandom random = new SecureRandom();
+		cpabeKey = new byte[128];
+		iv = new byte[16];
+		random.nextBytes(cpabeKey);
+		random.nextBytes(iv);
+	}
+
+	@Override
+	public void initializeIteration(int iteration) {
+		message = new byte[MESSAGE_SIZES[iteration]];
+		new SecureRandom().nextBytes(message);
+	}
+
+	@Override
+	public void singleRun(int iteration) {
+		try {
+			for (int i = 0; i < MESSAGES_PER_RUN; i++) {
+				byte[] decrypted;
+				if (pooled) {
+					byte[] encrypted = AesEncryption.encrypt(cpabeKey, null, iv, message);
+					decrypted = AesEncryption.decrypt(cpabeKey, null, iv, encrypted);
+				} else {
+					byte[] encrypted = unpooled(Cipher.ENCRYPT_MODE, message);
+					decrypted = unpooled(Cipher.DECRYPT_MODE, encrypted);
+				}
+				if (decrypted.length != message.length) {
+					throw new RuntimeException("wrong plaintext length");
+				}
+			}
+		} catch (Exception e) {
+			throw new RuntimeException("exception thrown during test", e);
+		}
+	}
+
+	/**
+	 * Same key derivation and cipher as {@link AesEncryption}, but everything
+	 * is instantiated per message.
+	 */
+	private byte[] unpooled(int mode, byte[] input) throws Exception {
+		byte[] key = Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(cpabeKey), 16);
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		return cipher.doFinal(input);
+	}
+
+	@Override
+	public int numWarmupRuns() {
+		return 5;
+	}
+
+	@Override
+	public int numIterations() {
+		return MESSAGE_SIZES.length;
+	}
+
+	@Override
+	public int numRunsPerIteration() {
+		return 10;
+	}
+
+}
@@ -14,6 +14,16 @@ public class BenchmarkRunner {
         runBenchmark(new CpabeKeygenAttributeNumberTest(), new File("bench_CpabeKeygenAttributeNumberTest_2.log"));
 		runBenchmark(new CpabeDecryptionOrAttributeNumberTest(), new File("bench_CpabeDecryptionOrAttributeNumberTest.log"));
 		runBenchmark(new CpabeDecryptionAndAttributeNumberTest(), new File("bench_CpabeDecryptionAndAttributeNumberTest.log"));
+		runBenchmark(new MultiExponentiationBaseNumberTest(false), new File("bench_ChainedExponentiationBaseNumberTest.log"));
+		runBenchmark(new MultiExponentiationBaseNumberTest(true), new File("bench_MultiExponentiationBaseNumberTest.log"));
+		runBenchmark(new Lw14TraceUserNumberTest(), new File("bench_Lw14TraceUserNumberTest.log"));
+		runBenchmark(new CpabeConcurrentDecryptionTest(false), new File("bench_CpabeConcurrentDecryptionTest.log"));
+		runBenchmark(new CpabeConcurrentDecryptionTest(true), new File("bench_CpabeConcurrentDecryptionPairingPoolTest.log"));
+		runBenchmark(new CpabeFileThroughputTest(), new File("bench_CpabeFileThroughputTest.log"));
+		runBenchmark(new AesMessageSizeTest(false), new File("bench_AesMessageSizeTest.log"));
+		runBenchmark(new AesMessageSizeTest(true), new File("bench_AesMessageSizePooledTest.log"));
+		runBenchmark(new EncryptionGtExponentiationTest(false), new File("bench_EncryptionGtExponentiationTest.log"));
+		runBenchmark(new EncryptionGtExponentiationTest(true), new File("bench_EncryptionGtExponentiationTablesTest.log"));
 	}
 
 	public static BenchmarkResult runBenchmark(Benchmark benchmark) {
@@ -0,0 +1,117 @@
+package trabe.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import trabe.AbeEncrypted;
+import trabe.AbePrivateKey;
+import trabe.AbeSecretMasterKey;
+import trabe.AbeSettings;
+import trabe.Cpabe;
+
+/**
+ * Decrypts the same ciphertext from 100, 1000 and 10000 concurrent tasks.
+ * On Java 21 and later every task runs on its own virtual thread, on older
+ * runtimes on its own platform thread. With the pairing pool enabled (see
+ * {@link trabe.AbePairingExecutor}) the tasks only wait for the pairings
+ * instead of running them on their own (carrier) threads.
+ */
+public class CpabeConcurrentDecryptionTest extends Benchmark {
+
+	private static final int[] TASKS = { 100, 1000, 10000 };
+
+	private final boolean pairingPool;
+
+	private int previousPairingThreads;
+
+	private AbeSecretMasterKey msk;
+
+	private AbePrivateKey privateKey;
+
+	private byte[] ciphertext;
+
+	public CpabeConcurrentDecryptionTest(boolean pairingPool) {
+		this.pairingPool = pairingPool;
+	}
+
+	@Override
+	public void initializeBenchmark() {
+		previousPairingThreads = AbeSettings.PAIRING_THREADS;
+		AbeSettings.PAIRING_THREADS = pairingPool ? Runtime.getRuntime().availableProcessors() : 0;
+
+		msk = Cpabe.setup(16);
+		byte[] data = new byte[255];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 256);
+		}
+		try {
+			privateKey = Cpabe.keygenSingle(msk, "a b c");
+			ciphertext = Cpabe.encrypt(msk.getPublicKey(), "a and (b or c)", data).writeEncryptedData(msk.getPublicKey());
+		} catch (Exception e) {
+			throw new RuntimeException("exception thrown during benchmark initialization", e);
+		}
+	}
+
+	@Override
+	public void singleRun(int iteration) {
+		int tasks = TASKS[Math.min(iteration, TASKS.length - 1)];
+		ExecutorService executor = newThreadPerTaskExecutor();
+		try {
+			List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(tasks);
+			for (int i = 0; i < tasks; i++) {
+				futures.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return Cpabe.decrypt(privateKey, AbeEncrypted.read(ciphertext, msk.getPublicKey()));
+					}
+				}));
+			}
+			for (Future<byte[]> future : futures) {
+				if (future.get() == null) {
+					throw new RuntimeException("couldn't recover plaintext");
+				}
+			}
+		} catch (Exception e) {
+			throw new RuntimeException("exception thrown during test", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Override
+	public void destroyBenchmark() {
+		AbeSettings.PAIRING_THREADS = previousPairingThreads;
+	}
+
+	/**
+	 * Virtual threads are looked up reflectively, because the sources are
+	 * compiled for Java 6.
+	 */
+	private static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	@Override
+	public int numWarmupRuns() {
+		return 1;
+	}
+
+	@Override
+	public int numIterations() {
+		return TASKS.length;
+	}
+
+	@Override
+	public int numRunsPerIteration() {
+		return 3;
+	}
+
+}
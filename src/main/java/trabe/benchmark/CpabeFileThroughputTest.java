@@ -0,0 +1,118 @@
+package trabe.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import trabe.AbePrivateKey;
+import trabe.AbeSecretMasterKey;
+import trabe.Cpabe;
+
+/**
+ * Encrypts and decrypts a 1 GiB file with the stream based path and with the
+ * file channel path ({@link trabe.AbeChannels}). The iterations are:
+ * <ol>
+ *     <li>encryption with streams</li>
+ *     <li>encryption with file channels</li>
+ *     <li>decryption with streams</li>
+ *     <li>decryption with file channels</li>
+ * </ol>
+ * Since the file has 1 GiB, the throughput in GiB/s is the reciprocal of the
+ * average time in seconds.
+ */
+public class CpabeFileThroughputTest extends Benchmark {
+
+	private static final long FILE_SIZE = 1L << 30;
+
+	private static final String POLICY = "a and b";
+
+	private AbeSecretMasterKey msk;
+
+	private AbePrivateKey privateKey;
+
+	private File plainFile;
+
+	private File encryptedFile;
+
+	private File outputFile;
+
+	@Override
+	public void initializeBenchmark() {
+		msk = Cpabe.setup(4);
+		try {
+			privateKey = Cpabe.keygenSingle(msk, "a b");
+
+			plainFile = File.createTempFile("throughput", ".plain");
+			encryptedFile = File.createTempFile("throughput", ".enc");
+			outputFile = File.createTempFile("throughput", ".out");
+			byte[] block = new byte[1 << 20];
+			new Random(42).nextBytes(block);
+			OutputStream out = new FileOutputStream(plainFile);
+			for (long written = 0; written < FILE_SIZE; written += block.length) {
+				out.write(block);
+			}
+			out.close();
+			Cpabe.encrypt(msk.getPublicKey(), POLICY, plainFile, encryptedFile, null, 0);
+		} catch (Exception e) {
+			throw new RuntimeException("exception thrown during benchmark initialization", e);
+		}
+	}
+
+	@Override
+	public void singleRun(int iteration) {
+		try {
+			switch (iteration) {
+				case 0:
+					InputStream in = new BufferedInputStream(new FileInputStream(plainFile));
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile));
+					Cpabe.encrypt(msk.getPublicKey(), POLICY, in, out);
+					out.close();
+					in.close();
+					break;
+				case 1:
+					Cpabe.encrypt(msk.getPublicKey(), POLICY, plainFile, outputFile, null, 0);
+					break;
+				case 2:
+					in = new BufferedInputStream(new FileInputStream(encryptedFile));
+					out = new BufferedOutputStream(new FileOutputStream(outputFile));
+					Cpabe.decrypt(privateKey, in, out);
+					out.close();
+					in.close();
+					break;
+				default:
+					Cpabe.decrypt(privateKey, encryptedFile, outputFile);
+					break;
+			}
+		} catch (Exception e) {
+			throw new RuntimeException("exception thrown during test", e);
+		}
+	}
+
+	@Override
+	public void destroyBenchmark() {
+		plainFile.delete();
+		encryptedFile.delete();
+		outputFile.delete();
+	}
+
+	@Override
+	public int numWarmupRuns() {
+		return 1;
+	}
+
+	@Override
+	public int numIterations() {
+		return 4;
+	}
+
+	@Override
+	public int numRunsPerIteration() {
+		return 2;
+	}
+
+}
@@ -0,0 +1,67 @@
+package trabe.benchmark;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
+import trabe.AbePublicKey;
+import trabe.Cpabe;
+
+/**
+ * Isolates the G_T part of an encryption: one exponentiation of E_i per row
+ * of the public key, either plain or with the fixed-base tables of
+ * {@link AbePublicKey#getEPreProcessing(int)}. The iterations use keys for
+ * 16, 64, 256 and 1024 users (4 to 32 rows). Building the tables isn't timed.
+ */
+public class EncryptionGtExponentiationTest extends Benchmark {
+
+	private static final int[] USERS = { 16, 64, 256, 1024 };
+
+	private final boolean tables;
+
+	private AbePublicKey pub;
+
+	private Element[] exponents;
+
+	public EncryptionGtExponentiationTest(boolean tables) {
+		this.tables = tables;
+	}
+
+	@Override
+	public void initializeIteration(int iteration) {
+		pub = Cpabe.setup(USERS[iteration]).getPublicKey();
+		exponents = new Element[pub.getSqrtUsers()];
+		for (int i = 0; i < exponents.length; i++) {
+			exponents[i] = pub.getPairing().getZr().newRandomElement();
+		}
+		if (tables) {
+			pub.buildEPreProcessing();
+		}
+	}
+
+	@Override
+	public void singleRun(int iteration) {
+		for (int i = 0; i < exponents.length; i++) {
+			if (tables) {
+				ElementPowPreProcessing table = pub.getEPreProcessing(i);
+				table.powZn(exponents[i]);
+			} else {
+				pub.E_i[i].duplicate().powZn(exponents[i]);
+			}
+		}
+	}
+
+	@Override
+	public int numWarmupRuns() {
+		return 5;
+	}
+
+	@Override
+	public int numIterations() {
+		return USERS.length;
+	}
+
+	@Override
+	public int numRunsPerIteration() {
+		return 20;
+	}
+
+}
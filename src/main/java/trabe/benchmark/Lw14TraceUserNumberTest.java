@@ -0,0 +1,69 @@
+package trabe.benchmark;
+
+import it.unisa.dia.gas.jpbc.Element;
+import trabe.AbePrivateKey;
+import trabe.AbeSecretMasterKey;
+import trabe.Pair;
+import trabe.lw14.Lw14;
+import trabe.lw14.Lw14MockBlackBox;
+import trabe.lw14.Lw14Tracer;
+
+/**
+ * Traces a {@link Lw14MockBlackBox} with two traitor keys by bisection
+ * ({@link Lw14Tracer}) for a growing number of users (100, 1000 and 10000).
+ * The mock box always decrypts with the key with the highest index, so only
+ * that traitor is visible.
+ */
+public class Lw14TraceUserNumberTest extends Benchmark {
+
+	private static final int[] USERS = { 100, 1000, 10000 };
+
+	private static final String POLICY = "a and b";
+
+	private AbeSecretMasterKey msk;
+
+	private Lw14MockBlackBox blackBox;
+
+	private int traitorIndex;
+
+	@Override
+	public void initializeIteration(int iteration) {
+		int users = USERS[Math.min(iteration, USERS.length - 1)];
+		msk = Lw14.setup(users);
+		Element zr = msk.getPublicKey().getPairing().getZr().newElement();
+		traitorIndex = users / 2;
+		// place the traitors directly instead of generating all the keys before them
+		AbePrivateKey[] traitors = {
+				Lw14.keygen(msk, new Pair<Element, Integer>(zr.duplicate().setToRandom(), users / 3), new String[]{ "a", "b" }),
+				Lw14.keygen(msk, new Pair<Element, Integer>(zr.duplicate().setToRandom(), traitorIndex), new String[]{ "a", "b" })
+		};
+		blackBox = new Lw14MockBlackBox(traitors, msk.getPublicKey());
+	}
+
+	@Override
+	public void singleRun(int iteration) {
+		try {
+			if (!Lw14.trace(msk.getPublicKey(), POLICY, blackBox, 1.0).contains(traitorIndex)) {
+				throw new IllegalStateException("Traitor was not found");
+			}
+		} catch (Exception e) {
+			throw new RuntimeException("exception thrown during test", e);
+		}
+	}
+
+	@Override
+	public int numWarmupRuns() {
+		return 1;
+	}
+
+	@Override
+	public int numIterations() {
+		return USERS.length;
+	}
+
+	@Override
+	public int numRunsPerIteration() {
+		return 1;
+	}
+
+}
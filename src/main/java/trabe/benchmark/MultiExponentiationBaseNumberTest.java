@@ -0,0 +1,68 @@
+package trabe.benchmark;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Pairing;
+import trabe.Cpabe;
+import trabe.MultiExponentiation;
+
+/**
+ * Compares the product of <code>iteration + 1</code> powers in G1 computed
+ * with {@link MultiExponentiation} to the chained form <code>b1^e1 * b2^e2 * ...</code>.
+ */
+public class MultiExponentiationBaseNumberTest extends Benchmark {
+
+	private final boolean multiExponentiation;
+
+	private Pairing p;
+
+	private Element[] bases;
+
+	private Element[] exponents;
+
+	public MultiExponentiationBaseNumberTest(boolean multiExponentiation) {
+		this.multiExponentiation = multiExponentiation;
+	}
+
+	@Override
+	public void initializeIteration(int iteration) {
+		bases = new Element[iteration + 1];
+		exponents = new Element[iteration + 1];
+		for (int i = 0; i < bases.length; i++) {
+			bases[i] = p.getG1().newRandomElement();
+			exponents[i] = p.getZr().newRandomElement();
+		}
+	}
+
+	@Override
+	public void singleRun(int iteration) {
+		if (multiExponentiation) {
+			MultiExponentiation.pow(bases, exponents);
+		} else {
+			Element result = bases[0].duplicate().powZn(exponents[0]);
+			for (int i = 1; i < bases.length; i++) {
+				result.mul(bases[i].duplicate().powZn(exponents[i]));
+			}
+		}
+	}
+
+	@Override
+	public void initializeBenchmark() {
+		p = Cpabe.setup(4).getPublicKey().getPairing();
+	}
+
+	@Override
+	public int numWarmupRuns() {
+		return 20;
+	}
+
+	@Override
+	public int numIterations() {
+		return 5;
+	}
+
+	@Override
+	public int numRunsPerIteration() {
+		return 50;
+	}
+
+}
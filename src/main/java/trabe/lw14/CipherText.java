@@ -7,14 +7,26 @@ import trabe.ElementVector;
 import trabe.lw14.policy.LsssMatrix;
 import it.unisa.dia.gas.jpbc.Element;
 import trabe.lw14.policy.Lw14PolicyAbstractNode;
+import trabe.lw14.policy.Lw14PolicyEvaluator;
+import trabe.policy.PolicyParsing;
+import trabe.policyparser.ParseException;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 
 public class CipherText {
-    private static final int SERIALIZE_VERSION = 1;
+    /**
+     * Version 2 adds the policy header (structure and attribute hashes of the
+     * policy tree) directly after the version, see {@link #readPolicyEvaluator(AbeInputStream, AbePublicKey)}.
+     * Version 3 stores the revoked users as a {@link RevocationBitmap} instead of an int array.
+     */
+    private static final int SERIALIZE_VERSION = 3;
+    /** sanity bound for reading the policy header, real headers are a few kilobytes **/
+    private static final int MAX_HEADER_LENGTH = 16 * 1024 * 1024;
 
     public LsssMatrix accessMatrix = null;
     public Lw14PolicyAbstractNode accessTree = null;
@@ -44,6 +56,10 @@ public class CipherText {
 
     public int[] revokedUserIndexes;
 
+    /** bitmap of revokedUserIndexes and the array it was created from **/
+    private RevocationBitmap revocationBitmap;
+    private int[] revocationBitmapSource;
+
     private CipherText(){}
 
     public CipherText(LsssMatrix accessMatrix, ElementVector[] r1, ElementVector[] r2,
@@ -87,6 +103,16 @@ public class CipherText {
     public void writeToStream(AbeOutputStream stream) throws IOException {
         stream.writeInt(SERIALIZE_VERSION);
 
+        // policy header, empty for access matrices
+        if (isAccessMatrix()) {
+            stream.writeInt(0);
+        } else {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            new Lw14PolicyEvaluator(accessTree, null).writeToStream(new DataOutputStream(header));
+            stream.writeInt(header.size());
+            header.writeTo(stream);
+        }
+
         boolean isAccessStructure = isAccessMatrix();
         stream.writeBoolean(isAccessStructure);
         if (isAccessStructure) {
@@ -111,7 +137,28 @@ public class CipherText {
         if (policy != null) {
             stream.writeString(policy);
         }
-        Lw14Util.writeArray(revokedUserIndexes, stream);
+        getRevocationBitmap().writeToStream(stream);
+    }
+
+    /**
+     * Returns the revoked users as a bitmap. The bitmap is created from
+     * {@link #revokedUserIndexes} and recreated if the array is replaced.
+     * @return Revoked users
+     */
+    public RevocationBitmap getRevocationBitmap() {
+        if (revocationBitmap == null || revocationBitmapSource != revokedUserIndexes) {
+            revocationBitmap = RevocationBitmap.of(revokedUserIndexes);
+            revocationBitmapSource = revokedUserIndexes;
+        }
+        return revocationBitmap;
+    }
+
+    /**
+     * Sets an already created bitmap of the revoked users.
+     */
+    void setRevocationBitmap(RevocationBitmap bitmap) {
+        revocationBitmap = bitmap;
+        revocationBitmapSource = revokedUserIndexes;
     }
 
     public boolean isAccessMatrix() {
@@ -152,7 +199,58 @@ public class CipherText {
 
     public static CipherText readFromStream(AbeInputStream stream) throws IOException {
         int version = stream.readInt();
+        if (version >= 2) {
+            readHeader(stream);
+        }
+        return readBody(stream, version);
+    }
+
+    private static byte[] readHeader(AbeInputStream stream) throws IOException {
+        int headerLength = stream.readInt();
+        if (headerLength < 0 || headerLength > MAX_HEADER_LENGTH) {
+            throw new IOException("Malformed policy header length " + headerLength);
+        }
+        byte[] header = new byte[headerLength];
+        stream.readFully(header);
+        return header;
+    }
+
+    /**
+     * Reads only as much of a serialized ciphertext as is necessary to check
+     * whether a private key satisfies the policy. For the current version only
+     * the policy header is read and the stream is left right after it. Older
+     * ciphertexts and access matrices are read completely.
+     *
+     * @param stream       Stream positioned at the start of a serialized ciphertext
+     * @param publicKey    Public key
+     * @return Evaluator for the policy of the ciphertext
+     * @throws IOException Stream couldn't be read
+     * @throws ParseException The policy string of an access matrix ciphertext couldn't be parsed
+     */
+    public static Lw14PolicyEvaluator readPolicyEvaluator(AbeInputStream stream, AbePublicKey publicKey)
+            throws IOException, ParseException {
+        int version = stream.readInt();
+        if (version >= 2) {
+            byte[] header = readHeader(stream);
+            if (header.length > 0) {
+                ByteArrayInputStream headerStream = new ByteArrayInputStream(header);
+                Lw14PolicyEvaluator evaluator = Lw14PolicyEvaluator.readFromStream(new DataInputStream(headerStream), publicKey);
+                if (headerStream.available() != 0) {
+                    throw new IOException("Malformed policy header, " + headerStream.available() + " bytes were not read");
+                }
+                return evaluator;
+            }
+        }
+        CipherText ct = readBody(stream, version);
+        if (ct.accessTree != null) {
+            return new Lw14PolicyEvaluator(ct.accessTree, publicKey);
+        } else if (ct.policy != null) {
+            return Lw14PolicyEvaluator.fromPostfix(PolicyParsing.parsePolicy(ct.policy));
+        }
+        throw new ParseException("Neither a policy tree nor a policy string is available");
+    }
 
+    private static CipherText readBody(AbeInputStream stream, int version) throws IOException {
         CipherText ct = new CipherText();
 
         boolean isAccessStructure = stream.readBoolean();
@@ -178,7 +276,13 @@ public class CipherText {
         if (stream.readBoolean()) {
             ct.policy = stream.readString();
         }
-        ct.revokedUserIndexes = Lw14Util.readIntegerArray(stream);
+        if (version >= 3) {
+            RevocationBitmap bitmap = RevocationBitmap.readFromStream(stream);
+            ct.revokedUserIndexes = bitmap.toArray();
+            ct.setRevocationBitmap(bitmap);
+        } else {
+            ct.revokedUserIndexes = Lw14Util.readIntegerArray(stream);
+        }
 
         return ct;
     }
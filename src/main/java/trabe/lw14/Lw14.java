@@ -5,16 +5,24 @@ import it.unisa.dia.gas.jpbc.PairingPreProcessing;
 import trabe.*;
 import trabe.lw14.policy.LsssMatrix;
 import trabe.lw14.policy.Lw14PolicyAbstractNode;
+import trabe.lw14.policy.Lw14PolicyEvaluator;
+import trabe.lw14.policy.Lw14PolicyOptimizer;
 import trabe.lw14.policy.Lw14TreePreprocessing;
 import trabe.matrixElimination.ElementField;
 import trabe.matrixElimination.Matrix;
 import trabe.policy.PolicyParsing;
 import trabe.policyparser.*;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import it.unisa.dia.gas.jpbc.Element;
 import it.unisa.dia.gas.jpbc.Pairing;
@@ -53,6 +61,20 @@ public class Lw14 {
      * @return secret master key
      */
     public static AbeSecretMasterKey setup(int users) {
+        return setup(users, 1);
+    }
+
+    /**
+     * Generate a secret master key. The rows of the public key are independent
+     * of each other and are computed in parallel.
+     * @param users      The number of users that is supported by the system.
+     * @param threads    Number of worker threads
+     * @return secret master key
+     */
+    public static AbeSecretMasterKey setup(int users, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
         if (users < 2) {
             throw new IllegalArgumentException("The system must accommodate at least two users.");
         }
@@ -83,32 +105,83 @@ public class Lw14 {
 
         boolean usePreprocessing = AbeSettings.PREPROCESSING && usersSqrt >= AbeSettings.PREPROCESSING_THRESHOLD/3.0;
 
-        ElementPowPreProcessing eppp_g = null;
+        // e(g, g) is the same for every row, the rows only use duplicates of it
+        final Element egg = p.pairing(g, g);
+        final ElementPowPreProcessing eppp_g;
+        final ElementPowPreProcessing eppp_egg;
         if (usePreprocessing) {
             eppp_g = g.duplicate().getElementPowPreProcessing();
+            eppp_egg = egg.getElementPowPreProcessing();
+        } else {
+            eppp_g = null;
+            eppp_egg = null;
+        }
+
+        if (threads == 1) {
+            setupRows(p, g, egg, eppp_g, eppp_egg, 0, usersSqrt, f_j, alpha_i, r_i, c_j, E_i, G_i, Z_i, H_j);
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                // a few chunks per thread to even out the load
+                int chunk = Math.max(1, usersSqrt / (threads * 4));
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+                for(int from = 0; from < usersSqrt; from += chunk) {
+                    final int start = from;
+                    final int end = Math.min(usersSqrt, from + chunk);
+                    final Pairing pairing = p;
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            setupRows(pairing, g, egg, eppp_g, eppp_egg, start, end,
+                                    f_j, alpha_i, r_i, c_j, E_i, G_i, Z_i, H_j);
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted during setup", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Setup failed", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
         }
-        for(int i = 0; i < usersSqrt; i++){
+
+        pub.setElements(g, h, f, f_j, G, H, E_i, G_i, Z_i, H_j, Gquote);
+        return new AbeSecretMasterKey(pub, alpha_i, r_i, c_j, b);
+    }
+
+    /**
+     * Fills the rows [from, to) of the setup arrays. Each row is only
+     * written by one caller, so disjoint ranges can be filled concurrently.
+     */
+    private static void setupRows(Pairing p, Element g, Element egg,
+                                  ElementPowPreProcessing eppp_g, ElementPowPreProcessing eppp_egg,
+                                  int from, int to,
+                                  Element[] f_j, Element[] alpha_i, Element[] r_i, Element[] c_j,
+                                  Element[] E_i, Element[] G_i, Element[] Z_i, Element[] H_j) {
+        for(int i = from; i < to; i++){
             f_j[i] = p.getG1().newRandomElement();
             alpha_i[i] = p.getZr().newRandomElement();
             r_i[i] = p.getZr().newRandomElement();
             Element z = p.getZr().newRandomElement();
             c_j[i] = p.getZr().newRandomElement();
 
-            E_i[i] = p.pairing(g, g).powZn(alpha_i[i]);
-
-            if (usePreprocessing) {
+            if (eppp_g != null) {
+                E_i[i] = eppp_egg.powZn(alpha_i[i]);
                 G_i[i] = eppp_g.powZn(r_i[i]);
                 Z_i[i] = eppp_g.powZn(z);
                 H_j[i] = eppp_g.powZn(c_j[i]);
             } else {
+                E_i[i] = egg.duplicate().powZn(alpha_i[i]);
                 G_i[i] = g.duplicate().powZn(r_i[i]);
                 Z_i[i] = g.duplicate().powZn(z);
                 H_j[i] = g.duplicate().powZn(c_j[i]);
             }
         }
-
-        pub.setElements(g, h, f, f_j, G, H, E_i, G_i, Z_i, H_j, Gquote);
-        return new AbeSecretMasterKey(pub, alpha_i, r_i, c_j, b);
     }
 
     /**
@@ -120,11 +193,28 @@ public class Lw14 {
         if (msk == null) {
             throw new IllegalArgumentException("No secret master key passed");
         }
-        // advance current position of the master key
-        Pair<Element, Integer> p = new Pair<Element, Integer>(msk.getPublicKey().getPairing().getZr().newRandomElement(), msk.counter);
+        Element sigma = msk.getPublicKey().getPairing().getZr().newRandomElement();
+        int position;
+        // advance current position of the master key, concurrent calls must not get the same position
+        synchronized (msk) {
+            position = msk.counter;
+            msk.counter++;
+        }
+        return new Pair<Element, Integer>(sigma, position);
+    }
 
-        msk.counter++;
-        return p;
+    /**
+     * Produces the secret user element with a position from the allocator
+     * instead of the counter of the master key.
+     * @param msk          Secret master key
+     * @param allocator    Journaled user index allocator for the master key
+     * @return Secret user element
+     * @throws IOException The journal of the allocator couldn't be written
+     */
+    public static Pair<Element, Integer> generateUserSecretComponent(AbeSecretMasterKey msk, AbeUserIndexAllocator allocator)
+            throws IOException {
+        Element sigma = msk.getPublicKey().getPairing().getZr().newRandomElement();
+        return new Pair<Element, Integer>(sigma, allocator.next());
     }
 
     /**
@@ -135,6 +225,21 @@ public class Lw14 {
      * @return User private key
      */
     public static AbePrivateKey keygen(AbeSecretMasterKey msk, Pair<Element, Integer> sigmaAndPosition, String[] attributes) {
+        return keygen(msk, sigmaAndPosition, attributes, null);
+    }
+
+    /**
+     * Generate a private key with the given set of attributes (internal
+     * representation of attributes) using fixed-base tables that are shared
+     * with other key generations.
+     * @param msk               Secret master key
+     * @param sigmaAndPosition  Secret user element to tie all user attributes together and the position of the user in the array
+     * @param attributes        Attributes for user
+     * @param kpp               Shared preprocessing for the public key of msk (may be null)
+     * @return User private key
+     */
+    public static AbePrivateKey keygen(AbeSecretMasterKey msk, Pair<Element, Integer> sigmaAndPosition, String[] attributes,
+                                       Lw14KeygenPreprocessing kpp) {
         AbePublicKey pub = msk.getPublicKey();
 
         Element sigma = sigmaAndPosition.getFirst();
@@ -146,15 +251,32 @@ public class Lw14 {
             return null;
         }
 
-        Element k1_ij = pub.g.duplicate().powZn(msk.alpha_i[position.i])
-                .mul(pub.G_i[position.i].duplicate().powZn(msk.c_j[position.j]))
-                .mul(pub.f.duplicate().mul(pub.f_j[position.j]).powZn(sigma));
-        Element k2_ij = pub.g.duplicate().powZn(sigma);
-        Element k3_ij = pub.Z_i[position.i].duplicate().powZn(sigma);
+        Element k1_ij = MultiExponentiation.pow(pub.g, msk.alpha_i[position.i],
+                pub.G_i[position.i], msk.c_j[position.j],
+                pub.f.duplicate().mul(pub.f_j[position.j]), sigma);
+        ElementPowPreProcessing eppp_g = kpp != null ? kpp.forG(1) : null;
+        ElementPowPreProcessing eppp_Z_i = kpp != null ? kpp.forZ(position.i) : null;
+        Element k2_ij;
+        Element k3_ij;
+        if (eppp_g != null) {
+            k2_ij = eppp_g.powZn(sigma);
+        } else {
+            k2_ij = pub.g.duplicate().powZn(sigma);
+        }
+        if (eppp_Z_i != null) {
+            k3_ij = eppp_Z_i.powZn(sigma);
+        } else {
+            k3_ij = pub.Z_i[position.i].duplicate().powZn(sigma);
+        }
         Element[] k_ijj = new Element[m];
         for(int j = 0; j < m; j++){
             if (j != position.j){
-                k_ijj[j] = pub.f_j[j].duplicate().powZn(sigma);
+                ElementPowPreProcessing eppp_f_j = kpp != null ? kpp.forF(j) : null;
+                if (eppp_f_j != null) {
+                    k_ijj[j] = eppp_f_j.powZn(sigma);
+                } else {
+                    k_ijj[j] = pub.f_j[j].duplicate().powZn(sigma);
+                }
             } else {
                 // this element should never be used
                 k_ijj[j] = null;
@@ -162,7 +284,89 @@ public class Lw14 {
         }
 
         return new AbePrivateKey(position, k1_ij, k2_ij, k3_ij, k_ijj,
-                generateAdditionalAttributes(msk, sigma, attributes), pub);
+                generateAdditionalAttributes(msk, sigma, attributes, kpp), pub);
+    }
+
+    /**
+     * Generates private keys for many users at once. The user positions are
+     * assigned in the order of the passed list before the keys are generated
+     * in parallel with shared fixed-base tables.
+     * @param msk           Secret master key
+     * @param attributes    Attributes (internal representation) for each user
+     * @param threads       Number of worker threads
+     * @return User private keys in the same order as the attributes
+     */
+    public static List<AbePrivateKey> keygen(final AbeSecretMasterKey msk, List<String[]> attributes, int threads) {
+        return keygen(msk, attributes, threads, null);
+    }
+
+    /**
+     * Generates private keys for many users at once. With an allocator one
+     * range of exactly the needed size is reserved per call and the positions
+     * are assigned in the order of the passed list. Without an allocator the
+     * positions are taken from the master key counter in one step as well.
+     * @param msk           Secret master key
+     * @param attributes    Attributes (internal representation) for each user
+     * @param threads       Number of worker threads
+     * @param allocator     Journaled user index allocator (may be null to use the master key counter)
+     * @return User private keys in the same order as the attributes
+     * @throws IllegalStateException if fewer user indexes than keys are left
+     *          (the last index is reserved for tracing), no index is used then
+     */
+    public static List<AbePrivateKey> keygen(final AbeSecretMasterKey msk, List<String[]> attributes, int threads,
+                                             final AbeUserIndexAllocator allocator) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        if (attributes.isEmpty()) {
+            return new ArrayList<AbePrivateKey>(0);
+        }
+        final Lw14KeygenPreprocessing kpp = new Lw14KeygenPreprocessing(msk.getPublicKey());
+        int position;
+        if (allocator != null) {
+            try {
+                position = allocator.allocateBlock(attributes.size()).next();
+            } catch (IOException e) {
+                throw new IllegalStateException("Couldn't reserve the user indexes", e);
+            }
+        } else {
+            synchronized (msk) {
+                if ((long) msk.counter + attributes.size() > msk.getMaxUsers()) {
+                    throw new IllegalStateException("Only " + Math.max(0, msk.getMaxUsers() - msk.counter) + " of "
+                            + msk.getMaxUsers() + " user indexes are left, " + attributes.size() + " are needed");
+                }
+                position = msk.counter;
+                msk.counter += attributes.size();
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<AbePrivateKey>> futures = new ArrayList<Future<AbePrivateKey>>(attributes.size());
+            for (final String[] userAttributes : attributes) {
+                final Pair<Element, Integer> sigmaAndPosition = new Pair<Element, Integer>(
+                        msk.getPublicKey().getPairing().getZr().newRandomElement(), position++);
+                futures.add(executor.submit(new Callable<AbePrivateKey>() {
+                    @Override
+                    public AbePrivateKey call() {
+                        return keygen(msk, sigmaAndPosition, userAttributes, kpp);
+                    }
+                }));
+            }
+
+            List<AbePrivateKey> keys = new ArrayList<AbePrivateKey>(futures.size());
+            for (Future<AbePrivateKey> future : futures) {
+                keys.add(future.get());
+            }
+            return keys;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during key generation", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Key generation failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
     /**
@@ -174,20 +378,22 @@ public class Lw14 {
      * @param msk           Secret master key
      * @param sigma         Secret user element to tie all user attributes together
      * @param attributes    Attributes for user
+     * @param kpp           Shared preprocessing (may be null)
      * @return List of private key components (secret attribute keys)
      */
     private static ArrayList<Lw14PrivateKeyComponent> generateAdditionalAttributes(AbeSecretMasterKey msk,
-                                                                                    Element sigma, String[] attributes) {
+                                                                                    Element sigma, String[] attributes,
+                                                                                    Lw14KeygenPreprocessing kpp) {
         ArrayList<Lw14PrivateKeyComponent> components = new ArrayList<Lw14PrivateKeyComponent>(attributes.length);
         AbePublicKey pub = msk.getPublicKey();
         Pairing p = pub.getPairing();
 
-        boolean usePreprocessing = AbeSettings.PREPROCESSING && attributes.length >= AbeSettings.PREPROCESSING_THRESHOLD;
-
-        ElementPowPreProcessing eppp_g = null;
-        if (usePreprocessing) {
+        // two exponentiations with g per attribute
+        ElementPowPreProcessing eppp_g = kpp != null ? kpp.forG(2 * attributes.length) : null;
+        if (eppp_g == null && AbeSettings.PREPROCESSING && attributes.length >= AbeSettings.PREPROCESSING_THRESHOLD) {
             eppp_g = pub.g.getElementPowPreProcessing();
         }
+        boolean usePreprocessing = eppp_g != null;
         List<Element> allOfDeltaQuotes = new ArrayList<Element>();
         Element deltaQuoteIjxCumulative = sigma.duplicate();
         Element G_pow_minus_sigma = pub.G.duplicate().powZn(sigma).invert();
@@ -209,10 +415,19 @@ public class Lw14 {
             } else {
                 k1_ijx = pub.g.duplicate().powZn(deltaIjx);
             }
-            final Element k2_ijx = pub.H.duplicate().powZn(x).mul(pub.h).powZn(deltaIjx).mul(G_pow_minus_sigma);
-            Element k1Tilde_ijx = pub.g.duplicate().powZn(msk.b.duplicate().mul(deltaQuoteIjx));
-            Element k2Tilde_ijx = pub.Gquote.duplicate().powZn(x).mul(pub.h.duplicate().powZn(msk.b))
-                    .powZn(deltaQuoteIjx);
+            // (H^x * h)^delta = H^(x*delta) * h^delta
+            final Element k2_ijx = MultiExponentiation.pow(pub.H, x.duplicate().mul(deltaIjx), pub.h, deltaIjx)
+                    .mul(G_pow_minus_sigma);
+            Element b_deltaQuote = msk.b.duplicate().mul(deltaQuoteIjx);
+            Element k1Tilde_ijx;
+            if (usePreprocessing) {
+                k1Tilde_ijx = eppp_g.powZn(b_deltaQuote);
+            } else {
+                k1Tilde_ijx = pub.g.duplicate().powZn(b_deltaQuote);
+            }
+            // (Gquote^x * h^b)^deltaQuote = Gquote^(x*deltaQuote) * h^(b*deltaQuote)
+            Element k2Tilde_ijx = MultiExponentiation.pow(pub.Gquote, x.duplicate().mul(deltaQuoteIjx),
+                    pub.h, b_deltaQuote);
             components
                     .add(new Lw14PrivateKeyComponent(attributes[i], x, k1_ijx, k2_ijx, k1Tilde_ijx, k2Tilde_ijx));
         }
@@ -288,6 +503,50 @@ public class Lw14 {
                                                     int[] revokedUserIndexes, int userIndex)
             throws AbeEncryptionException
     {
+        return encrypt(pub, policy, revokedUserIndexes, userIndex, null);
+    }
+
+    /**
+     * Same as <code>#encrypt(AbePublicKey, String, int[], int)</code>, but
+     * uses fixed-base tables which are shared between many encryptions.
+     *
+     * @param pub       Public key
+     * @param policy    Policy as a boolean formula
+     * @param revokedUserIndexes    List of revoked users by index
+     * @param userIndex Index of the first user that is eligible for the encrypted data
+     * @param epp       Shared preprocessing (may be null)
+     * @return CipherText and key container object
+     * @throws AbeEncryptionException Encryption failed
+     */
+    public static Pair<CipherText, Element> encrypt(AbePublicKey pub, String policy,
+                                                    int[] revokedUserIndexes, int userIndex,
+                                                    Lw14EncryptionPreprocessing epp)
+            throws AbeEncryptionException
+    {
+        return encrypt(pub, policy, new RevocationContext(pub, revokedUserIndexes), userIndex, epp);
+    }
+
+    /**
+     * Same as <code>#encrypt(AbePublicKey, String, int[], int, Lw14EncryptionPreprocessing)</code>,
+     * but takes the revoked users as a context that is created once and
+     * shared between many encryptions.
+     *
+     * @param pub         Public key
+     * @param policy      Policy as a boolean formula
+     * @param revocation  Revoked users with precomputed row products
+     * @param userIndex   Index of the first user that is eligible for the encrypted data
+     * @param epp         Shared preprocessing (may be null)
+     * @return CipherText and key container object
+     * @throws AbeEncryptionException Encryption failed
+     */
+    public static Pair<CipherText, Element> encrypt(AbePublicKey pub, String policy,
+                                                    RevocationContext revocation, int userIndex,
+                                                    Lw14EncryptionPreprocessing epp)
+            throws AbeEncryptionException
+    {
+        if (revocation.getPublicKey() != pub) {
+            throw new IllegalArgumentException("The revocation context belongs to another public key");
+        }
         Pairing p = pub.getPairing();
 
         String parsedPolicy = null;
@@ -314,14 +573,151 @@ public class Lw14 {
         boolean usePreprocessingPowG = AbeSettings.PREPROCESSING;
         boolean usePreprocessingOnAttributeAmount = AbeSettings.PREPROCESSING && !AbeSettings.USE_TREE && accessStructure.getAttributes() >= AbeSettings.PREPROCESSING_THRESHOLD;
 
+        int[] revokedUserIndexes = revocation.getRevokedUserIndexes();
+
+        Element message = p.getGT().newRandomElement();
+        Element pi = p.getZr().newRandomElement();
+
+        ElementPowPreProcessing eppp_g = null;
+        if (usePreprocessingPowG) {
+            eppp_g = epp != null ? epp.eppp_g : pub.g.getElementPowPreProcessing();
+        }
+
+        Element f_pow_pi = pub.f.duplicate().powZn(pi);
+        IndexComponents ic = encryptIndexComponents(pub, userIndex, message, f_pow_pi,
+                revocation.getRevocationProducts(), eppp_g);
+        CipherText ct;
+        if (!AbeSettings.USE_TREE) {
+            int n = accessStructure.getColumns();
+            int l = accessStructure.getAttributes();
+
+            ElementVector e = new ElementVector(l, p.getZr());
+            ElementVector u = new ElementVector(n, p.getZr());
+            u.set(0, pi);
+
+            ElementPowPreProcessing eppp_f = null;
+            ElementPowPreProcessing eppp_G = null;
+            ElementPowPreProcessing eppp_H = null;
+            if (usePreprocessingOnAttributeAmount) {
+                eppp_f = pub.f.getElementPowPreProcessing();
+                eppp_G = pub.G.getElementPowPreProcessing();
+                eppp_H = pub.H.getElementPowPreProcessing();
+            }
+
+            Element[] P1_k = new Element[l];
+            Element[] P2_k = new Element[l];
+            Element[] P3_k = new Element[l];
+            // iterate over attributes
+            for(int k = 0; k < l; k++) {
+                ElementVector A_k = accessStructure.getAttributeRow(k, p.getZr());
+
+                if (usePreprocessingOnAttributeAmount) {
+                    P1_k[k] = eppp_f.powZn(A_k.scalar(u)).mul(eppp_G.powZn(e.get(k)));
+                    P2_k[k] = eppp_H.powZn(accessStructure.getHashedAttribute(k)).mul(pub.h).powZn(e.get(k).duplicate().negate());
+                } else {
+                    // check negated attribute
+                    if (!accessStructure.getAttribute(k).startsWith("NOT_")) {
+                        P1_k[k] = MultiExponentiation.pow(pub.f, A_k.scalar(u), pub.G, e.get(k));
+                    } else {
+                        P1_k[k] = MultiExponentiation.pow(pub.f, A_k.scalar(u), pub.Gquote, e.get(k));
+                    }
+                    Element minusE = e.get(k).duplicate().negate();
+                    P2_k[k] = MultiExponentiation.pow(pub.H, accessStructure.getHashedAttribute(k).duplicate().mul(minusE),
+                            pub.h, minusE);
+                }
+                if (usePreprocessingPowG) {
+                    P3_k[k] = eppp_g.powZn(e.get(k));
+                } else {
+                    P3_k[k] = pub.g.duplicate().powZn(e.get(k));
+                }
+            }
+            ct = new CipherText(accessStructure, ic.R1_i, ic.R2_i, ic.Q1_i, ic.Q2_i, ic.Q3_i, ic.T_i,
+                    ic.C1_j, ic.C2_j, P1_k, P2_k, P3_k, policy, revokedUserIndexes);
+        } else {
+            Lw14PolicyAbstractNode policyTree = null;
+            try {
+                policyTree = Lw14PolicyAbstractNode.parsePolicy(parsedPolicy, pub);
+            } catch (ParseException e) {
+                throw new AbeEncryptionException("Couldn't build tree", e);
+            }
+
+            if (AbeSettings.OPTIMIZE_POLICY_TREE) {
+                Lw14PolicyOptimizer optimizer = new Lw14PolicyOptimizer();
+                policyTree = optimizer.optimize(policyTree);
+                if (AbeSettings.DEBUG) {
+                    System.out.println("policy leaves before optimization: " + optimizer.getLeavesBefore()
+                            + ", after: " + optimizer.getLeavesAfter());
+                }
+            }
+
+            if (AbeSettings.PREPROCESSING && epp != null) {
+                // the tables are already paid for
+                policyTree.fillPolicy(pub, pi, epp.treePreprocessing);
+            } else if (AbeSettings.PREPROCESSING && policyTree.getMinLeaves() >= AbeSettings.PREPROCESSING_THRESHOLD) {
+                if (eppp_g == null) {
+                    eppp_g = pub.g.getElementPowPreProcessing();
+                }
+                policyTree.fillPolicy(pub, pi, new Lw14TreePreprocessing(pub.f.getElementPowPreProcessing(), eppp_g,
+                        pub.G.getElementPowPreProcessing(), pub.H.getElementPowPreProcessing()));
+            } else {
+                policyTree.fillPolicy(pub, pi);
+            }
+
+            ct = new CipherText(policyTree, ic.R1_i, ic.R2_i, ic.Q1_i, ic.Q2_i, ic.Q3_i, ic.T_i,
+                    ic.C1_j, ic.C2_j, null, revokedUserIndexes);
+        }
+        ct.setRevocationBitmap(revocation.getRevocationBitmap());
+
+//        System.out.println("encrypted msg: " + message);
+        return new Pair<CipherText, Element>(ct, message);
+    }
+
+    /**
+     * Row and column components of a ciphertext. These are the only parts
+     * which depend on the user index.
+     */
+    static class IndexComponents {
+        ElementVector[] R1_i;
+        ElementVector[] R2_i;
+        Element[] Q1_i;
+        Element[] Q2_i;
+        Element[] Q3_i;
+        Element[] T_i;
+        ElementVector[] C1_j;
+        ElementVector[] C2_j;
+    }
+
+    /**
+     * E_i^exponent of the row, through the G_T table of the public key once it exists.
+     */
+    private static Element powE(AbePublicKey pub, int row, Element exponent) {
+        ElementPowPreProcessing table = pub.getEPreProcessing(row);
+        if (table != null) {
+            return table.powZn(exponent);
+        }
+        return pub.E_i[row].duplicate().powZn(exponent);
+    }
+
+    /**
+     * Computes the row and column components for the given user index with
+     * fresh randomness.
+     * @param pub          Public key
+     * @param userIndex    Index of the first user that is eligible for the encrypted data
+     * @param message      Encrypted GT element
+     * @param f_pow_pi     f^pi where pi is the secret that is shared in the policy
+     * @param f_temp_i     Product of f and the non-revoked f_j per row, see {@link RevocationContext}
+     * @param eppp_g       Preprocessing for g (may be null)
+     * @return Components
+     */
+    static IndexComponents encryptIndexComponents(AbePublicKey pub, int userIndex, Element message, Element f_pow_pi,
+                                                  Element[] f_temp_i, ElementPowPreProcessing eppp_g) {
+        Pairing p = pub.getPairing();
+        boolean usePreprocessingPowG = eppp_g != null;
+
         AbeUserIndex ui = new AbeUserIndex(pub.getSqrtUsers(), userIndex);
         int i_bar = ui.i;
         int j_bar = ui.j;
 
-        Arrays.sort(revokedUserIndexes);
-
-
-        Element message = p.getGT().newRandomElement();
         Element kappa = p.getZr().newRandomElement();
         Element tau = p.getZr().newRandomElement();
         Element[] s_i = new Element[pub.getSqrtUsers()];
@@ -355,173 +751,87 @@ public class Lw14 {
             // factors for x1 and x2 to create a vector in span{x1, x2}
             Element c1 = p.getZr().newRandomElement();
             Element c2 = p.getZr().newRandomElement();
-            v_i[i] = x1.duplicate().mul(c1).add(x2.duplicate().mul(c2));
+            v_i[i] = x1.mulAdd(c1, x2.duplicate().mul(c2), new ElementVector(3));
         }
 
+        IndexComponents ic = new IndexComponents();
+        ic.R1_i = new ElementVector[pub.getSqrtUsers()];
+        ic.R2_i = new ElementVector[pub.getSqrtUsers()];
+        ic.Q1_i = new Element[pub.getSqrtUsers()];
+        ic.Q2_i = new Element[pub.getSqrtUsers()];
+        ic.Q3_i = new Element[pub.getSqrtUsers()];
+        ic.T_i = new Element[pub.getSqrtUsers()];
 
-        Element[] s_hat_i = new Element[pub.getSqrtUsers()];
-        ElementVector[] R1_i = new ElementVector[pub.getSqrtUsers()];
-        ElementVector[] R2_i = new ElementVector[pub.getSqrtUsers()];
-        Element[] Q1_i = new Element[pub.getSqrtUsers()];
-        Element[] Q2_i = new Element[pub.getSqrtUsers()];
-        Element[] Q3_i = new Element[pub.getSqrtUsers()];
-        Element[] T_i = new Element[pub.getSqrtUsers()];
-        Element pi = p.getZr().newRandomElement();
-
-        ElementPowPreProcessing eppp_g = null;
+        Element g_pow_kappa;
         if (usePreprocessingPowG) {
-            eppp_g = pub.g.getElementPowPreProcessing();
+            g_pow_kappa = eppp_g.powZn(kappa);
+        } else {
+            g_pow_kappa = pub.g.duplicate().powZn(kappa);
         }
 
-        Element f_pow_pi = pub.f.duplicate().powZn(pi);
-
         // iterate over rows
         for(int i = 0; i < pub.getSqrtUsers(); i++) {
-            Element f_temp = pub.f.duplicate();
-            for(int j = 0; j < pub.getSqrtUsers(); j++) {
-                AbeUserIndex tempUserIndex = new AbeUserIndex(i, j, pub.getSqrtUsers());
-                if (Arrays.binarySearch(revokedUserIndexes, tempUserIndex.counter) < 0) {
-                    f_temp = f_temp.mul(pub.f_j[j]); // assignment is not necessary
-                }
-            }
-
             if (i < i_bar) {
-                s_hat_i[i] = p.getZr().newRandomElement();
+                Element s_hat_i = p.getZr().newRandomElement();
 
                 if (usePreprocessingPowG) {
-                    R1_i[i] = v_i[i].powInBase(eppp_g);
-                    R2_i[i] = v_i[i].powInBase(eppp_g.powZn(kappa));
-                    Q1_i[i] = eppp_g.powZn(s_i[i]);
+                    ic.R1_i[i] = v_i[i].powInBase(eppp_g);
+                    ic.Q1_i[i] = eppp_g.powZn(s_i[i]);
                 } else {
-                    R1_i[i] = v_i[i].powInBase(pub.g);
-                    R2_i[i] = v_i[i].powInBase(pub.g.duplicate().powZn(kappa));
-                    Q1_i[i] = pub.g.duplicate().powZn(s_i[i]);
+                    ic.R1_i[i] = v_i[i].powInBase(pub.g);
+                    ic.Q1_i[i] = pub.g.duplicate().powZn(s_i[i]);
                 }
+                ic.R2_i[i] = v_i[i].powInBase(g_pow_kappa);
 
-                Q2_i[i] = f_temp.powZn(s_i[i])
-                        .mul(pub.Z_i[i].duplicate().powZn(t_i[i]))
+                ic.Q2_i[i] = MultiExponentiation.pow(f_temp_i[i], s_i[i], pub.Z_i[i], t_i[i])
                         .mul(f_pow_pi);
 
-                if (usePreprocessingPowG) {
-                    Q3_i[i] = eppp_g.powZn(t_i[i]);
-                } else {
-                    Q3_i[i] = pub.g.duplicate().powZn(t_i[i]);
-                }
-                T_i[i] = pub.E_i[i].duplicate().powZn(s_hat_i[i]);
+                ic.T_i[i] = powE(pub, i, s_hat_i);
             } else {
-                Element t_s_vi_vc = v.duplicate().scalar(v_i[i]).mul(s_i[i]).mul(tau);
+                Element t_s_vi_vc = v.scalar(v_i[i]).mul(s_i[i]).mul(tau);
 
-                R1_i[i] = v_i[i].powInBase(pub.G_i[i].duplicate().powZn(s_i[i]));
-                R2_i[i] = v_i[i].powInBase(pub.G_i[i].duplicate().powZn(s_i[i].duplicate().mul(kappa)));
+                Element G_pow_s = pub.G_i[i].duplicate().powZn(s_i[i]);
+                ic.R1_i[i] = v_i[i].powInBase(G_pow_s);
+                ic.R2_i[i] = v_i[i].powInBase(G_pow_s.powZn(kappa)); // G_i^(s_i * kappa)
                 if (usePreprocessingPowG) {
-                    Q1_i[i] = eppp_g.powZn(t_s_vi_vc);
+                    ic.Q1_i[i] = eppp_g.powZn(t_s_vi_vc);
                 } else {
-                    Q1_i[i] = pub.g.duplicate().powZn(t_s_vi_vc);
+                    ic.Q1_i[i] = pub.g.duplicate().powZn(t_s_vi_vc);
                 }
 
-                Q2_i[i] = f_temp.powZn(t_s_vi_vc)
-                        .mul(pub.Z_i[i].duplicate().powZn(t_i[i]))
+                ic.Q2_i[i] = MultiExponentiation.pow(f_temp_i[i], t_s_vi_vc, pub.Z_i[i], t_i[i])
                         .mul(f_pow_pi);
 
-                if (usePreprocessingPowG) {
-                    Q3_i[i] = eppp_g.powZn(t_i[i]);
-                } else {
-                    Q3_i[i] = pub.g.duplicate().powZn(t_i[i]);
-                }
-                T_i[i] = pub.E_i[i].duplicate().powZn(t_s_vi_vc).mul(message);
+                ic.T_i[i] = powE(pub, i, t_s_vi_vc).mul(message);
+            }
+            if (usePreprocessingPowG) {
+                ic.Q3_i[i] = eppp_g.powZn(t_i[i]);
+            } else {
+                ic.Q3_i[i] = pub.g.duplicate().powZn(t_i[i]);
             }
         }
 
-        ElementVector[] C1_j = new ElementVector[pub.getSqrtUsers()];
-        ElementVector[] C2_j = new ElementVector[pub.getSqrtUsers()];
+        ic.C1_j = new ElementVector[pub.getSqrtUsers()];
+        ic.C2_j = new ElementVector[pub.getSqrtUsers()];
+        // scratch space which is reused for every column
+        ElementVector x3_mu_v = new ElementVector(3);
+        Element H_pow_tau = pub.H_j[0].duplicate();
         // iterate over columns
         for(int j = 0; j < pub.getSqrtUsers(); j++) {
+            ElementVector exponent = v;
             if (j < j_bar) {
                 Element mu = p.getZr().newRandomElement();
-                C1_j[j] = x3.duplicate().mul(mu).add(v).powInBase(pub.H_j[j].duplicate().powZn(tau));
-            } else {
-                C1_j[j] = v.powInBase(pub.H_j[j].duplicate().powZn(tau));
+                exponent = x3.mulAdd(mu, v, x3_mu_v);
             }
+            H_pow_tau.set(pub.H_j[j]).powZn(tau);
+            ic.C1_j[j] = ElementVector.powInBases(H_pow_tau, exponent, g_pow_kappa, w_j[j], new ElementVector(3));
             if (usePreprocessingPowG) {
-                C1_j[j] = C1_j[j].mul(w_j[j].powInBase(eppp_g.powZn(kappa)));
-                C2_j[j] = w_j[j].powInBase(eppp_g);
+                ic.C2_j[j] = w_j[j].powInBase(eppp_g);
             } else {
-                C1_j[j] = C1_j[j].mul(w_j[j].powInBase(pub.g.duplicate().powZn(kappa)));
-                C2_j[j] = w_j[j].powInBase(pub.g);
+                ic.C2_j[j] = w_j[j].powInBase(pub.g);
             }
         }
-
-        CipherText ct;
-        if (!AbeSettings.USE_TREE) {
-            int n = accessStructure.getColumns();
-            int l = accessStructure.getAttributes();
-
-            ElementVector e = new ElementVector(l, p.getZr());
-            ElementVector u = new ElementVector(n, p.getZr());
-            u.set(0, pi);
-
-            ElementPowPreProcessing eppp_f = null;
-            ElementPowPreProcessing eppp_G = null;
-            ElementPowPreProcessing eppp_H = null;
-            if (usePreprocessingOnAttributeAmount) {
-                eppp_f = pub.f.getElementPowPreProcessing();
-                eppp_G = pub.G.getElementPowPreProcessing();
-                eppp_H = pub.H.getElementPowPreProcessing();
-            }
-
-            Element[] P1_k = new Element[l];
-            Element[] P2_k = new Element[l];
-            Element[] P3_k = new Element[l];
-            // iterate over attributes
-            for(int k = 0; k < l; k++) {
-                ElementVector A_k = accessStructure.getAttributeRow(k, p.getZr());
-
-                if (usePreprocessingOnAttributeAmount) {
-                    P1_k[k] = eppp_f.powZn(A_k.scalar(u)).mul(eppp_G.powZn(e.get(k)));
-                    P2_k[k] = eppp_H.powZn(accessStructure.getHashedAttribute(k)).mul(pub.h).powZn(e.get(k).duplicate().negate());
-                } else {
-                    // check negated attribute
-                    if (!accessStructure.getAttribute(k).startsWith("NOT_")) {
-                        P1_k[k] = pub.f.duplicate().powZn(A_k.scalar(u))
-                                .mul(pub.G.duplicate().powZn(e.get(k)));
-                    } else {
-                        P1_k[k] = pub.f.duplicate().powZn(A_k.scalar(u)).mul(pub.Gquote.duplicate().powZn(e.get(k)));
-                    }
-                    P2_k[k] = pub.H.duplicate().powZn(accessStructure.getHashedAttribute(k))
-                            .mul(pub.h).powZn(e.get(k).duplicate().negate());
-                }
-                if (usePreprocessingPowG) {
-                    P3_k[k] = eppp_g.powZn(e.get(k));
-                } else {
-                    P3_k[k] = pub.g.duplicate().powZn(e.get(k));
-                }
-            }
-            ct = new CipherText(accessStructure, R1_i, R2_i, Q1_i, Q2_i, Q3_i, T_i,
-                    C1_j, C2_j, P1_k, P2_k, P3_k, policy, revokedUserIndexes);
-        } else {
-            Lw14PolicyAbstractNode policyTree = null;
-            try {
-                policyTree = Lw14PolicyAbstractNode.parsePolicy(parsedPolicy, pub);
-            } catch (ParseException e) {
-                throw new AbeEncryptionException("Couldn't build tree", e);
-            }
-
-            if (AbeSettings.PREPROCESSING && policyTree.getMinLeaves() >= AbeSettings.PREPROCESSING_THRESHOLD) {
-                if (eppp_g == null) {
-                    eppp_g = pub.g.getElementPowPreProcessing();
-                }
-                policyTree.fillPolicy(pub, pi, new Lw14TreePreprocessing(pub.f.getElementPowPreProcessing(), eppp_g,
-                        pub.G.getElementPowPreProcessing(), pub.H.getElementPowPreProcessing()));
-            } else {
-                policyTree.fillPolicy(pub, pi);
-            }
-
-            ct = new CipherText(policyTree, R1_i, R2_i, Q1_i, Q2_i, Q3_i, T_i,
-                    C1_j, C2_j, null, revokedUserIndexes);
-        }
-
-//        System.out.println("encrypted msg: " + message);
-        return new Pair<CipherText, Element>(ct, message);
+        return ic;
     }
 
     /**
@@ -539,13 +849,14 @@ public class Lw14 {
         Set<String> allPrivateKeyAttributes = privateKey.getAttributeSet();
         try {
             if (cipher.accessTree != null) {
-                root = cipher.accessTree;
-            } else if (cipher.policy != null) {
+                // the nodes keep the state of the decryption, the ciphertext may be decrypted concurrently
+                root = cipher.accessTree.copy();
+            } else if (cipher.policy == null) {
                 throw new AbeDecryptionException("No policy available in order to check satisfiability");
             } else {
                 root = Lw14Util.getPolicyTree(cipher.policy, privateKey.getPublicKey());
             }
-            if (!cipher.policy.contains("NOT_")) {
+            if (cipher.policy == null || !cipher.policy.contains("NOT_")) {
                 if (!Lw14Util.satisfies(root, privateKey)) {
                     return null;
                 }
@@ -601,8 +912,9 @@ public class Lw14 {
              * Sometimes it happens that the matrix is not invertible. That is why many potential sets are tried to
              * create a correct LSSS solution.
              * */
+            Lw14PolicyEvaluator evaluator = new Lw14PolicyEvaluator(root, privateKey.getPublicKey());
             for(Set<String> set : new SortedPowerSet<String>(filteredUserAttributes)) {
-                if (!Lw14Util.satisfies(root, set, privateKey.getPublicKey())) {
+                if (!evaluator.satisfies(set)) {
                     continue;
                 }
                 minSize = set.size();
@@ -712,15 +1024,15 @@ public class Lw14 {
         } else {
             // accessTree
 
-            if (!cipher.accessTree.checkSatisfy(privateKey)) {
+            if (!root.checkSatisfy(privateKey)) {
                 throw new AbeDecryptionException("Private key doesn't satisfy the threshold formula");
             }
-            cipher.accessTree.pickSatisfyMinLeaves(privateKey);
+            root.pickSatisfyMinLeaves(privateKey);
 
-            if (AbeSettings.PREPROCESSING && cipher.accessTree.getMinLeaves() >= AbeSettings.PREPROCESSING_THRESHOLD) {
-                cipher.accessTree.decFlatten(D_P, privateKey);
+            if (AbeSettings.PREPROCESSING && root.getMinLeaves() >= AbeSettings.PREPROCESSING_THRESHOLD) {
+                root.decFlatten(D_P, privateKey);
             } else {
-                cipher.accessTree.decFlatten(D_P, privateKey);
+                root.decFlatten(D_P, privateKey);
             }
         }
 
@@ -728,9 +1040,12 @@ public class Lw14 {
 
         // step 2
         Element k_bar_ij = privateKey.k1_ij.duplicate();
+        int[] revokedColumns = cipher.getRevocationBitmap().revokedInRow(my_i, m);
+        int r = 0;
         for(int j = 0; j < m; j++) {
-            AbeUserIndex tempUserIndex = new AbeUserIndex(my_i, j, m);
-            if (j != my_j && Arrays.binarySearch(cipher.revokedUserIndexes, tempUserIndex.counter) < 0) {
+            if (r < revokedColumns.length && revokedColumns[r] == j) {
+                r++;
+            } else if (j != my_j) {
                 k_bar_ij = k_bar_ij.mul(privateKey.k_ijj[j]); // assignment is not necessary
             }
         }
@@ -749,7 +1064,7 @@ public class Lw14 {
     
     public static boolean canDecrypt(AbePrivateKey prv, CipherText cph) throws ParseException {
         if (cph.accessTree != null) {
-            return cph.accessTree.checkSatisfy(prv);
+            return new Lw14PolicyEvaluator(cph.accessTree, prv.getPublicKey()).satisfies(prv);
         } else if (cph.policy != null) {
             return canDecrypt(prv, cph.policy);
         } else {
@@ -767,11 +1082,21 @@ public class Lw14 {
      */
     public static boolean canDecrypt(AbePrivateKey prv, String policy) throws ParseException {
         String postFixPolicy = PolicyParsing.parsePolicy(policy);
-        return Lw14PolicyAbstractNode.parsePolicy(postFixPolicy, prv.getPublicKey()).checkSatisfy(prv);
+        return Lw14PolicyEvaluator.fromPostfix(postFixPolicy).satisfies(prv);
     }
 
-    public static Element trace(Lw14DecryptionBlackBox blackBox) {
-        // TODO: implement
-        throw new RuntimeException("Not implemented");
+    /**
+     * Calculates the indexes of users that lended their keys to the decryption
+     * black box by adaptive bisection over the user indexes (see {@link Lw14Tracer}).
+     * @param pub            Public key
+     * @param policy         Policy that the black box is able to decrypt
+     * @param blackBox       Decryption black box
+     * @param probability    Probability with which the black box decrypts ciphertexts of the policy
+     * @return Sorted indexes of all traced users (traitors)
+     * @throws AbeEncryptionException Probes couldn't be created
+     */
+    public static List<Integer> trace(AbePublicKey pub, String policy, Lw14DecryptionBlackBox blackBox,
+                                      double probability) throws AbeEncryptionException {
+        return new Lw14Tracer(pub, policy, blackBox).trace(probability);
     }
 }
@@ -0,0 +1,130 @@
+package trabe.lw14;
+
+import it.unisa.dia.gas.jpbc.Element;
+import trabe.AbePublicKey;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache from attribute strings to their hashed Zr elements. An
+ * instance is bound to a single public key (see
+ * {@link AbePublicKey#getAttributeHashCache()}), because the mapping into Zr
+ * depends on the pairing.
+ *
+ * <p>The cache is split into independently locked LRU segments so that
+ * concurrent key generations and encryptions rarely contend. The cached
+ * elements never leave the cache, every lookup returns a fresh copy made
+ * with {@link Element#duplicate()}.</p>
+ */
+public class Lw14AttributeHashCache {
+    private static final int SEGMENTS = 16;
+
+    private final AbePublicKey publicKey;
+    private final Segment[] segments;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param publicKey     Public key that provides the Zr field
+     * @param maxSize       Maximum number of cached attributes
+     */
+    public Lw14AttributeHashCache(AbePublicKey publicKey, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.publicKey = publicKey;
+        int segmentCount = Math.min(SEGMENTS, maxSize);
+        segments = new Segment[segmentCount];
+        for(int i = 0; i < segmentCount; i++) {
+            // distribute the remainder so the total is exactly maxSize
+            segments[i] = new Segment(maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0));
+        }
+    }
+
+    /**
+     * Returns the hashed attribute and computes it if it isn't cached yet.
+     * @param attribute    Attribute string
+     * @return New (mutable) Zr element
+     */
+    public Element get(String attribute) {
+        Segment segment = segments[(attribute.hashCode() & 0x7fffffff) % segments.length];
+        Element x;
+        synchronized (segment) {
+            x = segment.get(attribute);
+        }
+        if (x != null) {
+            hits.incrementAndGet();
+            return x.duplicate();
+        }
+        misses.incrementAndGet();
+        x = Lw14Util.hashToZr(attribute, publicKey);
+        synchronized (segment) {
+            segment.put(attribute, x);
+        }
+        return x.duplicate();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Ratio of lookups that were served from the cache (0 if there were no lookups)
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : h / (double) total;
+    }
+
+    /**
+     * @return Number of currently cached attributes
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "Lw14AttributeHashCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + "}";
+    }
+
+    private static class Segment extends LinkedHashMap<String, Element> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Element> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
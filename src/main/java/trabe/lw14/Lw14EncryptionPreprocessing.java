@@ -0,0 +1,24 @@
+package trabe.lw14;
+
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
+import trabe.AbePublicKey;
+import trabe.lw14.policy.Lw14TreePreprocessing;
+
+/**
+ * Fixed-base tables which are shared between many encryptions under the same
+ * public key (e.g. the probes of a trace). All members are only read after
+ * construction, so a single instance can be used by multiple threads. The
+ * G_T tables of E_i are kept on the public key and are only built for the
+ * rows that are used often enough, see {@link AbePublicKey#getEPreProcessing(int)}.
+ */
+public class Lw14EncryptionPreprocessing {
+    public final ElementPowPreProcessing eppp_g;
+    /** for filling the policy tree, regardless of its size **/
+    public final Lw14TreePreprocessing treePreprocessing;
+
+    public Lw14EncryptionPreprocessing(AbePublicKey pub) {
+        eppp_g = pub.g.getElementPowPreProcessing();
+        treePreprocessing = new Lw14TreePreprocessing(pub.f.getElementPowPreProcessing(), eppp_g,
+                pub.G.getElementPowPreProcessing(), pub.H.getElementPowPreProcessing());
+    }
+}
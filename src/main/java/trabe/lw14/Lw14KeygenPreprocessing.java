@@ -0,0 +1,90 @@
+package trabe.lw14;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
+import trabe.AbePublicKey;
+import trabe.AbeSettings;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-base tables which are shared between many key generations under the
+ * same public key. A table for g, f_j or Z_i is only built once its base was
+ * used {@link AbeSettings#PREPROCESSING_THRESHOLD} times, so small batches
+ * don't pay for tables of rows and columns they hardly use. Only the caller
+ * whose use crosses the threshold builds the table, the others exponentiate
+ * without it in the meantime. A single instance can be used by multiple
+ * threads. Hashed attributes are shared through the attribute hash cache of
+ * the public key.
+ */
+public class Lw14KeygenPreprocessing {
+    private final Element[] bases;
+    private final int m;
+    private final AtomicIntegerArray uses;
+    private final AtomicReferenceArray<ElementPowPreProcessing> tables;
+
+    public Lw14KeygenPreprocessing(AbePublicKey pub) {
+        m = pub.getSqrtUsers();
+        // g, f_0 ... f_m-1, Z_0 ... Z_m-1
+        bases = new Element[1 + 2 * m];
+        bases[0] = pub.g;
+        System.arraycopy(pub.f_j, 0, bases, 1, m);
+        System.arraycopy(pub.Z_i, 0, bases, 1 + m, m);
+        uses = new AtomicIntegerArray(bases.length);
+        tables = new AtomicReferenceArray<ElementPowPreProcessing>(bases.length);
+    }
+
+    /**
+     * @param exponentiations    Number of exponentiations the caller is going to do with g
+     * @return Table for g or null if it isn't (yet) worth building one
+     */
+    public ElementPowPreProcessing forG(int exponentiations) {
+        return table(0, exponentiations);
+    }
+
+    /**
+     * @param j    Column
+     * @return Table for f_j (for k_ijj) or null if it isn't (yet) worth building one
+     */
+    public ElementPowPreProcessing forF(int j) {
+        return table(1 + j, 1);
+    }
+
+    /**
+     * @param i    Row
+     * @return Table for Z_i (for k3_ij) or null if it isn't (yet) worth building one
+     */
+    public ElementPowPreProcessing forZ(int i) {
+        return table(1 + m + i, 1);
+    }
+
+    /**
+     * @return Number of built tables
+     */
+    public int getTableCount() {
+        int count = 0;
+        for (int i = 0; i < tables.length(); i++) {
+            if (tables.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private ElementPowPreProcessing table(int slot, int exponentiations) {
+        if (!AbeSettings.PREPROCESSING) {
+            return null;
+        }
+        ElementPowPreProcessing table = tables.get(slot);
+        if (table == null) {
+            int before = uses.getAndAdd(slot, exponentiations);
+            if (before < AbeSettings.PREPROCESSING_THRESHOLD
+                    && before + exponentiations >= AbeSettings.PREPROCESSING_THRESHOLD) {
+                table = bases[slot].getElementPowPreProcessing();
+                tables.set(slot, table);
+            }
+        }
+        return table;
+    }
+}
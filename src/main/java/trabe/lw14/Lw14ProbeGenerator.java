@@ -0,0 +1,210 @@
+package trabe.lw14;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
+import trabe.AbeEncryptionException;
+import trabe.AbeInputStream;
+import trabe.AbeOutputStream;
+import trabe.AbePublicKey;
+import trabe.AbeSettings;
+import trabe.Pair;
+import trabe.lw14.policy.Lw14PolicyAbstractNode;
+import trabe.lw14.policy.Lw14PolicyOptimizer;
+import trabe.policy.PolicyParsing;
+import trabe.policyparser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates tracing ciphertexts (probes) for a fixed policy and a sequence of
+ * user indexes. The parsed policy, the fixed-base tables and the per row
+ * products of the non-revoked f_j are computed once and shared between the
+ * probes. By default every probe is otherwise a fresh encryption, so it can't
+ * be told apart from an honestly created ciphertext.</p>
+ *
+ * <p>The policy tree filled with the secret pi and f^pi can be shared by
+ * {@link #setRefreshInterval(int) refreshInterval} probes as well. This is
+ * unsafe against adaptive black boxes: a pirate decoder recognizes the probes
+ * by their identical policy components and refuses to decrypt them, which
+ * defeats the tracing. Only use it with black boxes that are known not to
+ * compare ciphertexts, e.g. for benchmarks.</p>
+ *
+ * <p>Instances are thread-safe.</p>
+ */
+public class Lw14ProbeGenerator {
+    /** every probe is a fresh encryption **/
+    public static final int DEFAULT_REFRESH_INTERVAL = 1;
+
+    private final AbePublicKey pub;
+    private final String parsedPolicy;
+    private final RevocationContext revocation;
+    private final ElementPowPreProcessing eppp_g;
+    private final Lw14EncryptionPreprocessing epp;
+
+    private int refreshInterval = DEFAULT_REFRESH_INTERVAL;
+    private SharedPart shared = null;
+
+    /**
+     * @param pub                   Public key
+     * @param policy                Policy as a boolean formula
+     * @param revokedUserIndexes    Revoked users by index
+     * @param epp                   Shared preprocessing (may be null, a new one is created
+     *                              if preprocessing is enabled)
+     * @throws AbeEncryptionException Policy couldn't be parsed
+     */
+    public Lw14ProbeGenerator(AbePublicKey pub, String policy, int[] revokedUserIndexes,
+                              Lw14EncryptionPreprocessing epp) throws AbeEncryptionException {
+        this(pub, policy, new RevocationContext(pub, revokedUserIndexes), epp);
+    }
+
+    /**
+     * @param pub           Public key
+     * @param policy        Policy as a boolean formula
+     * @param revocation    Revoked users
+     * @param epp           Shared preprocessing (may be null, a new one is created
+     *                      if preprocessing is enabled)
+     * @throws AbeEncryptionException Policy couldn't be parsed
+     */
+    public Lw14ProbeGenerator(AbePublicKey pub, String policy, RevocationContext revocation,
+                              Lw14EncryptionPreprocessing epp) throws AbeEncryptionException {
+        if (revocation.getPublicKey() != pub) {
+            throw new IllegalArgumentException("The revocation context belongs to another public key");
+        }
+        this.pub = pub;
+        try {
+            this.parsedPolicy = PolicyParsing.parsePolicy(policy);
+        } catch (ParseException e) {
+            throw new AbeEncryptionException("Policy preparsing failed", e);
+        }
+        this.revocation = revocation;
+
+        if (epp == null && AbeSettings.PREPROCESSING) {
+            epp = new Lw14EncryptionPreprocessing(pub);
+        }
+        this.epp = epp;
+        this.eppp_g = epp == null ? null : epp.eppp_g;
+    }
+
+    /**
+     * Opts in to sharing the policy part, see the class documentation why
+     * this is unsafe against adaptive black boxes.
+     * @param refreshInterval    Number of probes which share the same policy part, 1 for none
+     */
+    public synchronized void setRefreshInterval(int refreshInterval) {
+        if (refreshInterval < 1) {
+            throw new IllegalArgumentException("Refresh interval must be positive");
+        }
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Creates a probe for the user index.
+     * @param userIndex    Index of the first user that is eligible for the encrypted data
+     * @return CipherText and key container object, see {@link Lw14#encrypt(AbePublicKey, String, int[], int)}
+     * @throws AbeEncryptionException The policy tree couldn't be built
+     */
+    public Pair<CipherText, Element> next(int userIndex) throws AbeEncryptionException {
+        SharedPart part = acquireSharedPart();
+        Lw14PolicyAbstractNode policyTree;
+        Element f_pow_pi;
+        if (part == null) {
+            Element pi = pub.getPairing().getZr().newRandomElement();
+            policyTree = fillPolicyTree(pi);
+            f_pow_pi = pub.f.duplicate().powZn(pi);
+        } else {
+            // every ciphertext gets its own tree, so the probes are independent objects
+            try {
+                policyTree = Lw14PolicyAbstractNode.readFromStream(
+                        new AbeInputStream(new ByteArrayInputStream(part.serializedTree), pub));
+            } catch (IOException e) {
+                throw new AbeEncryptionException("Couldn't copy the policy tree", e);
+            }
+            f_pow_pi = part.f_pow_pi.duplicate();
+        }
+
+        Element message = pub.getPairing().getGT().newRandomElement();
+        Lw14.IndexComponents ic = Lw14.encryptIndexComponents(pub, userIndex, message, f_pow_pi,
+                revocation.getRevocationProducts(), eppp_g);
+        CipherText ct = new CipherText(policyTree, ic.R1_i, ic.R2_i, ic.Q1_i, ic.Q2_i, ic.Q3_i, ic.T_i,
+                ic.C1_j, ic.C2_j, null, revocation.getRevokedUserIndexes());
+        ct.setRevocationBitmap(revocation.getRevocationBitmap());
+        return new Pair<CipherText, Element>(ct, message);
+    }
+
+    /**
+     * Creates a probe for every user index.
+     * @param userIndexes    User indexes
+     * @return Probes in the order of the indexes
+     * @throws AbeEncryptionException The policy tree couldn't be built
+     */
+    public List<Pair<CipherText, Element>> generate(int[] userIndexes) throws AbeEncryptionException {
+        List<Pair<CipherText, Element>> probes = new ArrayList<Pair<CipherText, Element>>(userIndexes.length);
+        for (int userIndex : userIndexes) {
+            probes.add(next(userIndex));
+        }
+        return probes;
+    }
+
+    /**
+     * @return Shared policy part or null if every probe is a fresh encryption
+     */
+    private synchronized SharedPart acquireSharedPart() throws AbeEncryptionException {
+        if (refreshInterval == 1) {
+            shared = null;
+            return null;
+        }
+        if (shared == null || shared.uses >= refreshInterval) {
+            shared = createSharedPart();
+        }
+        shared.uses++;
+        return shared;
+    }
+
+    private SharedPart createSharedPart() throws AbeEncryptionException {
+        Element pi = pub.getPairing().getZr().newRandomElement();
+        Lw14PolicyAbstractNode policyTree = fillPolicyTree(pi);
+
+        ByteArrayOutputStream tree = new ByteArrayOutputStream();
+        try {
+            AbeOutputStream stream = new AbeOutputStream(tree, pub);
+            policyTree.writeToStream(stream);
+            stream.flush();
+        } catch (IOException e) {
+            throw new AbeEncryptionException("Couldn't copy the policy tree", e);
+        }
+        return new SharedPart(tree.toByteArray(), pub.f.duplicate().powZn(pi));
+    }
+
+    private Lw14PolicyAbstractNode fillPolicyTree(Element pi) throws AbeEncryptionException {
+        Lw14PolicyAbstractNode policyTree;
+        try {
+            policyTree = Lw14PolicyAbstractNode.parsePolicy(parsedPolicy, pub);
+        } catch (ParseException e) {
+            throw new AbeEncryptionException("Couldn't build tree", e);
+        }
+        if (AbeSettings.OPTIMIZE_POLICY_TREE) {
+            policyTree = new Lw14PolicyOptimizer().optimize(policyTree);
+        }
+        if (epp != null) {
+            policyTree.fillPolicy(pub, pi, epp.treePreprocessing);
+        } else {
+            policyTree.fillPolicy(pub, pi);
+        }
+        return policyTree;
+    }
+
+    private static class SharedPart {
+        final byte[] serializedTree;
+        final Element f_pow_pi;
+        int uses = 0;
+
+        SharedPart(byte[] serializedTree, Element f_pow_pi) {
+            this.serializedTree = serializedTree;
+            this.f_pow_pi = f_pow_pi;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package trabe.lw14;
+
+import it.unisa.dia.gas.jpbc.Element;
+import trabe.AbeEncryptionException;
+import trabe.AbePublicKey;
+import trabe.AbeTracer;
+import trabe.Pair;
+import trabe.TraceStatistics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Traces the users that lended their keys to a decryption black box by
+ * bisection over the user indexes instead of probing every index.
+ *
+ * <p>The success rate <code>p_k</code> of the black box for probes with index
+ * <code>k</code> drops from about <code>p</code> at index 0 to 0 at index N
+ * and only drops at the indexes of traitors. If the drop between two indexes
+ * <code>a &lt; b</code> is significant, the interval is split and both halves
+ * are tested; intervals without a significant drop are not probed any further.
+ * Every interval is tested against the minimum drop of a single index, so a
+ * coalition whose drop is spread over several adjacent indexes isn't pruned:
+ * an interval that contains a traitor drops at least by the traitor's gap.
+ * The split points are aligned to the row starts of the
+ * <code>sqrt(N) x sqrt(N)</code> grid as long as an interval spans several
+ * rows, so the rows with traitors are found first and then the columns within
+ * them. For <code>t</code> traitors only <code>O(t log N)</code> indexes are
+ * probed.</p>
+ *
+ * <p>Every drop is tested sequentially with the confidence bounds of
+ * {@link TraceStatistics}. This assumes that the success rate doesn't rise
+ * between two indexes apart from noise, which holds for black boxes that are
+ * built from a set of keys. Traitors whose keys contribute less than the
+ * {@link #setMinimumDrop(double) minimum drop} to the success rate may be
+ * missed.</p>
+ */
+public class Lw14Tracer {
+    private final AbePublicKey pub;
+    private final Lw14DecryptionBlackBox blackBox;
+    private final Lw14ProbeGenerator generator;
+
+    private double lambda = 0.1;
+    private double errorProbability = 0.05;
+    private double minimumDrop = -1;
+    private int batchSize = 16;
+    private AbeTracer.ProgressCallback callback = null;
+
+    private TraceStatistics statistics;
+    private long maxProbes;
+    private long probeCount = 0;
+
+    /**
+     * @param pub         Public key
+     * @param policy      Policy that the black box is able to decrypt
+     * @param blackBox    Decryption black box
+     * @throws AbeEncryptionException Policy couldn't be parsed
+     */
+    public Lw14Tracer(AbePublicKey pub, String policy, Lw14DecryptionBlackBox blackBox) throws AbeEncryptionException {
+        this.pub = pub;
+        this.blackBox = blackBox;
+        this.generator = new Lw14ProbeGenerator(pub, policy, new int[0], null);
+    }
+
+    /**
+     * @param lambda    Security parameter which scales the maximum number of probes per index
+     */
+    public void setLambda(double lambda) {
+        this.lambda = lambda;
+    }
+
+    /**
+     * @param errorProbability    Probability that any of the decisions is wrong
+     */
+    public void setErrorProbability(double errorProbability) {
+        this.errorProbability = errorProbability;
+    }
+
+    /**
+     * @param minimumDrop    Smallest drop of the success rate that is attributed to a traitor
+     *                       (defaults to <code>p / (4 N)</code> like {@link AbeTracer})
+     */
+    public void setMinimumDrop(double minimumDrop) {
+        this.minimumDrop = minimumDrop;
+    }
+
+    /**
+     * @param batchSize    Number of probes per index between two tests
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param callback    Receives the progress, only traitors are reported as decided
+     */
+    public void setProgressCallback(AbeTracer.ProgressCallback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * @return Number of probes of the last trace
+     */
+    public long getProbeCount() {
+        return probeCount;
+    }
+
+    /**
+     * Calculates the indexes of users that lended their keys to the decryption black box.
+     * @param probability    Probability with which the black box decrypts ciphertexts of the policy
+     * @return Sorted indexes of all traced users (traitors)
+     * @throws AbeEncryptionException Probes couldn't be created
+     */
+    public List<Integer> trace(double probability) throws AbeEncryptionException {
+        int N = pub.getMaxUsers();
+        double threshold = minimumDrop > 0 ? minimumDrop : probability / (4 * N);
+        maxProbes = (long) Math.ceil(8 * lambda * Math.pow(N / probability, 2));
+        statistics = new TraceStatistics(N + 1, errorProbability);
+        probeCount = 0;
+
+        List<Integer> traitors = new ArrayList<Integer>();
+        if (significantDrop(0, N, threshold)) {
+            search(0, N, threshold, traitors);
+        }
+        Collections.sort(traitors);
+        return traitors;
+    }
+
+    /**
+     * Searches the traitors in [lo, hi) where the drop from lo to hi is known
+     * to be significant.
+     */
+    private void search(int lo, int hi, double threshold, List<Integer> traitors) throws AbeEncryptionException {
+        if (hi == lo + 1) {
+            traitors.add(lo);
+            if (callback != null) {
+                callback.decided(lo, true);
+            }
+            return;
+        }
+        int mid = split(lo, hi);
+        if (significantDrop(lo, mid, threshold)) {
+            search(lo, mid, threshold, traitors);
+        }
+        if (significantDrop(mid, hi, threshold)) {
+            search(mid, hi, threshold, traitors);
+        }
+    }
+
+    private int split(int lo, int hi) {
+        int rowLength = pub.getSqrtUsers();
+        if (hi - lo > rowLength) {
+            int mid = (lo + (hi - lo) / 2) / rowLength * rowLength;
+            if (mid <= lo) {
+                mid = (lo / rowLength + 1) * rowLength;
+            }
+            return mid;
+        }
+        return lo + (hi - lo) / 2;
+    }
+
+    private boolean significantDrop(int a, int b, double threshold) throws AbeEncryptionException {
+        Boolean drop;
+        while ((drop = statistics.compareDrop(a, b, threshold, maxProbes)) == null) {
+            probe(a);
+            probe(b);
+        }
+        return drop;
+    }
+
+    private void probe(int userIndex) throws AbeEncryptionException {
+        int count = (int) Math.min(batchSize, maxProbes - statistics.getProbes(userIndex));
+        if (count <= 0) {
+            return;
+        }
+        int successes = 0;
+        for (int i = 0; i < count; i++) {
+            Pair<CipherText, Element> probe = generator.next(userIndex);
+            Element decrypted = blackBox.decrypt(probe.getFirst());
+            if (decrypted != null && decrypted.isEqual(probe.getSecond())) {
+                successes++;
+            }
+        }
+        statistics.add(userIndex, count, successes);
+        probeCount += count;
+        if (callback != null) {
+            callback.probed(userIndex, statistics.getProbes(userIndex), statistics.getSuccesses(userIndex));
+        }
+    }
+}
@@ -13,39 +13,47 @@ import java.util.*;
 import trabe.*;
 import it.unisa.dia.gas.jpbc.Field;
 import trabe.lw14.policy.Lw14PolicyAbstractNode;
+import trabe.lw14.policy.Lw14PolicyEvaluator;
 import trabe.policy.PolicyParsing;
 import trabe.policyparser.*;
 
 public class Lw14Util {
     private enum ElementType { G1, G2, GT, Zr}
 
-    private static Element elementFromString(ElementType et, String s, AbePublicKey publicKey) {
-        try {
-            MessageDigest hasher = MessageDigest.getInstance(AbeSettings.ELEMENT_HASHING_ALGORITHM);
-            byte[] digest = hasher.digest(s.getBytes());
-            Field field;
-            switch (et){
-                case G1:
-                    field = publicKey.getPairing().getG1();
-                    break;
-                case G2:
-                    field = publicKey.getPairing().getG2();
-                    break;
-                case GT:
-                    field = publicKey.getPairing().getGT();
-                    break;
-                case Zr:
-                    field = publicKey.getPairing().getZr();
-                    break;
-                default:
-                    return null;
+    private static final ThreadLocal<MessageDigest> hashers = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(AbeSettings.ELEMENT_HASHING_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                System.exit(1);
             }
-            return field.newElementFromHash(digest, 0, digest.length);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            System.exit(1);
+            return null;
+        }
+    };
+
+    private static Element elementFromString(ElementType et, String s, AbePublicKey publicKey) {
+        MessageDigest hasher = hashers.get();
+        byte[] digest = hasher.digest(s.getBytes()); // digest resets the hasher
+        Field field;
+        switch (et){
+            case G1:
+                field = publicKey.getPairing().getG1();
+                break;
+            case G2:
+                field = publicKey.getPairing().getG2();
+                break;
+            case GT:
+                field = publicKey.getPairing().getGT();
+                break;
+            case Zr:
+                field = publicKey.getPairing().getZr();
+                break;
+            default:
+                return null;
         }
-        return null;
+        return field.newElementFromHash(digest, 0, digest.length);
     }
 
     public static Element elementG1FromString(String s, AbePublicKey publicKey) {
@@ -60,7 +68,21 @@ public class Lw14Util {
         return elementFromString(ElementType.GT, s, publicKey);
     }
 
+    /**
+     * Hashes the string into Zr. The result is served from the attribute hash
+     * cache of the public key if it is enabled.
+     * @param s            Attribute string
+     * @param publicKey    Public key
+     * @return New Zr element
+     */
     public static Element elementZrFromString(String s, AbePublicKey publicKey) {
+        if (AbeSettings.ATTRIBUTE_HASH_CACHE_SIZE > 0) {
+            return publicKey.getAttributeHashCache().get(s);
+        }
+        return hashToZr(s, publicKey);
+    }
+
+    static Element hashToZr(String s, AbePublicKey publicKey) {
         return elementFromString(ElementType.Zr, s, publicKey);
     }
 
@@ -166,14 +188,6 @@ public class Lw14Util {
         return sb.toString();
     }
 
-    private static AbePrivateKey mockPrivateKey(Set<String> attributes, AbePublicKey publicKey) {
-        ArrayList<Lw14PrivateKeyComponent> components = new ArrayList<Lw14PrivateKeyComponent>();
-        for (String s : attributes) {
-            components.add(new Lw14PrivateKeyComponent(s, elementZrFromString(s, publicKey), null, null,null, null));
-        }
-        return new AbePrivateKey(null, null, null, null, null, components, publicKey);
-    }
-
     public static Lw14PolicyAbstractNode getPolicyTree(String policy, AbePublicKey publicKey) throws ParseException {
         String postFixPolicy = PolicyParsing.parsePolicy(policy);
         return Lw14PolicyAbstractNode.parsePolicy(postFixPolicy, publicKey);
@@ -188,7 +202,8 @@ public class Lw14Util {
     }
 
     /**
-     * Generates a parse tree and uses it to check whether the passed set of attributes satisfies the access tree.
+     * Checks whether the passed set of attributes satisfies the policy. Only the attribute names are compared, so
+     * no group elements are involved.
      *
      * @param policy    policy
      * @param set       Attribute string set
@@ -196,19 +211,20 @@ public class Lw14Util {
      * @throws ParseException Policy parsing failed
      */
     public static boolean satisfies(String policy, Set<String> set, AbePublicKey publicKey) throws ParseException {
-        return satisfies(policy, mockPrivateKey(set, publicKey));
+        return Lw14PolicyEvaluator.fromPostfix(PolicyParsing.parsePolicy(policy)).satisfies(set);
     }
 
     /**
-     * Uses the parse tree to check whether the passed set of attributes satisfies the access tree.
+     * Uses the parse tree to check whether the passed set of attributes satisfies the access tree. The attributes are
+     * compared by name or, for trees read from a ciphertext, by their hash.
      *
      * @param policyTree    Root node of the tree
      * @param set           Attribute string set
-     * @param publicKey     Public key for some internal elements
+     * @param publicKey     Public key to hash the attributes if the tree doesn't contain names
      * @return  Set satisfies the tree
      */
     public static boolean satisfies(Lw14PolicyAbstractNode policyTree, Set<String> set, AbePublicKey publicKey) {
-        return satisfies(policyTree, mockPrivateKey(set, publicKey));
+        return new Lw14PolicyEvaluator(policyTree, publicKey).satisfies(set);
     }
 
     /**
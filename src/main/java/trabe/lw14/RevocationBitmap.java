@@ -0,0 +1,452 @@
+package trabe.lw14;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Immutable set of revoked user indexes as a compressed bitmap in the style
+ * of Roaring bitmaps. The indexes are split into chunks of 65536 by their
+ * upper 16 bits and every chunk is stored in the smallest of three
+ * containers:
+ * <ul>
+ *     <li>array: sorted lower 16 bits (2 bytes per index),</li>
+ *     <li>bitmap: 65536 bits (8 KiB),</li>
+ *     <li>run: sorted start and length pairs (4 bytes per run).</li>
+ * </ul>
+ *
+ * <p>Besides the membership test the bitmap supports the iteration over the
+ * revoked users of a single row of the user grid
+ * ({@link #revokedInRow(int, int)}) which is what encryption and decryption
+ * need.</p>
+ */
+public class RevocationBitmap {
+    private static final int ARRAY_CONTAINER = 0;
+    private static final int BITMAP_CONTAINER = 1;
+    private static final int RUN_CONTAINER = 2;
+
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int BITMAP_WORDS = CHUNK_SIZE / 64;
+
+    public static final RevocationBitmap EMPTY = new RevocationBitmap(new int[0], new Container[0]);
+
+    /** upper 16 bits of the indexes in the containers (ascending) **/
+    private final int[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    private RevocationBitmap(int[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int sum = 0;
+        for (Container container : containers) {
+            sum += container.cardinality();
+        }
+        this.cardinality = sum;
+    }
+
+    /**
+     * Creates the bitmap for the revoked user indexes.
+     * @param revokedUserIndexes    Revoked users by index (any order, duplicates are ignored)
+     * @return Bitmap
+     */
+    public static RevocationBitmap of(int[] revokedUserIndexes) {
+        if (revokedUserIndexes == null || revokedUserIndexes.length == 0) {
+            return EMPTY;
+        }
+        int[] sorted = revokedUserIndexes.clone();
+        Arrays.sort(sorted);
+        if (sorted[0] < 0) {
+            throw new IllegalArgumentException("User indexes must not be negative");
+        }
+
+        int chunks = 1;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] >>> 16 != sorted[i - 1] >>> 16) {
+                chunks++;
+            }
+        }
+        int[] keys = new int[chunks];
+        Container[] containers = new Container[chunks];
+        int chunk = 0;
+        int start = 0;
+        for (int i = 1; i <= sorted.length; i++) {
+            if (i == sorted.length || sorted[i] >>> 16 != sorted[start] >>> 16) {
+                keys[chunk] = sorted[start] >>> 16;
+                containers[chunk] = createContainer(sorted, start, i);
+                chunk++;
+                start = i;
+            }
+        }
+        return new RevocationBitmap(keys, containers);
+    }
+
+    /**
+     * Chooses the smallest container for the sorted indexes in [from, to),
+     * which all have the same upper 16 bits.
+     */
+    private static Container createContainer(int[] sorted, int from, int to) {
+        char[] values = new char[to - from];
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            char value = (char) (sorted[i] & 0xFFFF);
+            if (n == 0 || values[n - 1] != value) {
+                values[n++] = value;
+            }
+        }
+        int runs = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || values[i] != values[i - 1] + 1) {
+                runs++;
+            }
+        }
+
+        int arraySize = 2 * n;
+        int bitmapSize = 8 * BITMAP_WORDS;
+        int runSize = 4 * runs;
+        if (runSize < arraySize && runSize < bitmapSize) {
+            char[] starts = new char[runs];
+            char[] lengths = new char[runs]; // length - 1, so a full chunk fits
+            int r = -1;
+            for (int i = 0; i < n; i++) {
+                if (i == 0 || values[i] != values[i - 1] + 1) {
+                    starts[++r] = values[i];
+                } else {
+                    lengths[r]++;
+                }
+            }
+            return new RunContainer(starts, lengths);
+        } else if (arraySize <= bitmapSize) {
+            return new ArrayContainer(n == values.length ? values : Arrays.copyOf(values, n));
+        } else {
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < n; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return new BitmapContainer(words, n);
+        }
+    }
+
+    /**
+     * @param userIndex    User index
+     * @return The user is revoked
+     */
+    public boolean contains(int userIndex) {
+        if (userIndex < 0) {
+            return false;
+        }
+        int c = Arrays.binarySearch(keys, userIndex >>> 16);
+        return c >= 0 && containers[c].contains((char) userIndex);
+    }
+
+    /**
+     * @param fromIndex    Smallest user index to consider
+     * @return Smallest revoked user index that is at least fromIndex or -1 if there is none
+     */
+    public int nextRevoked(int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        int key = fromIndex >>> 16;
+        int c = Arrays.binarySearch(keys, key);
+        if (c < 0) {
+            c = -c - 1;
+        } else {
+            int low = containers[c].next((char) fromIndex);
+            if (low >= 0) {
+                return (key << 16) | low;
+            }
+            c++;
+        }
+        if (c < containers.length) {
+            return (keys[c] << 16) | containers[c].next((char) 0);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the columns of the revoked users in row i of the user grid.
+     * @param row          Row i
+     * @param rowLength    Number of users per row (square root of the maximum number of users)
+     * @return Sorted revoked columns j
+     */
+    public int[] revokedInRow(int row, int rowLength) {
+        if (cardinality == 0) {
+            return new int[0];
+        }
+        int start = row * rowLength;
+        int end = start + rowLength;
+        int[] columns = new int[Math.min(rowLength, cardinality)];
+        int n = 0;
+        for (int k = nextRevoked(start); k >= 0 && k < end; k = nextRevoked(k + 1)) {
+            columns[n++] = k - start;
+        }
+        return n == columns.length ? columns : Arrays.copyOf(columns, n);
+    }
+
+    /**
+     * @return Number of revoked users
+     */
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * @return Sorted revoked user indexes
+     */
+    public int[] toArray() {
+        int[] result = new int[cardinality];
+        int n = 0;
+        for (int c = 0; c < containers.length; c++) {
+            int high = keys[c] << 16;
+            for (int low = containers[c].next((char) 0); low >= 0; low = low == CHUNK_SIZE - 1 ? -1 : containers[c].next((char) (low + 1))) {
+                result[n++] = high | low;
+            }
+        }
+        return result;
+    }
+
+    public void writeToStream(DataOutputStream stream) throws IOException {
+        stream.writeInt(containers.length);
+        for (int c = 0; c < containers.length; c++) {
+            stream.writeShort(keys[c]);
+            containers[c].writeToStream(stream);
+        }
+    }
+
+    public static RevocationBitmap readFromStream(DataInputStream stream) throws IOException {
+        int count = stream.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid number of revocation containers: " + count);
+        }
+        if (count == 0) {
+            return EMPTY;
+        }
+        int[] keys = new int[count];
+        Container[] containers = new Container[count];
+        for (int c = 0; c < count; c++) {
+            keys[c] = stream.readUnsignedShort();
+            if (c > 0 && keys[c] <= keys[c - 1]) {
+                throw new IOException("Revocation containers are not sorted");
+            }
+            int type = stream.readByte();
+            switch (type) {
+                case ARRAY_CONTAINER:
+                    containers[c] = ArrayContainer.readFromStream(stream);
+                    break;
+                case BITMAP_CONTAINER:
+                    containers[c] = BitmapContainer.readFromStream(stream);
+                    break;
+                case RUN_CONTAINER:
+                    containers[c] = RunContainer.readFromStream(stream);
+                    break;
+                default:
+                    throw new IOException("Unknown revocation container type: " + type);
+            }
+        }
+        return new RevocationBitmap(keys, containers);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof RevocationBitmap)) {
+            return false;
+        }
+        RevocationBitmap other = (RevocationBitmap) obj;
+        return cardinality == other.cardinality && Arrays.equals(toArray(), other.toArray());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+
+    private static abstract class Container {
+        abstract boolean contains(char low);
+
+        /**
+         * @return Smallest value that is at least low or -1
+         */
+        abstract int next(char low);
+
+        abstract int cardinality();
+
+        abstract void writeToStream(DataOutputStream stream) throws IOException;
+    }
+
+    private static class ArrayContainer extends Container {
+        private final char[] values;
+
+        ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, low) >= 0;
+        }
+
+        @Override
+        int next(char low) {
+            int i = Arrays.binarySearch(values, low);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return i < values.length ? values[i] : -1;
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        void writeToStream(DataOutputStream stream) throws IOException {
+            stream.writeByte(ARRAY_CONTAINER);
+            stream.writeShort(values.length - 1);
+            for (char value : values) {
+                stream.writeChar(value);
+            }
+        }
+
+        static ArrayContainer readFromStream(DataInputStream stream) throws IOException {
+            char[] values = new char[stream.readUnsignedShort() + 1];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = stream.readChar();
+                if (i > 0 && values[i] <= values[i - 1]) {
+                    throw new IOException("Revoked user indexes are not sorted");
+                }
+            }
+            return new ArrayContainer(values);
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        private final long[] words;
+        private final int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        int next(char low) {
+            int w = low >>> 6;
+            long word = words[w] & (-1L << low);
+            while (word == 0) {
+                if (++w == BITMAP_WORDS) {
+                    return -1;
+                }
+                word = words[w];
+            }
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        void writeToStream(DataOutputStream stream) throws IOException {
+            stream.writeByte(BITMAP_CONTAINER);
+            for (long word : words) {
+                stream.writeLong(word);
+            }
+        }
+
+        static BitmapContainer readFromStream(DataInputStream stream) throws IOException {
+            long[] words = new long[BITMAP_WORDS];
+            int cardinality = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                words[i] = stream.readLong();
+                cardinality += Long.bitCount(words[i]);
+            }
+            return new BitmapContainer(words, cardinality);
+        }
+    }
+
+    private static class RunContainer extends Container {
+        private final char[] starts;
+        /** length of the run minus one **/
+        private final char[] lengths;
+        private final int cardinality;
+
+        RunContainer(char[] starts, char[] lengths) {
+            this.starts = starts;
+            this.lengths = lengths;
+            int sum = 0;
+            for (char length : lengths) {
+                sum += length + 1;
+            }
+            this.cardinality = sum;
+        }
+
+        /**
+         * @return Index of the last run that starts at or before low or -1
+         */
+        private int run(char low) {
+            int i = Arrays.binarySearch(starts, low);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        @Override
+        boolean contains(char low) {
+            int r = run(low);
+            return r >= 0 && low <= starts[r] + lengths[r];
+        }
+
+        @Override
+        int next(char low) {
+            int r = run(low);
+            if (r >= 0 && low <= starts[r] + lengths[r]) {
+                return low;
+            }
+            return r + 1 < starts.length ? starts[r + 1] : -1;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        void writeToStream(DataOutputStream stream) throws IOException {
+            stream.writeByte(RUN_CONTAINER);
+            stream.writeShort(starts.length - 1);
+            for (int r = 0; r < starts.length; r++) {
+                stream.writeChar(starts[r]);
+                stream.writeChar(lengths[r]);
+            }
+        }
+
+        static RunContainer readFromStream(DataInputStream stream) throws IOException {
+            int runs = stream.readUnsignedShort() + 1;
+            char[] starts = new char[runs];
+            char[] lengths = new char[runs];
+            for (int r = 0; r < runs; r++) {
+                starts[r] = stream.readChar();
+                lengths[r] = stream.readChar();
+                if (starts[r] + lengths[r] >= CHUNK_SIZE
+                        || (r > 0 && starts[r] <= starts[r - 1] + lengths[r - 1] + 1)) {
+                    throw new IOException("Invalid revocation run");
+                }
+            }
+            return new RunContainer(starts, lengths);
+        }
+    }
+}
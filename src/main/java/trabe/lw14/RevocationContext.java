@@ -0,0 +1,87 @@
+package trabe.lw14;
+
+import it.unisa.dia.gas.jpbc.Element;
+import trabe.AbePublicKey;
+
+import java.util.Arrays;
+
+/**
+ * Precomputed data for encryptions with a fixed list of revoked users. The
+ * list is usually the same for all the encryptions of a deployment, so the
+ * per row products of the non-revoked f_j are computed once instead of in
+ * every call of
+ * {@link Lw14#encrypt(AbePublicKey, String, RevocationContext, int, Lw14EncryptionPreprocessing)}.
+ *
+ * <p>Instances are immutable and can be shared between threads. Ciphertexts
+ * created with a context share its {@link RevocationBitmap}, so decryption
+ * (which skips the revoked columns of the row of the user when it computes
+ * k_bar) doesn't have to build the bitmap again.</p>
+ */
+public class RevocationContext {
+    private final AbePublicKey pub;
+    private final int[] revokedUserIndexes;
+    private final RevocationBitmap revoked;
+    /** f times the product of the non-revoked f_j per row **/
+    private final Element[] f_temp_i;
+
+    /**
+     * @param pub                   Public key
+     * @param revokedUserIndexes    Revoked users by index (the array is copied and not modified)
+     */
+    public RevocationContext(AbePublicKey pub, int[] revokedUserIndexes) {
+        this.pub = pub;
+        this.revokedUserIndexes = revokedUserIndexes == null ? new int[0] : revokedUserIndexes.clone();
+        Arrays.sort(this.revokedUserIndexes);
+        this.revoked = RevocationBitmap.of(this.revokedUserIndexes);
+
+        int m = pub.getSqrtUsers();
+        f_temp_i = new Element[m];
+        for (int i = 0; i < m; i++) {
+            int[] revokedColumns = revoked.revokedInRow(i, m);
+            Element f_temp = pub.f.duplicate();
+            int r = 0;
+            for (int j = 0; j < m; j++) {
+                if (r < revokedColumns.length && revokedColumns[r] == j) {
+                    r++;
+                } else {
+                    f_temp.mul(pub.f_j[j]);
+                }
+            }
+            f_temp_i[i] = f_temp;
+        }
+    }
+
+    /**
+     * @return Public key of the context
+     */
+    public AbePublicKey getPublicKey() {
+        return pub;
+    }
+
+    /**
+     * @return Sorted revoked user indexes (copy)
+     */
+    public int[] getRevokedUserIndexes() {
+        return revokedUserIndexes.clone();
+    }
+
+    public RevocationBitmap getRevocationBitmap() {
+        return revoked;
+    }
+
+    /**
+     * @return Product of f and the non-revoked f_j for every row (shared elements, only
+     *          read them or work on a {@link Element#duplicate()} like with the public key)
+     */
+    Element[] getRevocationProducts() {
+        return f_temp_i;
+    }
+
+    /**
+     * @param userIndex    User index
+     * @return The user is revoked
+     */
+    public boolean isRevoked(int userIndex) {
+        return revoked.contains(userIndex);
+    }
+}
@@ -44,6 +44,14 @@ public abstract class Lw14PolicyAbstractNode {
 
     public abstract int getThreshold();
 
+    /**
+     * Copies the structure of the tree, the group elements are shared. The
+     * satisfiability and the picked leaves of a decryption are stored in the
+     * nodes, so each decryption works on its own copy.
+     * @return Copy of the tree
+     */
+    public abstract Lw14PolicyAbstractNode copy();
+
     public abstract void writeToStream(AbeOutputStream stream) throws IOException;
 
     public static Lw14PolicyAbstractNode readFromStream(AbeInputStream stream) throws IOException {
@@ -0,0 +1,482 @@
+package trabe.lw14.policy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import trabe.AbePrivateKey;
+import trabe.AbePublicKey;
+import trabe.lw14.Lw14PrivateKeyComponent;
+import trabe.lw14.Lw14Util;
+import trabe.policyparser.ParseException;
+
+/**
+ * Boolean view of a policy tree for satisfiability checks without any group
+ * element work. Every distinct attribute of the policy gets an id and
+ * attribute sets are represented as {@link BitSet}s over these ids.
+ *
+ * <p>Attributes are matched by name. Trees that were read from a ciphertext
+ * only contain the hashed attributes, so the attributes of those leaves are
+ * matched by the hash value instead. Private key components carry their hash,
+ * but plain attribute strings have to be hashed in that case (see
+ * {@link Lw14Util#elementZrFromString(String, AbePublicKey)}).</p>
+ *
+ * <p>The structure and the attribute hashes can be serialized without any
+ * group elements, which is used for the policy header of ciphertexts.</p>
+ *
+ * <p>Instances are immutable and can be shared between threads.</p>
+ */
+public class Lw14PolicyEvaluator {
+    private static final Pattern ofPattern = Pattern.compile("^([0-9]+)of([0-9]+)$");
+    /** sanity bound for reading headers, Zr elements are much smaller **/
+    private static final int MAX_HASH_LENGTH = 1024;
+    /** sanity bound for reading headers, so that crafted headers can't exhaust the stack **/
+    private static final int MAX_DEPTH = 512;
+
+    /** threshold per node, 0 for leaves; node 0 is the root **/
+    private final int[] thresholds;
+    /** child node indexes per node **/
+    private final int[][] children;
+    /** attribute id per node, -1 for gates **/
+    private final int[] leafAttributes;
+
+    private final String[] attributeNames;
+    private final BigInteger[] attributeHashes;
+    private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+    private final Map<BigInteger, Integer> hashIds = new HashMap<BigInteger, Integer>();
+    private final AbePublicKey publicKey;
+
+    private Lw14PolicyEvaluator(Builder builder, AbePublicKey publicKey) {
+        int nodes = builder.thresholds.size();
+        thresholds = new int[nodes];
+        children = new int[nodes][];
+        leafAttributes = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            thresholds[i] = builder.thresholds.get(i);
+            children[i] = builder.children.get(i);
+            leafAttributes[i] = builder.leafAttributes.get(i);
+        }
+        attributeNames = builder.names.toArray(new String[builder.names.size()]);
+        attributeHashes = builder.hashes.toArray(new BigInteger[builder.hashes.size()]);
+        for (int id = 0; id < attributeNames.length; id++) {
+            if (attributeNames[id] != null) {
+                nameIds.put(attributeNames[id], id);
+            } else if (attributeHashes[id] != null) {
+                // names are preferred, hashes are only needed for leaves without a name
+                hashIds.put(attributeHashes[id], id);
+            }
+        }
+        this.publicKey = publicKey;
+    }
+
+    /**
+     * Creates an evaluator for a (filled or unfilled) policy tree.
+     * @param root         Root of the policy tree
+     * @param publicKey    Public key which is used to hash attribute strings if
+     *                     the tree doesn't contain attribute names (may be null otherwise)
+     */
+    public Lw14PolicyEvaluator(Lw14PolicyAbstractNode root, AbePublicKey publicKey) {
+        this(Builder.fromTree(root), publicKey);
+    }
+
+    /**
+     * Creates an evaluator directly from a postfix policy as produced by
+     * {@link trabe.policy.PolicyParsing#parsePolicy(String)}. No attribute is hashed.
+     * @param postFixPolicy    Policy in postfix notation
+     * @return Evaluator
+     * @throws ParseException Policy is malformed
+     */
+    public static Lw14PolicyEvaluator fromPostfix(String postFixPolicy) throws ParseException {
+        return new Lw14PolicyEvaluator(Builder.fromPostfix(postFixPolicy), null);
+    }
+
+    /**
+     * Reads an evaluator that was written with {@link #writeToStream(DataOutputStream)}.
+     * It only contains the attribute hashes.
+     * @param stream       Input stream
+     * @param publicKey    Public key which is used to hash attribute strings (may be null
+     *                     if only private keys are checked)
+     * @return Evaluator
+     * @throws IOException Stream couldn't be read or is malformed
+     */
+    public static Lw14PolicyEvaluator readFromStream(DataInputStream stream, AbePublicKey publicKey) throws IOException {
+        return new Lw14PolicyEvaluator(Builder.fromStream(stream), publicKey);
+    }
+
+    /**
+     * Writes the structure and the attribute hashes, but no attribute names.
+     * @param stream    Output stream
+     * @throws IOException see {@link DataOutputStream#writeInt(int)}
+     * @throws IllegalStateException if an attribute hash is unknown (evaluators created from a postfix policy)
+     */
+    public void writeToStream(DataOutputStream stream) throws IOException {
+        stream.writeInt(attributeHashes.length);
+        for (BigInteger hash : attributeHashes) {
+            if (hash == null) {
+                throw new IllegalStateException("Attribute hashes are only known for evaluators created from a tree");
+            }
+            byte[] bytes = hash.toByteArray();
+            stream.writeInt(bytes.length);
+            stream.write(bytes);
+        }
+        writeNode(0, stream);
+    }
+
+    private void writeNode(int node, DataOutputStream stream) throws IOException {
+        stream.writeInt(thresholds[node]);
+        stream.writeInt(children[node].length);
+        if (leafAttributes[node] >= 0) {
+            stream.writeInt(leafAttributes[node]);
+        }
+        for (int child : children[node]) {
+            writeNode(child, stream);
+        }
+    }
+
+    /**
+     * @return Number of distinct attributes in the policy
+     */
+    public int getAttributeCount() {
+        return attributeNames.length;
+    }
+
+    /**
+     * @param id    Attribute id
+     * @return Name of the attribute or null if the tree only contains its hash
+     */
+    public String getAttributeName(int id) {
+        return attributeNames[id];
+    }
+
+    /**
+     * Maps the attribute strings to their ids. Attributes which don't occur
+     * in the policy are ignored.
+     * @param attributes    Attribute strings
+     * @return Set of attribute ids
+     */
+    public BitSet toBitSet(Collection<String> attributes) {
+        BitSet set = new BitSet(attributeNames.length);
+        for (String attribute : attributes) {
+            int id = idOf(attribute);
+            if (id >= 0) {
+                set.set(id);
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Maps the attributes of the private key to their ids. Attributes which
+     * don't occur in the policy are ignored.
+     * @param prv    Private key
+     * @return Set of attribute ids
+     */
+    public BitSet toBitSet(AbePrivateKey prv) {
+        BitSet set = new BitSet(attributeNames.length);
+        for (Lw14PrivateKeyComponent component : prv.getComponents()) {
+            Integer id = component.attribute == null ? null : nameIds.get(component.attribute);
+            if (id == null && !hashIds.isEmpty() && component.hashedAttributeZr != null) {
+                id = hashIds.get(component.hashedAttributeZr.toBigInteger());
+            }
+            if (id != null) {
+                set.set(id);
+            }
+        }
+        return set;
+    }
+
+    private int idOf(String attribute) {
+        Integer id = nameIds.get(attribute);
+        if (id == null && !hashIds.isEmpty()) {
+            if (publicKey == null) {
+                throw new IllegalStateException("The policy only contains hashed attributes, but no public key is available");
+            }
+            id = hashIds.get(Lw14Util.elementZrFromString(attribute, publicKey).toBigInteger());
+        }
+        return id == null ? -1 : id;
+    }
+
+    public boolean satisfies(Collection<String> attributes) {
+        return satisfies(toBitSet(attributes));
+    }
+
+    public boolean satisfies(AbePrivateKey prv) {
+        return satisfies(toBitSet(prv));
+    }
+
+    /**
+     * @param attributes    Set of attribute ids
+     * @return The attributes satisfy the policy
+     */
+    public boolean satisfies(BitSet attributes) {
+        return satisfies(0, attributes);
+    }
+
+    private boolean satisfies(int node, BitSet attributes) {
+        if (leafAttributes[node] >= 0) {
+            return attributes.get(leafAttributes[node]);
+        }
+        int needed = thresholds[node];
+        int remaining = children[node].length;
+        for (int child : children[node]) {
+            if (satisfies(child, attributes)) {
+                if (--needed == 0) {
+                    return true;
+                }
+            }
+            if (--remaining < needed) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Selects the attributes which are used when the policy is satisfied with
+     * the fewest leaves. This is the same selection that decryption makes.
+     * @param attributes    Set of attribute ids
+     * @return Subset of the passed attribute ids or null if the policy isn't satisfied
+     */
+    public BitSet minimalSatisfyingSet(BitSet attributes) {
+        int[] minLeaves = new int[thresholds.length];
+        if (!computeMinLeaves(0, attributes, minLeaves)) {
+            return null;
+        }
+        BitSet result = new BitSet(attributeNames.length);
+        collectMinLeaves(0, minLeaves, result);
+        return result;
+    }
+
+    /**
+     * Selects the attributes which are used when the policy is satisfied with
+     * the fewest leaves.
+     * @param attributes    Attribute strings
+     * @return Subset of the passed attributes or null if the policy isn't satisfied
+     */
+    public Set<String> minimalSatisfyingSet(Collection<String> attributes) {
+        BitSet ids = minimalSatisfyingSet(toBitSet(attributes));
+        if (ids == null) {
+            return null;
+        }
+        Set<String> result = new HashSet<String>();
+        for (String attribute : attributes) {
+            int id = idOf(attribute);
+            if (id >= 0 && ids.get(id)) {
+                result.add(attribute);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the minimal number of leaves per node, which is
+     * {@link Integer#MAX_VALUE} for unsatisfied nodes.
+     */
+    private boolean computeMinLeaves(int node, BitSet attributes, int[] minLeaves) {
+        if (leafAttributes[node] >= 0) {
+            boolean satisfied = attributes.get(leafAttributes[node]);
+            minLeaves[node] = satisfied ? 1 : Integer.MAX_VALUE;
+            return satisfied;
+        }
+        int[] childCosts = new int[children[node].length];
+        int satisfiedChildren = 0;
+        for (int i = 0; i < childCosts.length; i++) {
+            computeMinLeaves(children[node][i], attributes, minLeaves);
+            childCosts[i] = minLeaves[children[node][i]];
+            if (childCosts[i] != Integer.MAX_VALUE) {
+                satisfiedChildren++;
+            }
+        }
+        if (satisfiedChildren < thresholds[node]) {
+            minLeaves[node] = Integer.MAX_VALUE;
+            return false;
+        }
+        Arrays.sort(childCosts);
+        int sum = 0;
+        for (int i = 0; i < thresholds[node]; i++) {
+            sum += childCosts[i];
+        }
+        minLeaves[node] = sum;
+        return true;
+    }
+
+    private void collectMinLeaves(int node, int[] minLeaves, BitSet result) {
+        if (leafAttributes[node] >= 0) {
+            result.set(leafAttributes[node]);
+            return;
+        }
+        // pick the cheapest satisfied children, ties are resolved by position
+        boolean[] picked = new boolean[children[node].length];
+        for (int k = 0; k < thresholds[node]; k++) {
+            int best = -1;
+            for (int i = 0; i < picked.length; i++) {
+                if (!picked[i] && (best < 0 || minLeaves[children[node][i]] < minLeaves[children[node][best]])) {
+                    best = i;
+                }
+            }
+            picked[best] = true;
+            collectMinLeaves(children[node][best], minLeaves, result);
+        }
+    }
+
+    /**
+     * Collects the nodes in pre-order so that the root has index 0.
+     */
+    private static class Builder {
+        private final List<Integer> thresholds = new ArrayList<Integer>();
+        private final List<int[]> children = new ArrayList<int[]>();
+        private final List<Integer> leafAttributes = new ArrayList<Integer>();
+        private final List<String> names = new ArrayList<String>();
+        private final List<BigInteger> hashes = new ArrayList<BigInteger>();
+        private final Map<Object, Integer> ids = new HashMap<Object, Integer>();
+
+        static Builder fromTree(Lw14PolicyAbstractNode root) {
+            Builder builder = new Builder();
+            builder.add(root);
+            return builder;
+        }
+
+        private int add(Lw14PolicyAbstractNode node) {
+            int index = thresholds.size();
+            if (node instanceof Lw14PolicyLeafNode) {
+                Lw14PolicyLeafNode leaf = (Lw14PolicyLeafNode) node;
+                addLeaf(leaf.getAttribute(), leaf.getHashedAttribute().toBigInteger());
+                return index;
+            }
+            List<Lw14PolicyAbstractNode> nodeChildren = ((Lw14PolicyParentNode) node).getChildren();
+            int[] childIndexes = new int[nodeChildren.size()];
+            thresholds.add(node.getThreshold());
+            children.add(childIndexes);
+            leafAttributes.add(-1);
+            for (int i = 0; i < childIndexes.length; i++) {
+                childIndexes[i] = add(nodeChildren.get(i));
+            }
+            return index;
+        }
+
+        private void addLeaf(String name, BigInteger hash) {
+            Object key = hash != null ? hash : name;
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = names.size();
+                ids.put(key, id);
+                names.add(name);
+                hashes.add(hash);
+            }
+            thresholds.add(0);
+            children.add(new int[0]);
+            leafAttributes.add(id);
+        }
+
+        static Builder fromStream(DataInputStream stream) throws IOException {
+            Builder builder = new Builder();
+            int attributes = stream.readInt();
+            if (attributes < 0) {
+                throw new IOException("Malformed policy header");
+            }
+            for (int i = 0; i < attributes; i++) {
+                int length = stream.readInt();
+                if (length < 1 || length > MAX_HASH_LENGTH) {
+                    throw new IOException("Malformed policy header");
+                }
+                byte[] bytes = new byte[length];
+                stream.readFully(bytes);
+                builder.names.add(null);
+                builder.hashes.add(new BigInteger(bytes));
+            }
+            builder.readNode(stream, 0);
+            return builder;
+        }
+
+        private int readNode(DataInputStream stream, int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw new IOException("Malformed policy header, the tree is deeper than " + MAX_DEPTH);
+            }
+            int index = thresholds.size();
+            int threshold = stream.readInt();
+            int numberOfChildren = stream.readInt();
+            thresholds.add(threshold);
+            if (numberOfChildren == 0) {
+                int id = stream.readInt();
+                if (id < 0 || id >= names.size()) {
+                    throw new IOException("Malformed policy header");
+                }
+                children.add(new int[0]);
+                leafAttributes.add(id);
+                return index;
+            }
+            if (threshold < 1 || threshold > numberOfChildren) {
+                throw new IOException("Malformed policy header");
+            }
+            // the children are only allocated once they were read, the count may be bogus
+            children.add(null);
+            leafAttributes.add(-1);
+            List<Integer> childIndexes = new ArrayList<Integer>();
+            for (int i = 0; i < numberOfChildren; i++) {
+                childIndexes.add(readNode(stream, depth + 1));
+            }
+            int[] indexes = new int[numberOfChildren];
+            for (int i = 0; i < numberOfChildren; i++) {
+                indexes[i] = childIndexes.get(i);
+            }
+            children.set(index, indexes);
+            return index;
+        }
+
+        static Builder fromPostfix(String postFixPolicy) throws ParseException {
+            // parse into a temporary structure first, because the postfix order differs from pre-order
+            List<Object[]> stack = new ArrayList<Object[]>();
+            for (String token : postFixPolicy.trim().split("\\s+")) {
+                if (!ofPattern.matcher(token).matches()) {
+                    stack.add(new Object[]{ token });
+                } else {
+                    String[] k_n = token.split("of");
+                    int threshold = Integer.parseInt(k_n[0]);
+                    int numChildren = Integer.parseInt(k_n[1]);
+                    if (threshold < 1 || threshold > numChildren || numChildren > stack.size()) {
+                        throw new ParseException("error parsing " + postFixPolicy + ": invalid operator " + token);
+                    }
+                    Object[] gate = new Object[numChildren + 1];
+                    gate[0] = threshold;
+                    for (int i = numChildren; i >= 1; i--) {
+                        gate[i] = stack.remove(stack.size() - 1);
+                    }
+                    stack.add(gate);
+                }
+            }
+            if (stack.size() != 1) {
+                throw new ParseException("error parsing " + postFixPolicy + ": expected exactly one root");
+            }
+            Builder builder = new Builder();
+            builder.add(stack.get(0));
+            return builder;
+        }
+
+        private int add(Object[] node) {
+            int index = thresholds.size();
+            if (node.length == 1) {
+                addLeaf((String) node[0], null);
+                return index;
+            }
+            int[] childIndexes = new int[node.length - 1];
+            thresholds.add((Integer) node[0]);
+            children.add(childIndexes);
+            leafAttributes.add(-1);
+            for (int i = 0; i < childIndexes.length; i++) {
+                childIndexes[i] = add((Object[]) node[i + 1]);
+            }
+            return index;
+        }
+    }
+}
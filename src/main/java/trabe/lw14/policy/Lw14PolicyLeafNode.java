@@ -8,12 +8,15 @@ import trabe.AbeOutputStream;
 import trabe.AbePrivateKey;
 import trabe.AbePublicKey;
 import trabe.AbeSettings;
+import trabe.MultiExponentiation;
 import trabe.lw14.Lw14PrivateKeyComponent;
 import trabe.lw14.Lw14Util;
 import it.unisa.dia.gas.jpbc.Element;
 
 public class Lw14PolicyLeafNode extends Lw14PolicyAbstractNode {
     private Lw14PrivateKeyComponent satisfyingComponent = null;
+    /** only known if the leaf was created from the policy string (not serialized) **/
+    private String attribute = null;
     /** G1 **/
     private Element hashedAttribute;
     /** G1 **/
@@ -35,6 +38,7 @@ public class Lw14PolicyLeafNode extends Lw14PolicyAbstractNode {
     }
 
     public Lw14PolicyLeafNode(String attribute, AbePublicKey publicKey) {
+        this.attribute = attribute;
         hashedAttribute = Lw14Util.elementZrFromString(attribute, publicKey);
     }
 
@@ -42,10 +46,21 @@ public class Lw14PolicyLeafNode extends Lw14PolicyAbstractNode {
         return 1;
     }
 
-    private Element getHashedAttribute() {
+    Element getHashedAttribute() {
         return hashedAttribute;
     }
 
+    String getAttribute() {
+        return attribute;
+    }
+
+    @Override
+    public Lw14PolicyLeafNode copy() {
+        Lw14PolicyLeafNode copy = new Lw14PolicyLeafNode(hashedAttribute, p1, p2, p3);
+        copy.attribute = attribute;
+        return copy;
+    }
+
     @Override
     public void writeToStream(AbeOutputStream stream) throws IOException {
         stream.writeInt(getThreshold());
@@ -60,10 +75,11 @@ public class Lw14PolicyLeafNode extends Lw14PolicyAbstractNode {
     public void fillPolicy(AbePublicKey pub, Element e) {
         Element b = pub.getPairing().getZr().newRandomElement();
 
-        p1 = pub.f.duplicate().powZn(e)
-                .mul(pub.G.duplicate().powZn(b));
-        p2 = pub.H.duplicate().powZn(hashedAttribute)
-                .mul(pub.h).powZn(b.duplicate().negate());
+        Element minusB = b.duplicate().negate();
+
+        p1 = MultiExponentiation.pow(pub.f, e, pub.G, b);
+        // (H^x * h)^(-b) = H^(-x*b) * h^(-b)
+        p2 = MultiExponentiation.pow(pub.H, hashedAttribute.duplicate().mul(minusB), pub.h, minusB);
         p3 = pub.g.duplicate().powZn(b);
     }
 
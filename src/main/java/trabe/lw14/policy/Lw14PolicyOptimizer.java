@@ -0,0 +1,172 @@
+package trabe.lw14.policy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Normalizes and simplifies a policy tree before it is filled during
+ * encryption. Every leaf costs three G1 exponentiations during encryption and
+ * three pairings during decryption, so removing redundant leaves pays off
+ * directly. The resulting tree is semantically identical to the original.
+ *
+ * <p>Applied rules (bottom-up):</p>
+ * <ul>
+ *     <li>Flattening: AND gates in AND gates and OR gates in OR gates are merged</li>
+ *     <li>Deduplication: identical children of AND and OR gates are removed</li>
+ *     <li>Absorption: <code>a and (a or b) = a</code> and <code>a or (a and b) = a</code></li>
+ *     <li>Identity folding: gates with a single child are replaced by the child</li>
+ * </ul>
+ *
+ * <p>Threshold gates which are neither AND nor OR gates are only simplified below.</p>
+ */
+public class Lw14PolicyOptimizer {
+    private int leavesBefore = 0;
+    private int leavesAfter = 0;
+
+    /**
+     * Optimizes the given (unfilled) policy tree. The passed tree should not be
+     * used afterwards, because the returned tree may share nodes with it.
+     * @param root    Root of the policy tree
+     * @return  Root of the optimized tree
+     */
+    public Lw14PolicyAbstractNode optimize(Lw14PolicyAbstractNode root) {
+        leavesBefore = countLeaves(root);
+        Lw14PolicyAbstractNode result = optimizeNode(root);
+        leavesAfter = countLeaves(result);
+        return result;
+    }
+
+    /**
+     * @return Number of leaves of the tree that was passed to the last {@link #optimize(Lw14PolicyAbstractNode)} call
+     */
+    public int getLeavesBefore() {
+        return leavesBefore;
+    }
+
+    /**
+     * @return Number of leaves of the tree that was returned by the last {@link #optimize(Lw14PolicyAbstractNode)} call
+     */
+    public int getLeavesAfter() {
+        return leavesAfter;
+    }
+
+    public static int countLeaves(Lw14PolicyAbstractNode node) {
+        if (node instanceof Lw14PolicyLeafNode) {
+            return 1;
+        }
+        int leaves = 0;
+        for (Lw14PolicyAbstractNode child : ((Lw14PolicyParentNode) node).getChildren()) {
+            leaves += countLeaves(child);
+        }
+        return leaves;
+    }
+
+    private static boolean isAnd(Lw14PolicyAbstractNode node) {
+        return node instanceof Lw14PolicyParentNode
+                && node.getThreshold() == ((Lw14PolicyParentNode) node).getChildren().size();
+    }
+
+    private static boolean isOr(Lw14PolicyAbstractNode node) {
+        return node instanceof Lw14PolicyParentNode && node.getThreshold() == 1;
+    }
+
+    private static Lw14PolicyAbstractNode optimizeNode(Lw14PolicyAbstractNode node) {
+        if (node instanceof Lw14PolicyLeafNode) {
+            return node;
+        }
+        Lw14PolicyParentNode parent = (Lw14PolicyParentNode) node;
+        List<Lw14PolicyAbstractNode> children = new ArrayList<Lw14PolicyAbstractNode>(parent.getChildren().size());
+        for (Lw14PolicyAbstractNode child : parent.getChildren()) {
+            children.add(optimizeNode(child));
+        }
+
+        boolean and = isAnd(parent);
+        boolean or = !and && isOr(parent);
+        if (!and && !or) {
+            Lw14PolicyParentNode result = new Lw14PolicyParentNode(parent.getThreshold(), children.size());
+            result.addAllChildren(children);
+            return result;
+        }
+
+        // flatten
+        List<Lw14PolicyAbstractNode> flattened = new ArrayList<Lw14PolicyAbstractNode>(children.size());
+        for (Lw14PolicyAbstractNode child : children) {
+            if ((and && isAnd(child)) || (or && isOr(child))) {
+                flattened.addAll(((Lw14PolicyParentNode) child).getChildren());
+            } else {
+                flattened.add(child);
+            }
+        }
+
+        // deduplicate
+        List<Lw14PolicyAbstractNode> unique = new ArrayList<Lw14PolicyAbstractNode>(flattened.size());
+        for (Lw14PolicyAbstractNode child : flattened) {
+            if (indexOf(unique, child) < 0) {
+                unique.add(child);
+            }
+        }
+
+        // absorb gates of the dual type which contain a sibling
+        List<Lw14PolicyAbstractNode> absorbed = new ArrayList<Lw14PolicyAbstractNode>(unique.size());
+        for (Lw14PolicyAbstractNode child : unique) {
+            boolean dual = (and && isOr(child)) || (or && isAnd(child));
+            boolean absorb = false;
+            if (dual) {
+                for (Lw14PolicyAbstractNode grandChild : ((Lw14PolicyParentNode) child).getChildren()) {
+                    int index = indexOf(unique, grandChild);
+                    if (index >= 0 && unique.get(index) != child) {
+                        absorb = true;
+                        break;
+                    }
+                }
+            }
+            if (!absorb) {
+                absorbed.add(child);
+            }
+        }
+
+        if (absorbed.size() == 1) {
+            return absorbed.get(0);
+        }
+        Lw14PolicyParentNode result = new Lw14PolicyParentNode(and ? absorbed.size() : 1, absorbed.size());
+        result.addAllChildren(absorbed);
+        return result;
+    }
+
+    private static int indexOf(List<Lw14PolicyAbstractNode> nodes, Lw14PolicyAbstractNode node) {
+        for (int i = 0; i < nodes.size(); i++) {
+            if (sameStructure(nodes.get(i), node)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the structure of two unfilled trees. The filled elements are not
+     * compared, so {@link Lw14PolicyAbstractNode#equals(Object)} cannot be used.
+     */
+    private static boolean sameStructure(Lw14PolicyAbstractNode a, Lw14PolicyAbstractNode b) {
+        if (a == b) {
+            return true;
+        }
+        if (a instanceof Lw14PolicyLeafNode && b instanceof Lw14PolicyLeafNode) {
+            return ((Lw14PolicyLeafNode) a).getHashedAttribute().isEqual(((Lw14PolicyLeafNode) b).getHashedAttribute());
+        }
+        if (!(a instanceof Lw14PolicyParentNode && b instanceof Lw14PolicyParentNode)
+                || a.getThreshold() != b.getThreshold()) {
+            return false;
+        }
+        List<Lw14PolicyAbstractNode> aChildren = ((Lw14PolicyParentNode) a).getChildren();
+        List<Lw14PolicyAbstractNode> bChildren = ((Lw14PolicyParentNode) b).getChildren();
+        if (aChildren.size() != bChildren.size()) {
+            return false;
+        }
+        for (int i = 0; i < aChildren.size(); i++) {
+            if (!sameStructure(aChildren.get(i), bChildren.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
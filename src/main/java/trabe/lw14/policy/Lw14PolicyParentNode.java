@@ -40,6 +40,15 @@ public class Lw14PolicyParentNode extends Lw14PolicyAbstractNode {
     	return children;
     }
 
+    @Override
+    public Lw14PolicyParentNode copy() {
+        Lw14PolicyParentNode copy = new Lw14PolicyParentNode(threshold, children.size());
+        for (Lw14PolicyAbstractNode child : children) {
+            copy.addChild(child.copy());
+        }
+        return copy;
+    }
+
     @Override
     public void writeToStream(AbeOutputStream stream) throws IOException {
         stream.writeInt(getThreshold());
@@ -0,0 +1,414 @@
+package trabe.policy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.hsr.geohash.GeoHash;
+import ch.hsr.geohash.WGS84Point;
+import trabe.policyparser.ParseException;
+
+/**
+ * Compiles a set of geohash cells into a small threshold tree over the
+ * geohash bit marker attributes.
+ *
+ * <p>The naive encoding of a cell is an AND over all of its bits and a set of
+ * cells is an OR over those ANDs, so the 3x3 neighbourhood of a cell with a
+ * precision of p bits costs 9 * p leaves. The cells are inserted into a binary
+ * trie instead. Sibling cells which are both covered are merged into their
+ * parent cell and the bit prefix that a subtree shares is emitted only once:</p>
+ *
+ * <pre>
+ * node(prefix) = prefix_1 and ... and prefix_k and (node(prefix + 0) or node(prefix + 1))
+ * </pre>
+ *
+ * <p>Region polygons are covered by recursively bisecting the geohash grid, so
+ * the inner parts of a region are represented by coarse cells and only the
+ * border is resolved up to the requested precision.</p>
+ *
+ * <p>An area that covers the whole world (e.g. the neighbourhood of a cell
+ * with a precision of one or two bits) is compiled into the two top-level
+ * cells, so like before any location attribute satisfies it.</p>
+ */
+public class GeoHashPolicyCompiler {
+
+    private static final double MIN_LAT = -90.0;
+    private static final double MAX_LAT = 90.0;
+    private static final double MIN_LON = -180.0;
+    private static final double MAX_LON = 180.0;
+
+    /**
+     * Node of the binary cell trie. A node is <code>covered</code> if the
+     * whole cell that is identified by the path to the node is part of the
+     * compiled area.
+     */
+    private static class TrieNode {
+        public TrieNode[] children = new TrieNode[2];
+        public boolean covered;
+
+        public TrieNode child(int bit) {
+            if (children[bit] == null) {
+                children[bit] = new TrieNode();
+            }
+            return children[bit];
+        }
+    }
+
+    /**
+     * Intermediate threshold gate. Leaves only carry the attribute string.
+     */
+    private static class Gate {
+        public final String attribute;
+        public final int threshold;
+        public final List<Gate> children;
+
+        public Gate(String attribute) {
+            this.attribute = attribute;
+            this.threshold = 1;
+            this.children = null;
+        }
+
+        public Gate(int threshold, List<Gate> children) {
+            this.attribute = null;
+            this.threshold = threshold;
+            this.children = children;
+        }
+
+        public boolean isLeaf() {
+            return attribute != null;
+        }
+    }
+
+    private final String attributeName;
+    private final TrieNode root = new TrieNode();
+
+    /**
+     * @param attributeName    Name of the location attribute (e.g. <code>a</code> in <code>a:52.5:13.4:22:1</code>)
+     */
+    public GeoHashPolicyCompiler(String attributeName) {
+        this.attributeName = attributeName;
+    }
+
+    /**
+     * Adds a single cell to the compiled area.
+     * @param cell    Geohash cell of arbitrary bit precision
+     */
+    public void addCell(GeoHash cell) {
+        addCell(cell.toBinaryString());
+    }
+
+    private void addCell(String bits) {
+        TrieNode node = root;
+        for (int i = 0; i < bits.length() && !node.covered; i++) {
+            node = node.child(bits.charAt(i) == '1' ? 1 : 0);
+        }
+        node.covered = true;
+        node.children = new TrieNode[2];
+    }
+
+    /**
+     * Adds the target cell and its eight adjacent cells to the compiled area.
+     * @param target    Cell in the middle of the neighbourhood
+     */
+    public void addNeighbourhood(GeoHash target) {
+        for (GeoHash cur : target.getAdjacent()) {
+            addCell(cur);
+        }
+        addCell(target);
+    }
+
+    /**
+     * Adds all cells up to the given bit precision that intersect the given
+     * region. The region is interpreted as a simple polygon in the latitude and
+     * longitude plane. Cells that are completely inside of the polygon are
+     * added with the coarsest possible precision.
+     *
+     * @param polygon      Vertices of the polygon (at least three)
+     * @param precision    Number of bits of the smallest cells on the border of the polygon
+     * @throws ParseException Invalid polygon or precision
+     */
+    public void addRegion(List<WGS84Point> polygon, int precision) throws ParseException {
+        if (precision > Util.GEOHASH_MAXBITS || precision <= 0) {
+            throw new ParseException("(GeoHash precision) Only values between 1 and " + Util.GEOHASH_MAXBITS + " are supported.");
+        }
+        if (polygon == null || polygon.size() < 3) {
+            throw new ParseException("A region needs at least three vertices.");
+        }
+        double[] lats = new double[polygon.size()];
+        double[] lons = new double[polygon.size()];
+        for (int i = 0; i < lats.length; i++) {
+            lats[i] = polygon.get(i).getLatitude();
+            lons[i] = polygon.get(i).getLongitude();
+        }
+        coverRegion(new StringBuilder(precision), precision, MIN_LAT, MAX_LAT, MIN_LON, MAX_LON, lats, lons);
+    }
+
+    /**
+     * Bisects the current cell alternating between longitude (even bits) and
+     * latitude (odd bits) like the geohash encoding does.
+     */
+    private void coverRegion(StringBuilder bits, int precision,
+                             double minLat, double maxLat, double minLon, double maxLon,
+                             double[] lats, double[] lons) {
+        int relation = relate(minLat, maxLat, minLon, maxLon, lats, lons);
+        if (relation < 0) {
+            return;
+        }
+        if (relation > 0 || bits.length() == precision) {
+            addCell(bits.toString());
+            return;
+        }
+        if (bits.length() % 2 == 0) {
+            double mid = (minLon + maxLon) / 2;
+            bits.append('0');
+            coverRegion(bits, precision, minLat, maxLat, minLon, mid, lats, lons);
+            bits.setCharAt(bits.length() - 1, '1');
+            coverRegion(bits, precision, minLat, maxLat, mid, maxLon, lats, lons);
+        } else {
+            double mid = (minLat + maxLat) / 2;
+            bits.append('0');
+            coverRegion(bits, precision, minLat, mid, minLon, maxLon, lats, lons);
+            bits.setCharAt(bits.length() - 1, '1');
+            coverRegion(bits, precision, mid, maxLat, minLon, maxLon, lats, lons);
+        }
+        bits.deleteCharAt(bits.length() - 1);
+    }
+
+    /**
+     * @return  -1 if the box and the polygon are disjoint, 1 if the box is
+     *          completely inside of the polygon and 0 if they intersect
+     */
+    private static int relate(double minLat, double maxLat, double minLon, double maxLon,
+                              double[] lats, double[] lons) {
+        double[] boxLats = { minLat, minLat, maxLat, maxLat };
+        double[] boxLons = { minLon, maxLon, maxLon, minLon };
+
+        int cornersInside = 0;
+        for (int i = 0; i < 4; i++) {
+            if (insidePolygon(boxLats[i], boxLons[i], lats, lons)) {
+                cornersInside++;
+            }
+        }
+        for (int i = 0; i < lats.length; i++) {
+            int next = (i + 1) % lats.length;
+            for (int k = 0; k < 4; k++) {
+                int nextK = (k + 1) % 4;
+                if (segmentsIntersect(lats[i], lons[i], lats[next], lons[next],
+                        boxLats[k], boxLons[k], boxLats[nextK], boxLons[nextK])) {
+                    return 0;
+                }
+            }
+        }
+        if (cornersInside == 4) {
+            return 1;
+        }
+        if (cornersInside > 0) {
+            return 0;
+        }
+        // no edge crossings and no corner inside: the polygon is either outside or completely in the box
+        boolean vertexInBox = lats[0] >= minLat && lats[0] <= maxLat && lons[0] >= minLon && lons[0] <= maxLon;
+        return vertexInBox ? 0 : -1;
+    }
+
+    private static boolean insidePolygon(double lat, double lon, double[] lats, double[] lons) {
+        boolean inside = false;
+        for (int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+            if ((lats[i] > lat) != (lats[j] > lat)
+                    && lon < (lons[j] - lons[i]) * (lat - lats[i]) / (lats[j] - lats[i]) + lons[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    private static boolean segmentsIntersect(double aLat, double aLon, double bLat, double bLon,
+                                             double cLat, double cLon, double dLat, double dLon) {
+        double d1 = orientation(cLat, cLon, dLat, dLon, aLat, aLon);
+        double d2 = orientation(cLat, cLon, dLat, dLon, bLat, bLon);
+        double d3 = orientation(aLat, aLon, bLat, bLon, cLat, cLon);
+        double d4 = orientation(aLat, aLon, bLat, bLon, dLat, dLon);
+        return ((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0))
+                && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0));
+    }
+
+    private static double orientation(double aLat, double aLon, double bLat, double bLon, double cLat, double cLon) {
+        return (bLon - aLon) * (cLat - aLat) - (bLat - aLat) * (cLon - aLon);
+    }
+
+    /**
+     * Merges sibling cells that are both covered into their parent cell.
+     * @return node is covered completely
+     */
+    private static boolean mergeSiblings(TrieNode node) {
+        if (node == null) {
+            return false;
+        }
+        if (node.covered) {
+            return true;
+        }
+        boolean left = mergeSiblings(node.children[0]);
+        boolean right = mergeSiblings(node.children[1]);
+        if (left && right) {
+            node.covered = true;
+            node.children = new TrieNode[2];
+        }
+        return node.covered;
+    }
+
+    /**
+     * Builds the gate for the subtree below <code>node</code>. The chain of
+     * single children is collected into one AND gate together with the
+     * branching point.
+     * @return Gate or <code>null</code> if the subtree is covered completely
+     */
+    private Gate compile(TrieNode node, int depth) {
+        List<Gate> conjunction = new ArrayList<Gate>();
+        while (!node.covered && (node.children[0] == null) != (node.children[1] == null)) {
+            int bit = node.children[0] != null ? 0 : 1;
+            conjunction.add(new Gate(Util.bit_marker_geohash(attributeName, Util.GEOHASH_MAXBITS - depth - 1, bit == 1)));
+            node = node.children[bit];
+            depth++;
+        }
+        if (!node.covered) {
+            List<Gate> disjunction = new ArrayList<Gate>(2);
+            for (int bit = 0; bit < 2; bit++) {
+                Gate leaf = new Gate(Util.bit_marker_geohash(attributeName, Util.GEOHASH_MAXBITS - depth - 1, bit == 1));
+                Gate rest = compile(node.children[bit], depth + 1);
+                if (rest == null) {
+                    disjunction.add(leaf);
+                } else if (!rest.isLeaf() && rest.threshold == rest.children.size()) {
+                    // prepend the branching bit to the AND gate of the subtree
+                    rest.children.add(0, leaf);
+                    disjunction.add(new Gate(rest.children.size(), rest.children));
+                } else {
+                    List<Gate> pair = new ArrayList<Gate>(2);
+                    pair.add(leaf);
+                    pair.add(rest);
+                    disjunction.add(new Gate(2, pair));
+                }
+            }
+            conjunction.add(new Gate(1, disjunction));
+        }
+        if (conjunction.isEmpty()) {
+            return null;
+        }
+        if (conjunction.size() == 1) {
+            return conjunction.get(0);
+        }
+        return new Gate(conjunction.size(), conjunction);
+    }
+
+    private Gate compile() throws ParseException {
+        mergeSiblings(root);
+        if (!root.covered && root.children[0] == null && root.children[1] == null) {
+            throw new ParseException("(GeoHash) The compiled area is empty.");
+        }
+        Gate gate = compile(root, 0);
+        if (gate == null) {
+            // whole world: one of the two top-level cells
+            List<Gate> halves = new ArrayList<Gate>(2);
+            halves.add(new Gate(Util.bit_marker_geohash(attributeName, Util.GEOHASH_MAXBITS - 1, false)));
+            halves.add(new Gate(Util.bit_marker_geohash(attributeName, Util.GEOHASH_MAXBITS - 1, true)));
+            gate = new Gate(1, halves);
+        }
+        return gate;
+    }
+
+    private static int countLeaves(Gate gate) {
+        if (gate.isLeaf()) {
+            return 1;
+        }
+        int leaves = 0;
+        for (Gate child : gate.children) {
+            leaves += countLeaves(child);
+        }
+        return leaves;
+    }
+
+    private static void appendPostfix(Gate gate, StringBuilder sb) {
+        if (gate.isLeaf()) {
+            sb.append(gate.attribute);
+            return;
+        }
+        for (Gate child : gate.children) {
+            appendPostfix(child, sb);
+            sb.append(' ');
+        }
+        sb.append(gate.threshold).append("of").append(gate.children.size());
+    }
+
+    private static void appendInfix(Gate gate, StringBuilder sb) {
+        if (gate.isLeaf()) {
+            sb.append(gate.attribute);
+            return;
+        }
+        String operator = gate.threshold == gate.children.size() ? " and " : " or ";
+        sb.append('(');
+        for (int i = 0; i < gate.children.size(); i++) {
+            if (i != 0) {
+                sb.append(operator);
+            }
+            appendInfix(gate.children.get(i), sb);
+        }
+        sb.append(')');
+    }
+
+    /**
+     * @return Number of attribute leaves of the compiled tree
+     * @throws ParseException The area is empty
+     */
+    public int getLeafCount() throws ParseException {
+        return countLeaves(compile());
+    }
+
+    /**
+     * Produces the compiled area in the postfix notation that is used by
+     * {@link PolicyParsing#parsePolicy(String)}.
+     * @return Postfix policy without leading and trailing whitespace
+     * @throws ParseException The area is empty
+     */
+    public String toPostfix() throws ParseException {
+        StringBuilder sb = new StringBuilder();
+        appendPostfix(compile(), sb);
+        return sb.toString();
+    }
+
+    /**
+     * Produces the compiled area as a boolean formula which can be used as
+     * (part of) a policy for encryption, for example to restrict access to a
+     * region polygon.
+     * @return Policy string
+     * @throws ParseException The area is empty
+     */
+    public String toPolicy() throws ParseException {
+        StringBuilder sb = new StringBuilder();
+        appendInfix(compile(), sb);
+        return sb.toString();
+    }
+
+    /**
+     * Compiles the target cell and its eight adjacent cells.
+     * @param attributeName    Name of the location attribute
+     * @param target           Cell in the middle
+     * @return Postfix policy
+     * @throws ParseException The area is empty
+     */
+    public static String compileNeighbourhood(String attributeName, GeoHash target) throws ParseException {
+        GeoHashPolicyCompiler compiler = new GeoHashPolicyCompiler(attributeName);
+        compiler.addNeighbourhood(target);
+        return compiler.toPostfix();
+    }
+
+    /**
+     * Compiles a region polygon into a policy string.
+     * @param attributeName    Name of the location attribute
+     * @param polygon          Vertices of the region
+     * @param precision        Number of bits of the smallest cells on the border of the region
+     * @return Policy string
+     * @throws ParseException Invalid region or precision
+     */
+    public static String compileRegion(String attributeName, List<WGS84Point> polygon, int precision) throws ParseException {
+        GeoHashPolicyCompiler compiler = new GeoHashPolicyCompiler(attributeName);
+        compiler.addRegion(polygon, precision);
+        return compiler.toPolicy();
+    }
+}
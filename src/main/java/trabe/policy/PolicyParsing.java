@@ -85,18 +85,13 @@ public class PolicyParsing {
             throw new ParseException(e.getMessage());
         }
 
-        GeoHash[] adjacentFields = target.getAdjacent();
-
-        for (GeoHash cur : adjacentFields) {
-            handleGeoHash(cur, retVal, current.getName());
-        }
-        handleGeoHash(target, retVal, current.getName());
-        retVal.append("1of9");
+        // the nine cells share most of their bit prefix, so they are compiled into a much smaller tree
+        retVal.append(GeoHashPolicyCompiler.compileNeighbourhood(current.getName(), target));
 
         if (AbeSettings.DEBUG) {
             System.out.printf("%f,%f%n", current.getLatitude(), current.getLongitude()); // location that was initially entered
             printBoundingBox(target.getBoundingBox());
-            for (GeoHash cur : adjacentFields) {
+            for (GeoHash cur : target.getAdjacent()) {
                 printBoundingBox(cur.getBoundingBox());
             }
         }
@@ -0,0 +1,101 @@
+package trabe.store;
+
+import it.unisa.dia.gas.jpbc.Element;
+import trabe.AbeEncrypted;
+import trabe.AbeEncryptionException;
+import trabe.AbePairingExecutor;
+import trabe.AbePublicKey;
+import trabe.Pair;
+import trabe.lw14.CipherText;
+import trabe.lw14.RevocationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+
+/**
+ * A single ABE encryption whose secret encrypts any number of objects, each
+ * with its own IV. All the objects share one ABE ciphertext, so the pairing
+ * computations are done once per envelope and an {@link AbeSegmentStore}
+ * keeps the ciphertext only once, see
+ * {@link AbeSegmentStore#put(AbeEnvelope, AbeEncrypted)}.
+ *
+ * <p>The envelope holds the secret of the ABE ciphertext. It should be
+ * dropped as soon as all the objects of a batch were encrypted.</p>
+ */
+public class AbeEnvelope {
+    private final AbePublicKey publicKey;
+    private final CipherText cipher;
+    private final Element secret;
+    /** serialized ciphertext and its fingerprint, computed when the envelope is stored first **/
+    private byte[] serializedCipher = null;
+    private AbeSegmentStore.Digest fingerprint = null;
+    private final SecureRandom random = new SecureRandom();
+
+    public AbeEnvelope(AbePublicKey publicKey, String policy) throws AbeEncryptionException {
+        this(publicKey, policy, null);
+    }
+
+    /**
+     * @param publicKey     Public key
+     * @param policy        Policy as a boolean formula
+     * @param revocation    Revoked users (may be null)
+     * @throws AbeEncryptionException Encryption failed
+     */
+    public AbeEnvelope(AbePublicKey publicKey, String policy, RevocationContext revocation) throws AbeEncryptionException {
+        if (revocation == null) {
+            revocation = new RevocationContext(publicKey, new int[0]);
+        }
+        Pair<CipherText, Element> ctak = AbePairingExecutor.encrypt(publicKey, policy, revocation, 0, null);
+        if (ctak.getFirst() == null || ctak.getSecond() == null) {
+            throw new AbeEncryptionException("ABE Encryption failed");
+        }
+        this.publicKey = publicKey;
+        cipher = ctak.getFirst();
+        secret = ctak.getSecond();
+    }
+
+    public CipherText getCipher() {
+        return cipher;
+    }
+
+    synchronized byte[] getSerializedCipher() throws IOException {
+        if (serializedCipher == null) {
+            serializedCipher = cipher.getAsByteArray(publicKey);
+        }
+        return serializedCipher;
+    }
+
+    synchronized AbeSegmentStore.Digest getFingerprint(AbeSegmentStore store) throws IOException {
+        if (fingerprint == null) {
+            fingerprint = store.fingerprint(getSerializedCipher());
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @param data    Plaintext
+     * @return Seekable object under the ciphertext of the envelope
+     * @throws AbeEncryptionException AES encryption failed
+     * @throws IOException Never thrown, kept for symmetry with the stream variant
+     */
+    public AbeEncrypted encrypt(byte[] data) throws AbeEncryptionException, IOException {
+        return AbeEncrypted.createDuringEncryption(newIv(), null, cipher, data, secret);
+    }
+
+    /**
+     * @param input    Plaintext
+     * @return Stream backed object under the ciphertext of the envelope
+     * @throws AbeEncryptionException AES encryption failed
+     * @throws IOException Never thrown, the input is read lazily
+     */
+    public AbeEncrypted encrypt(InputStream input) throws AbeEncryptionException, IOException {
+        return AbeEncrypted.createDuringEncryption(newIv(), null, cipher, input, secret);
+    }
+
+    private byte[] newIv() {
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        return iv;
+    }
+}
@@ -0,0 +1,814 @@
+package trabe.store;
+
+import trabe.AbeEncrypted;
+import trabe.AbePrivateKey;
+import trabe.AbePublicKey;
+import trabe.lw14.CipherText;
+import trabe.lw14.policy.Lw14PolicyEvaluator;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only store for many {@link AbeEncrypted} objects in the segment
+ * files of a directory.
+ *
+ * <p>Objects are content-addressed: the id is the hex encoded SHA-256 over
+ * the fingerprint of the ABE ciphertext, the IV and the AES ciphertext, so
+ * an object that is stored twice (e.g. forwarded copies) takes space only
+ * once. An ABE ciphertext (header) is stored once per fingerprint and shared
+ * by all the objects that were encrypted under the same {@link AbeEnvelope}.
+ * Every header record also carries the policy of the ciphertext (see
+ * {@link Lw14PolicyEvaluator#writeToStream(DataOutputStream)}) and its
+ * fingerprint.</p>
+ *
+ * <p>The index file is append-only as well and holds fixed-size entries with
+ * the positions of the headers and objects, so opening the store, listing
+ * the objects and filtering them by policy never parse an ABE ciphertext.
+ * Records that were appended after the last {@link #flush()} are verified and
+ * recovered from the segments on opening. Objects are returned as views on
+ * memory mappings of the segments, the AES ciphertext isn't copied.</p>
+ *
+ * <p>All methods are synchronized, so a single instance can be shared between
+ * threads. A directory must only be opened by one instance at a time.</p>
+ */
+public class AbeSegmentStore implements Closeable {
+    private static final int INDEX_MAGIC = 0x41425349; // "ABSI"
+    private static final int INDEX_SERIALIZE_VERSION = 1;
+    private static final String INDEX_FILE = "index.abi";
+    private static final String SEGMENT_FILE_FORMAT = "segment-%08d.abs";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int DIGEST_LENGTH = 32;
+
+    private static final byte HEADER_RECORD = 1;
+    private static final byte OBJECT_RECORD = 2;
+    /** type, fingerprint, policy fingerprint, policy length and header length **/
+    private static final int HEADER_RECORD_PREFIX = 1 + 2 * DIGEST_LENGTH + 4 + 4;
+    /** type, id and header fingerprint; followed by the IV length, IV and payload length **/
+    private static final int OBJECT_RECORD_PREFIX = 1 + 2 * DIGEST_LENGTH;
+    private static final int MAX_IV_LENGTH = 64;
+
+    /** type, fingerprint, policy fingerprint, segment, offset, policy length, header length **/
+    private static final int HEADER_ENTRY_SIZE = 1 + 2 * DIGEST_LENGTH + 4 + 8 + 4 + 4;
+    /** type, id, header, segment, offset, IV length, payload length **/
+    private static final int OBJECT_ENTRY_SIZE = 1 + DIGEST_LENGTH + 4 + 4 + 8 + 4 + 8;
+
+    public static final int DEFAULT_MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+    public static final int DEFAULT_CACHED_HEADERS = 1024;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final AbePublicKey publicKey;
+    private final int maxSegmentSize;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final RandomAccessFile indexFile;
+
+    private final List<HeaderEntry> headers = new ArrayList<HeaderEntry>();
+    private final Map<Digest, Integer> headerIds = new HashMap<Digest, Integer>();
+    /** in order of insertion **/
+    private final LinkedHashMap<Digest, ObjectEntry> objects = new LinkedHashMap<Digest, ObjectEntry>();
+    /** number of headers and objects which are in the index file **/
+    private int indexedHeaders = 0;
+    private final List<ObjectEntry> unindexedObjects = new ArrayList<ObjectEntry>();
+
+    /** parsed ABE ciphertexts per header id **/
+    private final Map<Integer, CipherText> ciphers;
+    private final Map<Digest, Lw14PolicyEvaluator> evaluators = new HashMap<Digest, Lw14PolicyEvaluator>();
+    /** the header of the last put, envelopes store many objects in a row **/
+    private CipherText lastCipher = null;
+    private int lastHeaderId = -1;
+
+    private final MessageDigest digest;
+    private boolean closed = false;
+
+    public AbeSegmentStore(File directory, AbePublicKey publicKey) throws IOException {
+        this(directory, publicKey, DEFAULT_MAX_SEGMENT_SIZE, DEFAULT_CACHED_HEADERS);
+    }
+
+    /**
+     * Opens the store in the directory or creates a new one.
+     * @param directory         Directory of the store, is created if necessary
+     * @param publicKey         Public key of the stored ciphertexts
+     * @param maxSegmentSize    A new segment is started when the current one reached this size
+     * @param cachedHeaders     Number of parsed ABE ciphertexts which are kept in memory
+     * @throws IOException The store couldn't be opened or is malformed
+     */
+    public AbeSegmentStore(File directory, AbePublicKey publicKey, int maxSegmentSize, int cachedHeaders)
+            throws IOException {
+        if (maxSegmentSize <= Segment.HEADER_SIZE) {
+            throw new IllegalArgumentException("Segments need to be larger than " + Segment.HEADER_SIZE + " bytes");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create the directory " + directory);
+        }
+        this.directory = directory;
+        this.publicKey = publicKey;
+        this.maxSegmentSize = maxSegmentSize;
+        this.ciphers = new HeaderCache(cachedHeaders);
+        try {
+            this.digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        indexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+        try {
+            for (File file = segmentFile(0); file.exists(); file = segmentFile(segments.size())) {
+                segments.add(Segment.open(file));
+            }
+            readIndex();
+            for (int i = 0; i < segments.size(); i++) {
+                recover(i);
+            }
+            if (segments.isEmpty()) {
+                segments.add(Segment.create(segmentFile(0)));
+            }
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        } catch (RuntimeException e) {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    public AbePublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * Stores the object unless the same object is already stored. Stream
+     * backed objects are used up afterwards. The object is durable after the
+     * next {@link #flush()}.
+     * @param encrypted    Encrypted object, its ciphertext has to use a policy tree
+     * @return Id of the object
+     * @throws IOException Object couldn't be read or written
+     */
+    public synchronized String put(AbeEncrypted encrypted) throws IOException {
+        checkOpen();
+        return put(encrypted, putHeader(encrypted.getCipher()));
+    }
+
+    /**
+     * Stores an object of the envelope. The header is looked up by the
+     * fingerprint that the envelope computes once, so the objects of several
+     * envelopes can be stored interleaved without serializing the header again.
+     * @param envelope     Envelope the object was encrypted with
+     * @param encrypted    Encrypted object
+     * @return Id of the object
+     * @throws IOException Object couldn't be read or written
+     * @see #put(AbeEncrypted)
+     */
+    public synchronized String put(AbeEnvelope envelope, AbeEncrypted encrypted) throws IOException {
+        checkOpen();
+        if (encrypted.getCipher() != envelope.getCipher()) {
+            throw new IllegalArgumentException("The object wasn't encrypted with the envelope");
+        }
+        return put(encrypted, putHeader(envelope));
+    }
+
+    private String put(AbeEncrypted encrypted, int headerId) throws IOException {
+        HeaderEntry header = headers.get(headerId);
+        byte[] iv = encrypted.getIv();
+        if (iv.length > MAX_IV_LENGTH) {
+            throw new IllegalArgumentException("IV too long: " + iv.length);
+        }
+
+        Segment segment = activeSegment();
+        long start = segment.size;
+        ByteBuffer prefix = ByteBuffer.allocate(OBJECT_RECORD_PREFIX + 4 + iv.length + 8);
+        prefix.put(OBJECT_RECORD);
+        prefix.put(new byte[DIGEST_LENGTH]); // id, written after the payload
+        prefix.put(header.fingerprint.bytes);
+        prefix.putInt(iv.length);
+        prefix.put(iv);
+        prefix.putLong(-1); // payload length, written after the payload
+        prefix.flip();
+        Segment.writeFully(segment.channel, prefix, start);
+
+        long payloadStart = start + prefix.capacity();
+        Segment.Appender appender = segment.new Appender(payloadStart);
+        digest.reset();
+        digest.update(header.fingerprint.bytes);
+        digest.update(iv);
+        DigestOutputStream out = new DigestOutputStream(new BufferedOutputStream(appender, COPY_BUFFER_SIZE), digest);
+        try {
+            encrypted.writeEncryptedPayload(out);
+            out.flush();
+        } catch (IOException e) {
+            segment.truncate(start);
+            throw e;
+        }
+        long payloadLength = appender.getWritten();
+        if (appender.getPosition() > Integer.MAX_VALUE) {
+            segment.truncate(start);
+            throw new IOException("Object too large for a segment: " + payloadLength + " bytes");
+        }
+
+        Digest id = new Digest(digest.digest());
+        if (objects.containsKey(id)) {
+            segment.truncate(start);
+            return id.toString();
+        }
+        Segment.writeFully(segment.channel, ByteBuffer.wrap(id.bytes), start + 1);
+        ByteBuffer length = ByteBuffer.allocate(8);
+        length.putLong(0, payloadLength);
+        Segment.writeFully(segment.channel, length, payloadStart - 8);
+        segment.size = appender.getPosition();
+
+        addObject(new ObjectEntry(id, headerId, segments.size() - 1, start, iv.length, payloadLength));
+        return id.toString();
+    }
+
+    /**
+     * @param id    Id of the object, see {@link #put(AbeEncrypted)}
+     * @return Seekable object which reads the AES ciphertext from a mapping of the segment
+     *         or null if there is no such object
+     * @throws IOException Segment couldn't be mapped or the header is malformed
+     */
+    public synchronized AbeEncrypted get(String id) throws IOException {
+        checkOpen();
+        ObjectEntry entry = objects.get(Digest.fromString(id));
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer mapping = segments.get(entry.segment).map();
+        byte[] iv = new byte[entry.ivLength];
+        mapping.position((int) entry.offset + OBJECT_RECORD_PREFIX + 4);
+        mapping.get(iv);
+        int payloadStart = (int) entry.offset + OBJECT_RECORD_PREFIX + 4 + entry.ivLength + 8;
+        mapping.limit(payloadStart + (int) entry.payloadLength);
+        mapping.position(payloadStart);
+        return AbeEncrypted.create(getCipher(entry.header), iv, mapping);
+    }
+
+    public synchronized boolean contains(String id) {
+        return objects.containsKey(Digest.fromString(id));
+    }
+
+    /**
+     * @return Number of stored objects
+     */
+    public synchronized int size() {
+        return objects.size();
+    }
+
+    /**
+     * @return Number of distinct ABE ciphertexts
+     */
+    public synchronized int getHeaderCount() {
+        return headers.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return Ids of all the objects in the order in which they were stored
+     */
+    public synchronized List<String> list() {
+        List<String> ids = new ArrayList<String>(objects.size());
+        for (Digest id : objects.keySet()) {
+            ids.add(id.toString());
+        }
+        return ids;
+    }
+
+    /**
+     * Filters the objects by the policy records, no ABE ciphertext is parsed.
+     * Every distinct policy is evaluated once per call.
+     * @param privateKey    Private key
+     * @return Ids of the objects whose policy the attributes of the key satisfy
+     * @throws IOException Policy records couldn't be read
+     */
+    public synchronized List<String> findDecryptable(AbePrivateKey privateKey) throws IOException {
+        checkOpen();
+        Map<Digest, Boolean> policies = new HashMap<Digest, Boolean>();
+        boolean[] satisfied = new boolean[headers.size()];
+        for (int i = 0; i < satisfied.length; i++) {
+            HeaderEntry header = headers.get(i);
+            Boolean result = policies.get(header.policyFingerprint);
+            if (result == null) {
+                result = getEvaluator(header).satisfies(privateKey);
+                policies.put(header.policyFingerprint, result);
+            }
+            satisfied[i] = result;
+        }
+        List<String> ids = new ArrayList<String>();
+        for (ObjectEntry entry : objects.values()) {
+            if (satisfied[entry.header]) {
+                ids.add(entry.id.toString());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Forces the segments to the disk and appends the new entries to the
+     * index file afterwards, so the index never refers to data that isn't
+     * durable.
+     * @throws IOException Files couldn't be written
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        for (Segment segment : segments) {
+            segment.force();
+        }
+        int entries = headers.size() - indexedHeaders;
+        ByteBuffer buffer = ByteBuffer.allocate(entries * HEADER_ENTRY_SIZE + unindexedObjects.size() * OBJECT_ENTRY_SIZE);
+        for (int i = indexedHeaders; i < headers.size(); i++) {
+            headers.get(i).writeTo(buffer);
+        }
+        for (ObjectEntry entry : unindexedObjects) {
+            entry.writeTo(buffer);
+        }
+        buffer.flip();
+        FileChannel channel = indexFile.getChannel();
+        long position = channel.size();
+        if (position == 0) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(INDEX_MAGIC);
+            header.putInt(INDEX_SERIALIZE_VERSION);
+            header.flip();
+            Segment.writeFully(channel, header, 0);
+            position = 8;
+        }
+        Segment.writeFully(channel, buffer, position);
+        channel.force(false);
+
+        indexedHeaders = headers.size();
+        unindexedObjects.clear();
+    }
+
+    /**
+     * Flushes and closes the files.
+     * @throws IOException Files couldn't be written
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closeFiles();
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        closed = true;
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        indexFile.close();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The store is closed");
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format(SEGMENT_FILE_FORMAT, number));
+    }
+
+    private Segment activeSegment() throws IOException {
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.size >= maxSegmentSize) {
+            segment = Segment.create(segmentFile(segments.size()));
+            segments.add(segment);
+        }
+        return segment;
+    }
+
+    /**
+     * @return Id of the header, which is appended if it wasn't stored yet
+     */
+    private int putHeader(CipherText cipher) throws IOException {
+        if (cipher == lastCipher) {
+            return lastHeaderId;
+        }
+        checkPolicyTree(cipher);
+        byte[] serialized = cipher.getAsByteArray(publicKey);
+        return putHeader(cipher, serialized, fingerprint(serialized));
+    }
+
+    private int putHeader(AbeEnvelope envelope) throws IOException {
+        CipherText cipher = envelope.getCipher();
+        if (cipher == lastCipher) {
+            return lastHeaderId;
+        }
+        checkPolicyTree(cipher);
+        return putHeader(cipher, envelope.getSerializedCipher(), envelope.getFingerprint(this));
+    }
+
+    private static void checkPolicyTree(CipherText cipher) {
+        if (cipher.accessTree == null) {
+            throw new IllegalArgumentException("Only ciphertexts with a policy tree can be stored");
+        }
+    }
+
+    Digest fingerprint(byte[] serializedCipher) {
+        return new Digest(digest.digest(serializedCipher));
+    }
+
+    private int putHeader(CipherText cipher, byte[] serialized, Digest fingerprint) throws IOException {
+        Integer headerId = headerIds.get(fingerprint);
+        if (headerId == null) {
+            ByteArrayOutputStream policy = new ByteArrayOutputStream();
+            new Lw14PolicyEvaluator(cipher.accessTree, publicKey).writeToStream(new DataOutputStream(policy));
+            byte[] policyBytes = policy.toByteArray();
+            Digest policyFingerprint = new Digest(digest.digest(policyBytes));
+
+            Segment segment = activeSegment();
+            ByteBuffer record = ByteBuffer.allocate(HEADER_RECORD_PREFIX + policyBytes.length + serialized.length);
+            record.put(HEADER_RECORD);
+            record.put(fingerprint.bytes);
+            record.put(policyFingerprint.bytes);
+            record.putInt(policyBytes.length);
+            record.putInt(serialized.length);
+            record.put(policyBytes);
+            record.put(serialized);
+            record.flip();
+            long start = segment.size;
+            Segment.writeFully(segment.channel, record, start);
+            segment.size = start + record.capacity();
+            segment.dirty = true;
+
+            headerId = addHeader(new HeaderEntry(fingerprint, policyFingerprint, segments.size() - 1, start,
+                    policyBytes.length, serialized.length));
+            ciphers.put(headerId, cipher);
+        }
+        lastCipher = cipher;
+        lastHeaderId = headerId;
+        return headerId;
+    }
+
+    private int addHeader(HeaderEntry entry) {
+        int headerId = headers.size();
+        headers.add(entry);
+        headerIds.put(entry.fingerprint, headerId);
+        return headerId;
+    }
+
+    private void addObject(ObjectEntry entry) {
+        objects.put(entry.id, entry);
+        unindexedObjects.add(entry);
+    }
+
+    private CipherText getCipher(int headerId) throws IOException {
+        CipherText cipher = ciphers.get(headerId);
+        if (cipher == null) {
+            HeaderEntry header = headers.get(headerId);
+            ByteBuffer mapping = segments.get(header.segment).map();
+            byte[] serialized = new byte[header.headerLength];
+            mapping.position((int) header.offset + HEADER_RECORD_PREFIX + header.policyLength);
+            mapping.get(serialized);
+            cipher = CipherText.readFromByteArray(serialized, publicKey);
+            ciphers.put(headerId, cipher);
+        }
+        return cipher;
+    }
+
+    private Lw14PolicyEvaluator getEvaluator(HeaderEntry header) throws IOException {
+        Lw14PolicyEvaluator evaluator = evaluators.get(header.policyFingerprint);
+        if (evaluator == null) {
+            ByteBuffer mapping = segments.get(header.segment).map();
+            byte[] policy = new byte[header.policyLength];
+            mapping.position((int) header.offset + HEADER_RECORD_PREFIX);
+            mapping.get(policy);
+            evaluator = Lw14PolicyEvaluator.readFromStream(new DataInputStream(new ByteArrayInputStream(policy)), publicKey);
+            evaluators.put(header.policyFingerprint, evaluator);
+        }
+        return evaluator;
+    }
+
+    /**
+     * Reads the entries of the index file. An incomplete entry at the end
+     * (the process died while appending) is dropped.
+     */
+    private void readIndex() throws IOException {
+        FileChannel channel = indexFile.getChannel();
+        long length = channel.size();
+        if (length == 0) {
+            return;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Index is too large for a single mapping");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        try {
+            if (buffer.getInt() != INDEX_MAGIC) {
+                throw new IOException("Not a store index");
+            }
+            int version = buffer.getInt();
+            if (version != INDEX_SERIALIZE_VERSION) {
+                throw new IOException("Unsupported store index version: " + version);
+            }
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                byte type = buffer.get(start);
+                int entrySize = type == HEADER_RECORD ? HEADER_ENTRY_SIZE : OBJECT_ENTRY_SIZE;
+                if (type != HEADER_RECORD && type != OBJECT_RECORD) {
+                    throw new IOException("Invalid entry type in store index: " + type);
+                }
+                if (buffer.remaining() < entrySize) {
+                    channel.truncate(start);
+                    break;
+                }
+                buffer.get();
+                if (type == HEADER_RECORD) {
+                    HeaderEntry entry = HeaderEntry.readFrom(buffer);
+                    checkRecord(entry.segment, entry.offset, entry.getEnd());
+                    addHeader(entry);
+                } else {
+                    ObjectEntry entry = ObjectEntry.readFrom(buffer);
+                    if (entry.header < 0 || entry.header >= headers.size()) {
+                        throw new IOException("Invalid header id in store index: " + entry.header);
+                    }
+                    checkRecord(entry.segment, entry.offset, entry.getEnd());
+                    objects.put(entry.id, entry);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated store index");
+        }
+        indexedHeaders = headers.size();
+    }
+
+    private void checkRecord(int segment, long offset, long end) throws IOException {
+        if (segment < 0 || segment >= segments.size() || offset < Segment.HEADER_SIZE || end > segments.get(segment).size) {
+            throw new IOException("Store index refers to missing data in segment " + segment);
+        }
+        Segment s = segments.get(segment);
+        s.indexedEnd = Math.max(s.indexedEnd, end);
+    }
+
+    /**
+     * Adds the records behind the indexed ones. The first record which is
+     * incomplete or doesn't match its digest ends the segment.
+     */
+    private void recover(int segmentNumber) throws IOException {
+        Segment segment = segments.get(segmentNumber);
+        long position = segment.indexedEnd;
+        while (position < segment.size) {
+            long end = recoverRecord(segmentNumber, position);
+            if (end < 0) {
+                segment.truncate(position);
+                break;
+            }
+            position = end;
+        }
+    }
+
+    /**
+     * @return End of the record or -1 if it is invalid
+     */
+    private long recoverRecord(int segmentNumber, long start) throws IOException {
+        Segment segment = segments.get(segmentNumber);
+        long available = segment.size - start;
+        if (available < OBJECT_RECORD_PREFIX + 4) {
+            return -1;
+        }
+        ByteBuffer prefix = ByteBuffer.allocate((int) Math.min(HEADER_RECORD_PREFIX, available));
+        segment.readFully(prefix, start);
+        byte type = prefix.get();
+        byte[] first = new byte[DIGEST_LENGTH];
+        byte[] second = new byte[DIGEST_LENGTH];
+        prefix.get(first);
+        prefix.get(second);
+
+        if (type == HEADER_RECORD) {
+            if (available < HEADER_RECORD_PREFIX) {
+                return -1;
+            }
+            int policyLength = prefix.getInt();
+            int headerLength = prefix.getInt();
+            if (policyLength < 0 || headerLength < 0
+                    || (long) policyLength + headerLength > available - HEADER_RECORD_PREFIX) {
+                return -1;
+            }
+            ByteBuffer body = ByteBuffer.allocate(policyLength + headerLength);
+            segment.readFully(body, start + HEADER_RECORD_PREFIX);
+            digest.update(body.array(), 0, policyLength);
+            Digest policyFingerprint = new Digest(digest.digest());
+            digest.update(body.array(), policyLength, headerLength);
+            Digest fingerprint = new Digest(digest.digest());
+            if (!fingerprint.equals(new Digest(first)) || !policyFingerprint.equals(new Digest(second))) {
+                return -1;
+            }
+            if (!headerIds.containsKey(fingerprint)) {
+                addHeader(new HeaderEntry(fingerprint, policyFingerprint, segmentNumber, start, policyLength, headerLength));
+            }
+            return start + HEADER_RECORD_PREFIX + policyLength + headerLength;
+        } else if (type == OBJECT_RECORD) {
+            Integer headerId = headerIds.get(new Digest(second));
+            int ivLength = prefix.getInt();
+            if (headerId == null || ivLength < 0 || ivLength > MAX_IV_LENGTH
+                    || available < OBJECT_RECORD_PREFIX + 4 + ivLength + 8) {
+                return -1;
+            }
+            ByteBuffer ivAndLength = ByteBuffer.allocate(ivLength + 8);
+            segment.readFully(ivAndLength, start + OBJECT_RECORD_PREFIX + 4);
+            long payloadStart = start + OBJECT_RECORD_PREFIX + 4 + ivLength + 8;
+            long payloadLength = ivAndLength.getLong(ivLength);
+            if (payloadLength < 0 || payloadLength > segment.size - payloadStart) {
+                return -1;
+            }
+
+            digest.update(second);
+            digest.update(ivAndLength.array(), 0, ivLength);
+            ByteBuffer chunk = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            for (long done = 0; done < payloadLength; ) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), payloadLength - done));
+                segment.readFully(chunk, payloadStart + done);
+                digest.update(chunk.array(), 0, chunk.limit());
+                done += chunk.limit();
+            }
+            Digest id = new Digest(digest.digest());
+            if (!id.equals(new Digest(first))) {
+                return -1;
+            }
+            if (!objects.containsKey(id)) {
+                addObject(new ObjectEntry(id, headerId, segmentNumber, start, ivLength, payloadLength));
+            }
+            return payloadStart + payloadLength;
+        }
+        return -1;
+    }
+
+    /**
+     * SHA-256 digest as a map key, printed as lowercase hex.
+     */
+    static class Digest {
+        final byte[] bytes;
+        private final int hashCode;
+
+        Digest(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        static Digest fromString(String hex) {
+            if (hex.length() != 2 * DIGEST_LENGTH) {
+                throw new IllegalArgumentException("Not an object id: " + hex);
+            }
+            byte[] bytes = new byte[DIGEST_LENGTH];
+            for (int i = 0; i < bytes.length; i++) {
+                int high = Character.digit(hex.charAt(2 * i), 16);
+                int low = Character.digit(hex.charAt(2 * i + 1), 16);
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException("Not an object id: " + hex);
+                }
+                bytes[i] = (byte) ((high << 4) | low);
+            }
+            return new Digest(bytes);
+        }
+
+        static Digest readFrom(ByteBuffer buffer) {
+            byte[] bytes = new byte[DIGEST_LENGTH];
+            buffer.get(bytes);
+            return new Digest(bytes);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Digest && Arrays.equals(bytes, ((Digest) obj).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder hex = new StringBuilder(2 * bytes.length);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+    }
+
+    private static class HeaderEntry {
+        final Digest fingerprint;
+        final Digest policyFingerprint;
+        final int segment;
+        /** start of the record **/
+        final long offset;
+        final int policyLength;
+        final int headerLength;
+
+        HeaderEntry(Digest fingerprint, Digest policyFingerprint, int segment, long offset, int policyLength, int headerLength) {
+            this.fingerprint = fingerprint;
+            this.policyFingerprint = policyFingerprint;
+            this.segment = segment;
+            this.offset = offset;
+            this.policyLength = policyLength;
+            this.headerLength = headerLength;
+        }
+
+        long getEnd() {
+            return offset + HEADER_RECORD_PREFIX + policyLength + headerLength;
+        }
+
+        void writeTo(ByteBuffer buffer) {
+            buffer.put(HEADER_RECORD);
+            buffer.put(fingerprint.bytes);
+            buffer.put(policyFingerprint.bytes);
+            buffer.putInt(segment);
+            buffer.putLong(offset);
+            buffer.putInt(policyLength);
+            buffer.putInt(headerLength);
+        }
+
+        /** the type was already read **/
+        static HeaderEntry readFrom(ByteBuffer buffer) {
+            return new HeaderEntry(Digest.readFrom(buffer), Digest.readFrom(buffer), buffer.getInt(), buffer.getLong(),
+                    buffer.getInt(), buffer.getInt());
+        }
+    }
+
+    private static class ObjectEntry {
+        final Digest id;
+        final int header;
+        final int segment;
+        /** start of the record **/
+        final long offset;
+        final int ivLength;
+        final long payloadLength;
+
+        ObjectEntry(Digest id, int header, int segment, long offset, int ivLength, long payloadLength) {
+            this.id = id;
+            this.header = header;
+            this.segment = segment;
+            this.offset = offset;
+            this.ivLength = ivLength;
+            this.payloadLength = payloadLength;
+        }
+
+        long getEnd() {
+            return offset + OBJECT_RECORD_PREFIX + 4 + ivLength + 8 + payloadLength;
+        }
+
+        void writeTo(ByteBuffer buffer) {
+            buffer.put(OBJECT_RECORD);
+            buffer.put(id.bytes);
+            buffer.putInt(header);
+            buffer.putInt(segment);
+            buffer.putLong(offset);
+            buffer.putInt(ivLength);
+            buffer.putLong(payloadLength);
+        }
+
+        /** the type was already read **/
+        static ObjectEntry readFrom(ByteBuffer buffer) {
+            return new ObjectEntry(Digest.readFrom(buffer), buffer.getInt(), buffer.getInt(), buffer.getLong(),
+                    buffer.getInt(), buffer.getLong());
+        }
+    }
+
+    private static class HeaderCache extends LinkedHashMap<Integer, CipherText> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        HeaderCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, CipherText> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package trabe.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One append-only file of an {@link AbeSegmentStore}. Writes are positional
+ * and reads go through a read-only mapping of everything that was appended
+ * so far, which is renewed when the segment grew.
+ */
+class Segment {
+    static final int MAGIC = 0x41425347; // "ABSG"
+    static final int SERIALIZE_VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    final File file;
+    private final RandomAccessFile raf;
+    final FileChannel channel;
+
+    /** end of the last complete record **/
+    long size;
+    /** end of the records which are referenced by the index file **/
+    long indexedEnd = HEADER_SIZE;
+    /** something was written since the last force **/
+    boolean dirty = false;
+
+    private MappedByteBuffer mapping = null;
+
+    private Segment(File file, RandomAccessFile raf) throws IOException {
+        this.file = file;
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.size = channel.size();
+    }
+
+    static Segment create(File file) throws IOException {
+        Segment segment = new Segment(file, new RandomAccessFile(file, "rw"));
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(SERIALIZE_VERSION);
+        header.flip();
+        segment.channel.truncate(0);
+        writeFully(segment.channel, header, 0);
+        segment.size = HEADER_SIZE;
+        segment.dirty = true;
+        return segment;
+    }
+
+    static Segment open(File file) throws IOException {
+        Segment segment = new Segment(file, new RandomAccessFile(file, "rw"));
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            segment.readFully(header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a store segment: " + file);
+            }
+            int version = header.getInt(4);
+            if (version != SERIALIZE_VERSION) {
+                throw new IOException("Unsupported segment version " + version + ": " + file);
+            }
+        } catch (IOException e) {
+            segment.close();
+            throw e;
+        }
+        return segment;
+    }
+
+    /**
+     * @return Read-only view of all the complete records, positioned at 0
+     */
+    ByteBuffer map() throws IOException {
+        if (mapping == null || mapping.capacity() < size) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return mapping.duplicate();
+    }
+
+    void readFully(ByteBuffer buffer, long position) throws IOException {
+        long start = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of segment " + file + " at " + start);
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Drops everything behind the position, e.g. an incomplete record.
+     */
+    void truncate(long position) throws IOException {
+        channel.truncate(position);
+        size = position;
+    }
+
+    void force() throws IOException {
+        if (dirty) {
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+    void close() throws IOException {
+        mapping = null;
+        raf.close();
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Appends positionally behind the complete records, the size of the
+     * segment isn't changed until the record is committed.
+     */
+    class Appender extends OutputStream {
+        private final long start;
+        private long position;
+
+        Appender(long start) {
+            this.start = start;
+            this.position = start;
+            dirty = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeFully(channel, ByteBuffer.wrap(b, off, len), position);
+            position += len;
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        long getWritten() {
+            return position - start;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package trabe.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.*;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trabe.*;
+
+public class AbeAccessIndexTest {
+
+    private static SecureRandom random;
+
+    @BeforeClass
+    public static void testSetup() {
+        random = new SecureRandom();
+    }
+
+    public byte[] getRandomData() {
+        byte[] data = new byte[random.nextInt(100) + 20];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void accessIndexTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(4);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey key1 = Cpabe.keygenSingle(msk, "att1 att2");
+        AbePrivateKey key2 = Cpabe.keygenSingle(msk, "att3");
+        AbePrivateKey key3 = Cpabe.keygenSingle(msk, "att2 att1");
+
+        String[] policies = { "(att1 and att2) or att3", "att3", "att1 and att4" };
+        AbeAccessIndex index = new AbeAccessIndex(pub);
+        for (int i = 0; i < 30; i++) {
+            AbeEncrypted encrypted = Cpabe.encrypt(pub, policies[i % policies.length], getRandomData());
+            if (i % 2 == 0) {
+                index.add("object" + i, encrypted.getCipher());
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                encrypted.writeEncryptedFile(out, pub);
+                index.add("object" + i, new ByteArrayInputStream(out.toByteArray()));
+            }
+        }
+        assertEquals(30, index.size());
+        assertEquals(3, index.getPolicyCount());
+
+        List<String> decryptable1 = index.findDecryptable(key1);
+        assertEquals(10, decryptable1.size());
+        assertEquals("object0", decryptable1.get(0));
+        assertEquals(3, index.getEvaluationCount());
+
+        // same attribute set, only cached results
+        assertEquals(decryptable1, index.findDecryptable(key3));
+        assertTrue(index.canDecrypt(key3, "object3"));
+        assertFalse(index.canDecrypt(key3, "object1"));
+        assertEquals(3, index.getEvaluationCount());
+
+        assertEquals(20, index.findDecryptable(key2).size());
+        assertEquals(Arrays.asList("object1", "object0"),
+                index.findDecryptable(key2, Arrays.asList("object2", "object1", "unknown", "object0")));
+        assertEquals(6, index.getEvaluationCount());
+
+        // new policy is evaluated once for the cached attribute set
+        index.add("object30", Cpabe.encrypt(pub, "att1", getRandomData()).getCipher());
+        assertTrue(index.canDecrypt(key1, "object30"));
+        assertEquals(7, index.getEvaluationCount());
+        assertTrue(index.remove("object30"));
+
+        File file = new File(TestUtil.prepareTestFolder(), "accessIndex.dat");
+        index.writeToFile(file);
+        AbeAccessIndex read = AbeAccessIndex.readFromFile(file, pub);
+        assertEquals(30, read.size());
+        assertEquals(3, read.getPolicyCount());
+        assertEquals(decryptable1, read.findDecryptable(key1));
+        assertFalse(read.contains("object30"));
+    }
+
+    @Test
+    public void accessIndexRemovalTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(4);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(msk, "att1 att2");
+        AbeAccessIndex index = new AbeAccessIndex(pub);
+
+        // a stream of objects with ever new policies only keeps the live ones
+        index.add("kept", Cpabe.encrypt(pub, "att1", getRandomData()).getCipher());
+        for (int i = 0; i < 20; i++) {
+            String policy = i % 2 == 0 ? "att2 and attr" + i : "attr" + i;
+            index.add("object" + i, Cpabe.encrypt(pub, policy, getRandomData()).getCipher());
+            assertEquals(2, index.getPolicyCount());
+            assertEquals(Arrays.asList("kept"), index.findDecryptable(key)); // the reused id isn't stale
+            assertTrue(index.remove("object" + i));
+            assertEquals(1, index.getPolicyCount());
+        }
+        // the id of "att1" stays, the one freed id is reused every time
+        assertEquals(21, index.getEvaluationCount());
+
+        // replacing an object keeps its policy
+        index.add("kept", Cpabe.encrypt(pub, "att1", getRandomData()).getCipher());
+        assertEquals(1, index.getPolicyCount());
+        assertTrue(index.canDecrypt(key, "kept"));
+        assertTrue(index.remove("kept"));
+        assertEquals(0, index.getPolicyCount());
+        assertEquals(0, index.size());
+    }
+}
@@ -0,0 +1,150 @@
+package trabe.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.*;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trabe.*;
+
+public class AbeEncryptedTest {
+
+    private static SecureRandom random;
+
+    @BeforeClass
+    public static void testSetup() {
+        random = new SecureRandom();
+    }
+
+    public byte[] getRandomData() {
+        byte[] data = new byte[random.nextInt(100) + 20];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void byteArrayFastPathTest() throws Exception {
+        AbeSecretMasterKey smKey = Cpabe.setup(4);
+        AbePublicKey pubKey = smKey.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(smKey, "a b");
+        byte[] data = new byte[200];
+        new SecureRandom().nextBytes(data);
+
+        AbeEncrypted encrypted = Cpabe.encrypt(pubKey, "a and b", data);
+        assertTrue(encrypted.isSeekable());
+        // can be decrypted and serialized repeatedly
+        assertTrue(Arrays.equals(data, Cpabe.decrypt(key, encrypted)));
+        assertTrue(Arrays.equals(data, Cpabe.decrypt(key, encrypted)));
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        encrypted.writeEncryptedFile(stream, pubKey);
+        byte[] serialized = encrypted.writeEncryptedData(pubKey);
+        assertTrue(Arrays.equals(stream.toByteArray(), serialized));
+        assertEquals(serialized.length, encrypted.getEncryptedLength(pubKey));
+
+        byte[] buffer = new byte[serialized.length + 10];
+        assertEquals(serialized.length, encrypted.writeEncryptedData(pubKey, buffer, 5));
+        AbeEncrypted read = AbeEncrypted.read(buffer, 5, serialized.length, pubKey);
+        assertTrue(Arrays.equals(data, Cpabe.decrypt(key, read)));
+        assertTrue(Arrays.equals(data, Cpabe.decrypt(key, serialized)));
+
+        // the stream format is still readable
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        Cpabe.decrypt(key, new ByteArrayInputStream(serialized), plain);
+        assertTrue(Arrays.equals(data, plain.toByteArray()));
+
+        try {
+            encrypted.writeEncryptedData(pubKey, new byte[serialized.length - 1], 0);
+            fail("buffer too small");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void seekableEncryptedTest() throws Exception {
+        AbeSecretMasterKey smKey = Cpabe.setup(4);
+        AbePublicKey pubKey = smKey.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(smKey, "a b");
+        byte[] data = new byte[100000];
+        new SecureRandom().nextBytes(data);
+        byte[] serialized = Cpabe.encrypt(pubKey, "a and b", data).writeEncryptedData(pubKey);
+
+        File folder = TestUtil.prepareTestFolder();
+        File file = new File(folder, "seekable.cpabe");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 1, 2, 3 }); // the ciphertext doesn't start at the beginning
+        out.write(serialized);
+        out.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            AbeEncrypted fromChannel = AbeEncrypted.read(channel, 3, pubKey);
+            AbeEncrypted fromMapping = AbeEncrypted.read(channel.map(FileChannel.MapMode.READ_ONLY, 3, serialized.length), pubKey);
+            for (AbeEncrypted encrypted : new AbeEncrypted[] { fromChannel, fromMapping }) {
+                assertTrue(encrypted.isSeekable());
+                // decrypt, forward and decrypt again without re-reading the header
+                assertTrue(Arrays.equals(data, Cpabe.decrypt(key, encrypted)));
+                assertTrue(Arrays.equals(serialized, encrypted.writeEncryptedData(pubKey)));
+                ByteArrayOutputStream plain = new ByteArrayOutputStream();
+                encrypted.writeDecryptedData(key, plain);
+                assertTrue(Arrays.equals(data, plain.toByteArray()));
+            }
+            assertEquals(0, channel.position());
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void concurrentSeekableDecryptTest() throws Exception {
+        AbeSecretMasterKey smKey = Cpabe.setup(4);
+        final AbePublicKey pubKey = smKey.getPublicKey();
+        final byte[] data = getRandomData();
+        final AbeEncrypted encrypted = AbeEncrypted.read(
+                Cpabe.encrypt(pubKey, "a and (b or c)", data).writeEncryptedData(pubKey), pubKey);
+
+        // the keys satisfy different parts of the policy
+        AbePrivateKey[] keys = { Cpabe.keygenSingle(smKey, "a b"), Cpabe.keygenSingle(smKey, "a c"),
+                Cpabe.keygenSingle(smKey, "a b c"), Cpabe.keygenSingle(smKey, "b c") };
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] workers = new Thread[keys.length];
+        for (int i = 0; i < workers.length; i++) {
+            final AbePrivateKey key = keys[i];
+            final boolean satisfies = i < 3;
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            try {
+                                byte[] plaintext = Cpabe.decrypt(key, encrypted);
+                                assertTrue(satisfies && Arrays.equals(data, plaintext));
+                            } catch (AbeDecryptionException e) {
+                                assertFalse(satisfies);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(Collections.<Throwable>emptyList(), failures);
+    }
+}
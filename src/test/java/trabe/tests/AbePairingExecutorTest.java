@@ -0,0 +1,82 @@
+package trabe.tests;
+
+import static org.junit.Assert.*;
+
+import java.security.SecureRandom;
+import java.util.*;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trabe.*;
+
+public class AbePairingExecutorTest {
+
+    private static SecureRandom random;
+
+    @BeforeClass
+    public static void testSetup() {
+        random = new SecureRandom();
+    }
+
+    public byte[] getRandomData() {
+        byte[] data = new byte[random.nextInt(100) + 20];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void pairingExecutorTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(4);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(msk, "att1 att2");
+        AbePrivateKey other = Cpabe.keygenSingle(msk, "att1");
+        byte[] data = getRandomData();
+
+        int previous = AbeSettings.PAIRING_THREADS;
+        AbeSettings.PAIRING_THREADS = 2;
+        try {
+            byte[] ct = Cpabe.encrypt(pub, "att1 and att2", data).writeEncryptedData(pub);
+            assertTrue(Arrays.equals(data, Cpabe.decrypt(key, AbeEncrypted.read(ct, pub))));
+            try {
+                Cpabe.decrypt(other, AbeEncrypted.read(ct, pub));
+                fail();
+            } catch (AbeDecryptionException e) {
+                // the exception of the pool thread is rethrown
+            }
+
+            // callers that looked up a pool before it was replaced must not be rejected
+            final AbePrivateKey decryptionKey = key;
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+            final java.util.concurrent.atomic.AtomicBoolean running = new java.util.concurrent.atomic.AtomicBoolean(true);
+            Thread[] workers = new Thread[4];
+            for (int i = 0; i < workers.length; i++) {
+                final AbeEncrypted encrypted = AbeEncrypted.read(ct, pub);
+                workers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (running.get()) {
+                                AbePairingExecutor.decrypt(decryptionKey, encrypted.getCipher());
+                            }
+                        } catch (Throwable t) {
+                            failures.add(t);
+                        }
+                    }
+                };
+                workers[i].start();
+            }
+            for (int i = 0; i < 200; i++) {
+                AbeSettings.PAIRING_THREADS = 1 + i % 3;
+                Thread.sleep(1);
+            }
+            running.set(false);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            assertEquals(Collections.<Throwable>emptyList(), failures);
+        } finally {
+            AbeSettings.PAIRING_THREADS = previous;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package trabe.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.*;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trabe.*;
+import trabe.lw14.*;
+
+public class AbePublicKeyTest {
+
+    private static SecureRandom random;
+
+    @BeforeClass
+    public static void testSetup() {
+        random = new SecureRandom();
+    }
+
+    public byte[] getRandomData() {
+        byte[] data = new byte[random.nextInt(100) + 20];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void sectionedPublicKeyTest() throws Exception {
+        AbeSecretMasterKey msk = Lw14.setup(20, 3);
+        AbePublicKey pub = msk.getPublicKey();
+        assertEquals(5, pub.getSqrtUsers());
+
+        byte[] data = getRandomData();
+        AbePrivateKey key = Cpabe.keygenSingle(msk, "att1 att2");
+        assertTrue(Arrays.equals(data, Cpabe.decrypt(key, Cpabe.encrypt(pub, "att1 and att2", data))));
+
+        File file = new File(TestUtil.prepareTestFolder(), "sectionedPub.dat");
+        pub.writeSectioned(file);
+
+        AbePublicKey full = AbePublicKey.readSectioned(file, 0, pub.getSqrtUsers(), true);
+        assertEquals(pub, full);
+
+        AbePublicKey partial = AbePublicKey.readSectioned(file, 1, 2, false);
+        assertEquals(pub.getSqrtUsers(), partial.getSqrtUsers());
+        assertEquals(pub.g, partial.g);
+        assertFalse(partial.isRowLoaded(0));
+        assertTrue(partial.isRowLoaded(1));
+        assertTrue(partial.isRowLoaded(2));
+        assertFalse(partial.isRowLoaded(3));
+        assertEquals(pub.E_i[2], partial.E_i[2]);
+        assertEquals(pub.Z_i[1], partial.Z_i[1]);
+        assertFalse(partial.areColumnsLoaded());
+
+        partial.loadSections(file, 3, 2, true);
+        assertTrue(partial.areColumnsLoaded());
+        assertEquals(pub.H_j[4], partial.H_j[4]);
+        assertTrue(partial.isRowLoaded(4));
+    }
+
+    @Test
+    public void gtPreprocessingTest() throws Exception {
+        AbeSecretMasterKey smKey = Cpabe.setup(16);
+        AbePublicKey pubKey = smKey.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(smKey, "a b");
+        Element exponent = pubKey.getPairing().getZr().newRandomElement();
+
+        // every encryption uses every row, the tables are built once the rows were used often enough
+        for (int i = 0; i < AbeSettings.PREPROCESSING_THRESHOLD; i++) {
+            byte[] data = getRandomData();
+            assertTrue(Arrays.equals(data, Cpabe.decrypt(key, Cpabe.encrypt(pubKey, "a and b", data))));
+        }
+        if (AbeSettings.PREPROCESSING) {
+            for (int i = 0; i < pubKey.getSqrtUsers(); i++) {
+                ElementPowPreProcessing table = pubKey.getEPreProcessing(i);
+                assertNotNull(table);
+                assertSame(table, pubKey.getEPreProcessing(i));
+                assertEquals(pubKey.E_i[i].duplicate().powZn(exponent), table.powZn(exponent));
+            }
+
+            // dropped tables are built again on demand
+            pubKey.clearEPreProcessing();
+            assertNull(pubKey.getEPreProcessing(0));
+            byte[] data = getRandomData();
+            assertTrue(Arrays.equals(data, Cpabe.decrypt(key, Cpabe.encrypt(pubKey, "a and b", data))));
+
+            // the number of tables is bounded
+            int maxTables = AbeSettings.MAX_GT_TABLES;
+            AbeSettings.MAX_GT_TABLES = 1;
+            try {
+                pubKey.clearEPreProcessing();
+                pubKey.buildEPreProcessing();
+                assertNotNull(pubKey.getEPreProcessing(0));
+                assertNull(pubKey.getEPreProcessing(1));
+            } finally {
+                AbeSettings.MAX_GT_TABLES = maxTables;
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package trabe.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.*;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trabe.*;
+import trabe.store.AbeEnvelope;
+import trabe.store.AbeSegmentStore;
+
+public class AbeSegmentStoreTest {
+
+    private static SecureRandom random;
+
+    @BeforeClass
+    public static void testSetup() {
+        random = new SecureRandom();
+    }
+
+    public byte[] getRandomData() {
+        byte[] data = new byte[random.nextInt(100) + 20];
+        random.nextBytes(data);
+        return data;
+    }
+
+    // so we dont need to check for exceptions every time we want to decrypt
+    private byte[] decrypt(AbePrivateKey privateKey, AbeEncrypted encryptedData) {
+        try {
+            return Cpabe.decrypt(privateKey, encryptedData);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Test
+    public void segmentStoreTest() throws Exception {
+        AbeSecretMasterKey smKey = Cpabe.setup(4);
+        AbePublicKey pubKey = smKey.getPublicKey();
+        AbePrivateKey keyA = Cpabe.keygenSingle(smKey, "a");
+        AbePrivateKey keyB = Cpabe.keygenSingle(smKey, "b");
+        File folder = new File(TestUtil.prepareTestFolder(), "store");
+
+        AbeSegmentStore store = new AbeSegmentStore(folder, pubKey, 4096, 4);
+        AbeEnvelope envelopeA = new AbeEnvelope(pubKey, "a");
+        List<String> ids = new ArrayList<String>();
+        List<byte[]> plaintexts = new ArrayList<byte[]>();
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < 10; i++) {
+            byte[] data = new byte[random.nextInt(2000) + 1];
+            random.nextBytes(data);
+            plaintexts.add(data);
+            AbeEncrypted encrypted = envelopeA.encrypt(data);
+            ids.add(store.put(encrypted));
+            assertEquals(ids.get(i), store.put(encrypted)); // stored only once
+        }
+        // objects of two envelopes stored interleaved, the header is found by the envelope's fingerprint
+        AbeEnvelope envelopeB = new AbeEnvelope(pubKey, "a");
+        for (int i = 0; i < 4; i++) {
+            AbeEnvelope envelope = i % 2 == 0 ? envelopeB : envelopeA;
+            byte[] data = new byte[random.nextInt(2000) + 1];
+            random.nextBytes(data);
+            plaintexts.add(data);
+            AbeEncrypted encrypted = envelope.encrypt(data);
+            ids.add(store.put(envelope, encrypted));
+            assertEquals(ids.get(ids.size() - 1), store.put(encrypted));
+        }
+        String idB = store.put(Cpabe.encrypt(pubKey, "b", getRandomData()));
+        assertEquals(15, store.size());
+        assertEquals(3, store.getHeaderCount());
+        assertTrue(store.getSegmentCount() > 1);
+        store.close();
+
+        store = new AbeSegmentStore(folder, pubKey);
+        try {
+            assertEquals(ids, store.findDecryptable(keyA));
+            assertEquals(Collections.singletonList(idB), store.findDecryptable(keyB));
+            assertSame(store.get(idB).getCipher(), store.get(idB).getCipher());
+            for (int i = 0; i < ids.size(); i++) {
+                AbeEncrypted encrypted = store.get(ids.get(i));
+                assertTrue(encrypted.isSeekable());
+                assertTrue(Arrays.equals(plaintexts.get(i), Cpabe.decrypt(keyA, encrypted)));
+                assertNull(decrypt(keyB, store.get(ids.get(i))));
+            }
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package trabe.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.*;
+
+import org.junit.Test;
+
+import trabe.*;
+
+public class AbeStreamCipherTest {
+
+    @Test
+    public void streamEncryptDecryptTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(4);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(msk, "att1 att2");
+        byte[] data = new byte[100000];
+        new SecureRandom().nextBytes(data);
+
+        // small destinations force many partial writes
+        AbeStreamEncryptor encryptor = new AbeStreamEncryptor(pub, "att1 and att2", null);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        ByteBuffer src = ByteBuffer.wrap(data);
+        ByteBuffer dst = ByteBuffer.allocate(1000);
+        while (src.hasRemaining()) {
+            encryptor.encrypt(src, dst);
+            dst.flip();
+            encrypted.write(dst.array(), 0, dst.limit());
+            dst.clear();
+        }
+        boolean finished;
+        do {
+            finished = encryptor.finish(dst);
+            dst.flip();
+            encrypted.write(dst.array(), 0, dst.limit());
+            dst.clear();
+        } while (!finished);
+
+        // the output is compatible with the blocking API
+        assertTrue(Arrays.equals(data, Cpabe.decrypt(key, AbeEncrypted.read(encrypted.toByteArray(), pub))));
+
+        AbeStreamDecryptor decryptor = new AbeStreamDecryptor(key);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        byte[] ciphertext = encrypted.toByteArray();
+        for (int offset = 0; offset < ciphertext.length; offset += 77) {
+            ByteBuffer piece = ByteBuffer.wrap(ciphertext, offset, Math.min(77, ciphertext.length - offset));
+            while (piece.hasRemaining()) {
+                decryptor.decrypt(piece, dst);
+                dst.flip();
+                decrypted.write(dst.array(), 0, dst.limit());
+                dst.clear();
+            }
+        }
+        do {
+            finished = decryptor.finish(dst);
+            dst.flip();
+            decrypted.write(dst.array(), 0, dst.limit());
+            dst.clear();
+        } while (!finished);
+        assertNotNull(decryptor.getCipherText());
+        assertTrue(Arrays.equals(data, decrypted.toByteArray()));
+
+        // the AES ciphertext behind the header stays in the source
+        int headerSize = ciphertext.length - (data.length / 16 + 1) * 16;
+        decryptor = new AbeStreamDecryptor(key);
+        ByteBuffer whole = ByteBuffer.wrap(ciphertext);
+        assertEquals(0, decryptor.decrypt(whole, ByteBuffer.allocate(0)));
+        assertNotNull(decryptor.getCipherText());
+        assertTrue(whole.position() <= Math.max(512, 2 * headerSize));
+        decrypted.reset();
+        while (whole.hasRemaining()) {
+            decryptor.decrypt(whole, dst);
+            dst.flip();
+            decrypted.write(dst.array(), 0, dst.limit());
+            dst.clear();
+        }
+        do {
+            finished = decryptor.finish(dst);
+            dst.flip();
+            decrypted.write(dst.array(), 0, dst.limit());
+            dst.clear();
+        } while (!finished);
+        assertTrue(Arrays.equals(data, decrypted.toByteArray()));
+    }
+
+    @Test
+    public void fileChannelEncryptDecryptTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(4);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(msk, "att1 att2");
+        byte[] data = new byte[600000]; // more than two transfer buffers
+        new SecureRandom().nextBytes(data);
+
+        File folder = TestUtil.prepareTestFolder();
+        File plain = new File(folder, "channel.plain");
+        File encrypted = new File(folder, "channel.enc");
+        File decrypted = new File(folder, "channel.dec");
+        FileOutputStream out = new FileOutputStream(plain);
+        out.write(data);
+        out.close();
+
+        Cpabe.encrypt(pub, "att1 and att2", plain, encrypted, null, 0);
+        Cpabe.decrypt(key, encrypted, decrypted);
+        assertTrue(Arrays.equals(data, TestUtil.read(decrypted)));
+
+        // both paths write the same format
+        ByteArrayOutputStream streamDecrypted = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(encrypted);
+        Cpabe.decrypt(key, in, streamDecrypted);
+        in.close();
+        assertTrue(Arrays.equals(data, streamDecrypted.toByteArray()));
+    }
+}
@@ -0,0 +1,75 @@
+package trabe.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import trabe.*;
+import trabe.lw14.*;
+
+public class AbeUserIndexAllocatorTest {
+
+    @Test
+    public void userIndexAllocatorTest() throws Exception {
+        AbeSecretMasterKey msk = Lw14.setup(20);
+        File journal = new File(TestUtil.prepareTestFolder(), "msk.dat.journal");
+        journal.delete();
+
+        AbeUserIndexAllocator allocator = new AbeUserIndexAllocator(msk, journal, 4);
+        AbeUserIndexAllocator.Block block = allocator.allocateBlock();
+        assertEquals(0, block.next());
+        assertEquals(3, block.remaining());
+        assertEquals(4, allocator.next());
+        assertEquals(8, allocator.getReserved());
+        assertEquals(5, allocator.getUsed()); // the rest of the block of next() isn't used
+        assertEquals(5.0 / allocator.getMaxUsers(), allocator.getUsage(), 1e-9);
+
+        // bulk key generation reserves exactly one range and assigns it in order
+        Map<String, String> users = new LinkedHashMap<String, String>();
+        users.put("alice", "att1 att2");
+        users.put("bob", "att1");
+        users.put("carol", "att2");
+        Map<String, AbePrivateKey> keys = Cpabe.keygenBulk(msk, users, 2, allocator);
+        int expectedPosition = 8;
+        for (AbePrivateKey key : keys.values()) {
+            assertEquals(expectedPosition++, key.position.counter);
+        }
+        assertEquals(11, allocator.getReserved());
+        assertEquals(5, allocator.next()); // next() continues its block
+        try {
+            allocator.allocateBlock(allocator.getMaxUsers());
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(11, allocator.getReserved()); // nothing reserved
+        }
+        allocator.close();
+
+        // after a restart the unfinished blocks are skipped
+        AbeSecretMasterKey restarted = Lw14.setup(20);
+        AbeUserIndexAllocator reopened = new AbeUserIndexAllocator(restarted, journal, 4);
+        assertEquals(11, reopened.getReserved());
+        assertEquals(11, restarted.counter);
+        AbePrivateKey key = Cpabe.keygenSingle(restarted, "att1", reopened);
+        assertEquals(11, key.position.counter);
+        reopened.close();
+
+        // closing gave the rest of the last block of next() back
+        reopened = new AbeUserIndexAllocator(Lw14.setup(20), journal, 4);
+        assertEquals(12, reopened.getReserved());
+        assertEquals(12, reopened.getUsed());
+
+        while (reopened.getReserved() < reopened.getMaxUsers()) {
+            reopened.allocateBlock();
+        }
+        try {
+            reopened.allocateBlock();
+            fail();
+        } catch (IllegalStateException e) {
+            // all indexes are used
+        }
+        reopened.close();
+    }
+}
@@ -12,6 +12,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import trabe.*;
+import trabe.aes.AesDecryptionException;
 import trabe.aes.AesEncryption;
 
 public class AesTest {
@@ -69,7 +70,50 @@ public class AesTest {
             assertTrue(Arrays.equals(plaintext, decryptedPlaintext));
         }
     }
-    
+
+    @Test
+    public void testCipherReuseAES() throws Exception {
+        final byte[] cpabeKey = new byte[1000];
+        final byte[] iv = new byte[16];
+        random.nextBytes(cpabeKey);
+        random.nextBytes(iv);
+        final byte[] inner = new byte[50];
+        random.nextBytes(inner);
+        final byte[][] innerCiphertext = new byte[1][];
+
+        // the input encrypts on the same thread while the outer encryption is running
+        byte[] plaintext = new byte[100000];
+        random.nextBytes(plaintext);
+        ByteArrayInputStream encInput = new ByteArrayInputStream(plaintext) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (innerCiphertext[0] == null) {
+                    try {
+                        innerCiphertext[0] = AesEncryption.encrypt(cpabeKey, null, iv, inner);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.read(b, off, len);
+            }
+        };
+        ByteArrayOutputStream encOutput = new ByteArrayOutputStream();
+        AesEncryption.encrypt(cpabeKey, null, iv, encInput, encOutput);
+
+        assertTrue(Arrays.equals(plaintext, AesEncryption.decrypt(cpabeKey, null, iv, encOutput.toByteArray())));
+        assertTrue(Arrays.equals(inner, AesEncryption.decrypt(cpabeKey, null, iv, innerCiphertext[0])));
+
+        // a failed decryption doesn't leave state behind
+        byte[] wrongKey = new byte[1000];
+        random.nextBytes(wrongKey);
+        try {
+            AesEncryption.decrypt(wrongKey, null, iv, innerCiphertext[0]);
+        } catch (AesDecryptionException e) {
+            // padding error
+        }
+        assertTrue(Arrays.equals(inner, AesEncryption.decrypt(cpabeKey, null, iv, innerCiphertext[0])));
+    }
+
     //@Test
     public void readAfterABEFileTest() throws Exception {
     	// currently not working, difficult to do
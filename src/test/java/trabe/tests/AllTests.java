@@ -4,7 +4,7 @@ import org.junit.runners.Suite;
 import org.junit.runner.RunWith;
 
 @RunWith(Suite.class)
-@Suite.SuiteClasses({ Lw14Test.class, AesTest.class, ParserTest.class, LsssTest.class, ElementVectorTest.class, BlackBoxTest.class })
+@Suite.SuiteClasses({ Lw14Test.class, AesTest.class, ParserTest.class, LsssTest.class, ElementVectorTest.class, BlackBoxTest.class, PolicyHeaderTest.class, AbeAccessIndexTest.class, TracingTest.class, AbePublicKeyTest.class, AbeUserIndexAllocatorTest.class, RevocationBitmapTest.class, CpabeAsyncTest.class, AbePairingExecutorTest.class, AbeStreamCipherTest.class, AbeEncryptedTest.class, AbeSegmentStoreTest.class })
 public class AllTests {
 
 }
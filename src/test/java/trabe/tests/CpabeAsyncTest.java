@@ -0,0 +1,181 @@
+package trabe.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.SecureRandom;
+import java.util.*;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trabe.*;
+import trabe.lw14.*;
+
+public class CpabeAsyncTest {
+
+    private static SecureRandom random;
+
+    @BeforeClass
+    public static void testSetup() {
+        random = new SecureRandom();
+    }
+
+    public byte[] getRandomData() {
+        byte[] data = new byte[random.nextInt(100) + 20];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void asyncTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(4);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(msk, "att1 att2");
+        byte[] data = getRandomData();
+
+        CpabeAsync async = new CpabeAsync(2, 1, 8);
+        final List<byte[]> completed = Collections.synchronizedList(new ArrayList<byte[]>());
+        CpabeAsync.Callback<byte[]> callback = new CpabeAsync.Callback<byte[]>() {
+            @Override
+            public void completed(byte[] result) {
+                completed.add(result);
+            }
+
+            @Override
+            public void failed(Throwable cause) {
+            }
+        };
+
+        List<java.util.concurrent.Future<byte[]>> ciphertexts = new ArrayList<java.util.concurrent.Future<byte[]>>();
+        for (int i = 0; i < 4; i++) {
+            ciphertexts.add(async.encryptAsync(pub, "att1 and att2", data, null, callback));
+        }
+        for (java.util.concurrent.Future<byte[]> ciphertext : ciphertexts) {
+            assertTrue(Arrays.equals(data, async.decryptAsync(key, ciphertext.get(), null).get()));
+        }
+        assertEquals(4, completed.size());
+
+        File folder = TestUtil.prepareTestFolder();
+        File plain = new File(folder, "async.plain");
+        File encrypted = new File(folder, "async.enc");
+        File decrypted = new File(folder, "async.dec");
+        FileOutputStream out = new FileOutputStream(plain);
+        out.write(data);
+        out.close();
+        async.encryptAsync(pub, "att1 and att2", plain, encrypted, new RevocationContext(pub, new int[]{ 1 }), null).get();
+        async.decryptAsync(key, encrypted, decrypted, null).get();
+        assertTrue(Arrays.equals(data, TestUtil.read(decrypted)));
+
+        AbePrivateKey other = Cpabe.keygenSingle(msk, "att1");
+        try {
+            async.decryptAsync(other, encrypted, decrypted, null).get();
+            fail();
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof AbeDecryptionException);
+        }
+        assertEquals(8, async.getAvailableSlots());
+
+        async.shutdown();
+        assertTrue(async.awaitTermination(10, java.util.concurrent.TimeUnit.SECONDS));
+        try {
+            async.decryptAsync(key, encrypted, decrypted, null);
+            fail();
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    @Test
+    public void asyncShutdownRaceTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(4);
+        AbePublicKey pub = msk.getPublicKey();
+        final AbePrivateKey key = Cpabe.keygenSingle(msk, "att1 att2");
+        final byte[] ciphertext = Cpabe.encrypt(pub, "att1 and att2", getRandomData()).writeEncryptedData(pub);
+
+        // operations that are admitted while the facade shuts down run to the end
+        // and operations that are rejected don't keep their slot
+        for (int round = 0; round < 10; round++) {
+            final CpabeAsync async = new CpabeAsync(1, 1, 1);
+            final List<java.util.concurrent.Future<byte[]>> admitted =
+                    Collections.synchronizedList(new ArrayList<java.util.concurrent.Future<byte[]>>());
+            Thread[] submitters = new Thread[3];
+            for (int i = 0; i < submitters.length; i++) {
+                submitters[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        // with a single slot the facade is idle between most operations
+                        for (int attempts = 0; attempts < 100000; attempts++) {
+                            try {
+                                admitted.add(async.decryptAsync(key, ciphertext, null));
+                            } catch (java.util.concurrent.RejectedExecutionException e) {
+                                // the slot is taken or the facade is shut down
+                            }
+                        }
+                    }
+                };
+                submitters[i].start();
+            }
+            Thread.sleep(round);
+            async.shutdown();
+            for (Thread submitter : submitters) {
+                submitter.join();
+            }
+            assertTrue(async.awaitTermination(30, java.util.concurrent.TimeUnit.SECONDS));
+            assertEquals(1, async.getAvailableSlots());
+            for (java.util.concurrent.Future<byte[]> future : admitted) {
+                assertNotNull(future.get());
+            }
+        }
+    }
+
+    @Test
+    public void asyncCancelTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(4);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(msk, "att1 att2");
+        File folder = TestUtil.prepareTestFolder();
+        File plain = new File(folder, "cancel.plain");
+        File encrypted = new File(folder, "cancel.enc");
+        FileOutputStream out = new FileOutputStream(plain);
+        out.write(getRandomData());
+        out.close();
+        Cpabe.encrypt(pub, "att1 and att2", plain, encrypted, null, 0);
+
+        // the callback of the file encryption runs on the only I/O thread and blocks it
+        final java.util.concurrent.CountDownLatch entered = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch proceed = new java.util.concurrent.CountDownLatch(1);
+        CpabeAsync async = new CpabeAsync(1, 1, 8);
+        async.encryptAsync(pub, "att1", plain, new File(folder, "cancel.blocker"), null, new CpabeAsync.Callback<Void>() {
+            @Override
+            public void completed(Void result) {
+                entered.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void failed(Throwable cause) {
+                entered.countDown();
+            }
+        });
+        assertTrue(entered.await(10, java.util.concurrent.TimeUnit.SECONDS));
+
+        java.util.concurrent.Future<Void> cancelled = async.decryptAsync(key, encrypted, new File(folder, "cancel.dec"), null);
+        assertTrue(cancelled.cancel(false));
+        assertTrue(cancelled.isCancelled());
+        // the blocking operation has released its slot before the callback, but the first
+        // stage of the cancelled operation is still queued and keeps its slot
+        assertEquals(7, async.getAvailableSlots());
+
+        async.shutdown();
+        assertFalse(async.awaitTermination(100, java.util.concurrent.TimeUnit.MILLISECONDS));
+        proceed.countDown();
+        assertTrue(async.awaitTermination(10, java.util.concurrent.TimeUnit.SECONDS));
+        assertEquals(8, async.getAvailableSlots());
+    }
+}
@@ -182,6 +182,92 @@ public class ElementVectorTest {
         assertTrue(e != ed);
     }
 
+    @Test
+    public void fusedTest() {
+        ElementVector v1 = new ElementVector(3, p.getZr());
+        ElementVector v2 = new ElementVector(3, p.getZr());
+        ElementVector v1d = v1.duplicate();
+        ElementVector v2d = v2.duplicate();
+
+        Element target = p.getZr().newRandomElement();
+        assertTrue(v1.scalar(v2, target) == target);
+        assertTrue(target.isEqual(v1d.duplicate().mul(v2d).sum()));
+
+        Element e = p.getZr().newRandomElement();
+        ElementVector result = v1.mulAdd(e, v2, new ElementVector(3));
+        assertTrue(result.equals(v1d.duplicate().mul(e).add(v2d)));
+        assertTrue(v1.equals(v1d));
+        assertTrue(v2.equals(v2d));
+
+        // in place
+        v1.mulAdd(e, v2, v1);
+        assertTrue(v1.equals(result));
+        v1 = v1d.duplicate();
+
+        Element g = p.getG1().newRandomElement();
+        Element h = p.getG1().newRandomElement();
+        ElementVector powTarget = new ElementVector(3, p.getG1());
+        Element reused = powTarget.get(0);
+        assertTrue(v1.powInBase(g, powTarget) == powTarget);
+        assertTrue(powTarget.get(0) == reused);
+        assertTrue(powTarget.equals(v1.powInBase(g)));
+
+        ElementVector fused = ElementVector.powInBases(g, v1, h, v2, new ElementVector(3));
+        assertTrue(fused.equals(v1.powInBase(g).mul(v2.powInBase(h))));
+        assertTrue(v1.equals(v1d));
+        assertTrue(v2.equals(v2d));
+    }
+
+    @Test
+    public void mulAddAliasingTest() {
+        ElementVector v1 = new ElementVector(3, p.getZr());
+        ElementVector v2 = new ElementVector(3, p.getZr());
+        Element e = p.getZr().newRandomElement();
+        ElementVector expected = v1.duplicate().mul(e).add(v2);
+
+        ElementVector v1d = v1.duplicate();
+        ElementVector v2d = v2.duplicate();
+        assertTrue(v1.mulAdd(e, v2, v2) == v2);
+        assertTrue(v2.equals(expected));
+        assertTrue(v1.equals(v1d));
+
+        v2 = v2d.duplicate();
+        assertTrue(v1.mulAdd(e, v2, v1) == v1);
+        assertTrue(v1.equals(expected));
+        assertTrue(v2.equals(v2d));
+
+        // this and v are the same vector
+        v1 = v1d.duplicate();
+        ElementVector doubled = v1d.duplicate().mul(e).add(v1d);
+        assertTrue(v1.mulAdd(e, v1, v1).equals(doubled));
+    }
+
+    @Test
+    public void multiExponentiationTest() {
+        for (int n = 1; n <= 3; n++) {
+            Element[] bases = new Element[n];
+            Element[] exponents = new Element[n];
+            Element expected = p.getG1().newOneElement();
+            for (int i = 0; i < n; i++) {
+                bases[i] = p.getG1().newRandomElement();
+                exponents[i] = p.getZr().newRandomElement();
+                expected.mul(bases[i].duplicate().powZn(exponents[i]));
+            }
+            Element b0 = bases[0].duplicate();
+            assertTrue(MultiExponentiation.pow(bases, exponents).isEqual(expected));
+            assertTrue(bases[0].isEqual(b0));
+        }
+
+        Element g = p.getG1().newRandomElement();
+        Element h = p.getG1().newRandomElement();
+        Element zero = p.getZr().newZeroElement();
+        Element e = p.getZr().newRandomElement();
+        assertTrue(MultiExponentiation.pow(g, zero, h, zero).isOne());
+        assertTrue(MultiExponentiation.pow(g, e, h, zero).isEqual(g.duplicate().powZn(e)));
+        assertTrue(MultiExponentiation.pow(g, p.getZr().newOneElement(), h, p.getZr().newElement(2))
+                .isEqual(h.duplicate().mul(h).mul(g)));
+    }
+
     @Test
     public void readWriteTest() throws IOException {
         File folder = TestUtil.prepareTestFolder();
@@ -2,6 +2,8 @@ package trabe.tests;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -11,12 +13,17 @@ import java.security.SecureRandom;
 import java.util.*;
 
 import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
 import org.bouncycastle.util.encoders.Base64;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import trabe.*;
 import trabe.lw14.*;
+import trabe.lw14.policy.Lw14PolicyAbstractNode;
+import trabe.lw14.policy.Lw14PolicyEvaluator;
+import trabe.lw14.policy.Lw14PolicyOptimizer;
+import trabe.policy.PolicyParsing;
 
 public class Lw14Test {
 
@@ -98,6 +105,143 @@ public class Lw14Test {
         assertTrue(Arrays.equals(data, decrypt(att1att4Key, policy2EncryptedTest5)));
     }
 
+    @Test
+    public void keygenBulkTest() throws Exception {
+        AbeSecretMasterKey smKey = Cpabe.setup(9);
+        AbePublicKey pubKey = smKey.getPublicKey();
+
+        byte[] data = getRandomData();
+        String policy = "(att1 and att2) or att3";
+
+        LinkedHashMap<String, String> users = new LinkedHashMap<String, String>();
+        users.put("alice", "att1 att2");
+        users.put("bob", "att3");
+        users.put("carol", "att1");
+        users.put("dave", "att2 att3 att4=42");
+        users.put("eve", "att2");
+
+        Map<String, AbePrivateKey> keys = Cpabe.keygenBulk(smKey, users, 3);
+        assertEquals(users.keySet(), keys.keySet());
+        assertEquals(users.size(), smKey.counter);
+
+        Set<Integer> positions = new HashSet<Integer>();
+        for (AbePrivateKey key : keys.values()) {
+            assertTrue(positions.add(key.position.counter));
+        }
+
+        assertTrue(Arrays.equals(data, decrypt(keys.get("alice"), Cpabe.encrypt(pubKey, policy, data))));
+        assertTrue(Arrays.equals(data, decrypt(keys.get("bob"), Cpabe.encrypt(pubKey, policy, data))));
+        assertFalse(Arrays.equals(data, decrypt(keys.get("carol"), Cpabe.encrypt(pubKey, policy, data))));
+        assertTrue(Arrays.equals(data, decrypt(keys.get("dave"), Cpabe.encrypt(pubKey, policy, data))));
+        assertFalse(Arrays.equals(data, decrypt(keys.get("eve"), Cpabe.encrypt(pubKey, policy, data))));
+
+        // the last index is reserved, a batch that doesn't fit uses no index at all
+        int left = smKey.getMaxUsers() - smKey.counter;
+        List<String[]> batch = new ArrayList<String[]>();
+        for (int i = 0; i <= left; i++) {
+            batch.add(new String[]{ "att1" });
+        }
+        try {
+            Lw14.keygen(smKey, batch, 2);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(users.size(), smKey.counter);
+        }
+        batch.remove(0);
+        List<AbePrivateKey> rest = Lw14.keygen(smKey, batch, 2);
+        for (int i = 0; i < rest.size(); i++) {
+            assertNotNull(rest.get(i));
+            assertEquals(users.size() + i, rest.get(i).position.counter);
+        }
+        assertEquals(smKey.getMaxUsers(), smKey.counter);
+    }
+
+    @Test
+    public void keygenPreprocessingTest() throws Exception {
+        AbePublicKey pub = Cpabe.setup(9).getPublicKey();
+        Lw14KeygenPreprocessing kpp = new Lw14KeygenPreprocessing(pub);
+        // nothing is built up front, a table only after the threshold is reached for its base
+        assertEquals(0, kpp.getTableCount());
+        for (int i = 1; i < AbeSettings.PREPROCESSING_THRESHOLD; i++) {
+            assertNull(kpp.forF(1));
+        }
+        ElementPowPreProcessing table = kpp.forF(1);
+        assertNotNull(table);
+        assertSame(table, kpp.forF(1));
+        assertEquals(1, kpp.getTableCount());
+        Element e = pub.getPairing().getZr().newRandomElement();
+        assertEquals(pub.f_j[1].duplicate().powZn(e), table.powZn(e));
+
+        assertNull(kpp.forZ(0));
+        assertNotNull(kpp.forG(AbeSettings.PREPROCESSING_THRESHOLD));
+        assertEquals(2, kpp.getTableCount());
+    }
+
+    @Test
+    public void policyEvaluatorTest() throws Exception {
+        Lw14PolicyEvaluator evaluator = Lw14PolicyEvaluator.fromPostfix(PolicyParsing.parsePolicy("(att1 and att2) or att3"));
+        assertEquals(3, evaluator.getAttributeCount());
+        assertEquals(new HashSet<String>(Arrays.asList("att3")),
+                evaluator.minimalSatisfyingSet(Arrays.asList("att1", "att2", "att3", "att4")));
+        assertEquals(new HashSet<String>(Arrays.asList("att1", "att2")),
+                evaluator.minimalSatisfyingSet(Arrays.asList("att1", "att2")));
+        assertNull(evaluator.minimalSatisfyingSet(Arrays.asList("att1", "att4")));
+
+        evaluator = Lw14PolicyEvaluator.fromPostfix(PolicyParsing.parsePolicy("2 of (att1, (att2 and att3), att4)"));
+        assertEquals(new HashSet<String>(Arrays.asList("att1", "att4")),
+                evaluator.minimalSatisfyingSet(Arrays.asList("att1", "att2", "att3", "att4")));
+        assertEquals(new HashSet<String>(Arrays.asList("att2", "att3", "att4")),
+                evaluator.minimalSatisfyingSet(Arrays.asList("att2", "att3", "att4")));
+
+        // trees that were read from a ciphertext only contain the attribute hashes
+        AbeSecretMasterKey msk = Cpabe.setup(4);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(msk, "att1 att2");
+        Lw14PolicyAbstractNode tree = Lw14Util.getPolicyTree("(att1 and att2) or att3", pub);
+        tree.fillPolicy(pub, pub.getPairing().getZr().newRandomElement());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AbeOutputStream abeOut = new AbeOutputStream(out, pub);
+        tree.writeToStream(abeOut);
+        abeOut.flush();
+        Lw14PolicyAbstractNode readTree = Lw14PolicyAbstractNode.readFromStream(
+                new AbeInputStream(new ByteArrayInputStream(out.toByteArray()), pub));
+
+        evaluator = new Lw14PolicyEvaluator(readTree, pub);
+        assertTrue(evaluator.satisfies(key));
+        assertTrue(evaluator.satisfies(Arrays.asList("att3")));
+        assertFalse(evaluator.satisfies(Arrays.asList("att1")));
+        assertEquals(readTree.checkSatisfy(key), evaluator.satisfies(key));
+    }
+
+    @Test
+    public void attributeHashCacheTest() throws Exception {
+        AbePublicKey pubKey = Cpabe.setup(4).getPublicKey();
+        Lw14AttributeHashCache cache = new Lw14AttributeHashCache(pubKey, 20);
+        assertEquals(0.0, cache.getHitRatio(), 0.0);
+
+        Element first = cache.get("att1");
+        Element second = cache.get("att1");
+        assertTrue(first != second);
+        assertTrue(first.isEqual(second));
+        assertTrue(first.isEqual(Lw14Util.elementZrFromString("att1", pubKey)));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRatio(), 0.0);
+
+        // returned elements must not change the cached value
+        first.setToZero();
+        assertTrue(cache.get("att1").isEqual(second));
+
+        for (int i = 0; i < 100; i++) {
+            cache.get("attribute" + i);
+        }
+        assertTrue(cache.size() <= 20);
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+    }
+
     @Test
     public void cipherTextSerializationTest() throws Exception {
         File folder = TestUtil.prepareTestFolder();
@@ -610,6 +754,36 @@ public class Lw14Test {
         }
     }
 
+    @Test
+    public void policyOptimizerTest() throws Exception {
+        AbePublicKey publicKey = Cpabe.setup(3).getPublicKey();
+
+        LinkedHashMap<String, Integer[]> testVectors = new LinkedHashMap<String, Integer[]>();
+        testVectors.put("att1 and (att2 and att3)", new Integer[]{ 3, 3 });
+        testVectors.put("(att1 and att2) or (att1 and att2)", new Integer[]{ 4, 2 });
+        testVectors.put("att1 or (att1 and att2)", new Integer[]{ 3, 1 });
+        testVectors.put("att1 and (att1 or att2) and att3", new Integer[]{ 4, 2 });
+        testVectors.put("2 of (att1, att1, att2)", new Integer[]{ 3, 3 });
+
+        for(Map.Entry<String, Integer[]> policy : testVectors.entrySet()) {
+            Lw14PolicyOptimizer optimizer = new Lw14PolicyOptimizer();
+            Lw14PolicyAbstractNode optimized = optimizer.optimize(Lw14Util.getPolicyTree(policy.getKey(), publicKey));
+
+            assertEquals(policy.getValue()[0].intValue(), optimizer.getLeavesBefore());
+            assertEquals(policy.getValue()[1].intValue(), optimizer.getLeavesAfter());
+            assertEquals(optimizer.getLeavesAfter(), Lw14PolicyOptimizer.countLeaves(optimized));
+        }
+
+        String[] attributeSets = { "att1", "att2", "att3", "att1 att2", "att1 att3", "att2 att3", "att1 att2 att3" };
+        for (String policy : testVectors.keySet()) {
+            Lw14PolicyAbstractNode optimized = new Lw14PolicyOptimizer().optimize(Lw14Util.getPolicyTree(policy, publicKey));
+            for (String attributes : attributeSets) {
+                Set<String> set = new HashSet<String>(Arrays.asList(attributes.split(" ")));
+                assertEquals(Lw14Util.satisfies(policy, set, publicKey), Lw14Util.satisfies(optimized, set, publicKey));
+            }
+        }
+    }
+
     @Test
     public void pascalRowTest() throws Exception {
         long[][] a = new long[][]{
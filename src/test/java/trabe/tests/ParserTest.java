@@ -1,6 +1,19 @@
 package trabe.tests;
 
 import static org.junit.Assert.*;
+
+import java.awt.geom.Path2D;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ch.hsr.geohash.BoundingBox;
+import ch.hsr.geohash.GeoHash;
+import ch.hsr.geohash.WGS84Point;
 import trabe.policy.*;
 import trabe.policyparser.ParseException;
 
@@ -20,6 +33,162 @@ public class ParserTest {
         // TODO check if parsed policy is correct
     }
 
+    private static int countLeaves(String postfixPolicy) {
+        int leaves = 0;
+        for (String token : postfixPolicy.split("\\s+")) {
+            if (!token.matches("^[0-9]+of[0-9]+$")) {
+                leaves++;
+            }
+        }
+        return leaves;
+    }
+
+    /**
+     * Evaluates a postfix policy for a user with the given attributes.
+     */
+    private static boolean satisfies(String postfixPolicy, Set<String> attributes) {
+        Deque<Boolean> stack = new ArrayDeque<Boolean>();
+        for (String token : postfixPolicy.trim().split("\\s+")) {
+            if (token.matches("^[0-9]+of[0-9]+$")) {
+                int threshold = Integer.parseInt(token.substring(0, token.indexOf('o')));
+                int children = Integer.parseInt(token.substring(token.indexOf('f') + 1));
+                int satisfied = 0;
+                for (int i = 0; i < children; i++) {
+                    if (stack.pop()) {
+                        satisfied++;
+                    }
+                }
+                stack.push(satisfied >= threshold);
+            } else {
+                stack.push(attributes.contains(token));
+            }
+        }
+        assertEquals(1, stack.size());
+        return stack.pop();
+    }
+
+    private static Set<String> locationAttributes(String name, double lat, double lon) {
+        GeoHash location = GeoHash.withBitPrecision(lat, lon, Util.GEOHASH_MAXBITS);
+        return new HashSet<String>(AttributeParser.geoHashToAttributes(name, location, Util.GEOHASH_MAXBITS));
+    }
+
+    /**
+     * The expansion before the policies were compiled: every cell of the
+     * neighbourhood as a full precision AND gate, joined by 1of9.
+     */
+    private static String naiveNeighbourhood(String name, GeoHash target) {
+        StringBuilder policy = new StringBuilder();
+        List<GeoHash> cells = new ArrayList<GeoHash>(Arrays.asList(target.getAdjacent()));
+        cells.add(target);
+        for (GeoHash cell : cells) {
+            int precision = cell.significantBits();
+            for (String attribute : AttributeParser.geoHashToAttributes(name, cell, precision)) {
+                policy.append(attribute).append(' ');
+            }
+            policy.append(precision).append("of").append(precision).append(' ');
+        }
+        return policy.append("1of9").toString();
+    }
+
+    @Test
+    public void geoHashNeighbourhoodMembershipTest() throws ParseException {
+        double[][] targets = { { 52.52001, 13.40495 }, { -33.8688, 151.2093 }, { 40.7128, -74.0060 } };
+        int[] precisions = { 20, 25, 32 };
+        for (double[] coordinates : targets) {
+            for (int precision : precisions) {
+                GeoHash target = GeoHash.withBitPrecision(coordinates[0], coordinates[1], precision);
+                String compiled = PolicyParsing.parsePolicy("a:" + coordinates[0] + ":" + coordinates[1] + ":" + precision + ":1");
+                String naive = naiveNeighbourhood("a", target);
+
+                BoundingBox box = target.getBoundingBox();
+                double latSize = box.getLatitudeSize();
+                double lonSize = box.getLongitudeSize();
+                // sample points close to the inner and outer side of every cell border of a 5x5 grid
+                double[] offsets = { 0.05, 0.5, 0.95 };
+                for (int row = -2; row <= 2; row++) {
+                    for (int col = -2; col <= 2; col++) {
+                        for (double latOffset : offsets) {
+                            for (double lonOffset : offsets) {
+                                double lat = box.getMinLat() + (row + latOffset) * latSize;
+                                double lon = box.getMinLon() + (col + lonOffset) * lonSize;
+                                Set<String> attributes = locationAttributes("a", lat, lon);
+                                boolean inside = Math.abs(row) <= 1 && Math.abs(col) <= 1;
+                                String point = lat + ":" + lon + " (precision " + precision + ")";
+                                assertEquals(point, inside, satisfies(compiled, attributes));
+                                assertEquals(point, satisfies(naive, attributes), satisfies(compiled, attributes));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void geoHashCompressionTest() throws ParseException {
+        int precision = 32;
+        String parsedPolicy = PolicyParsing.parsePolicy("a:52.52001:13.40495:" + precision + ":1");
+        int leaves = countLeaves(parsedPolicy);
+
+        // the naive neighbourhood consists of 9 full precision cells
+        assertTrue(leaves < 9 * precision / 4);
+
+        GeoHash target = GeoHash.withBitPrecision(52.52001, 13.40495, precision);
+        assertEquals(parsedPolicy, GeoHashPolicyCompiler.compileNeighbourhood("a", target));
+    }
+
+    @Test
+    public void geoHashWholeWorldNeighbourhoodTest() throws ParseException {
+        // the neighbourhood of a very coarse cell covers the whole world
+        for (int precision = 1; precision <= 2; precision++) {
+            String compiled = PolicyParsing.parsePolicy("a:52.52001:13.40495:" + precision + ":1");
+            String naive = naiveNeighbourhood("a", GeoHash.withBitPrecision(52.52001, 13.40495, precision));
+            assertEquals(2, countLeaves(compiled)); // the two top-level cells
+            for (double lat = -89.5; lat < 90; lat += 29.75) {
+                for (double lon = -179.5; lon < 180; lon += 44.75) {
+                    Set<String> attributes = locationAttributes("a", lat, lon);
+                    assertTrue(satisfies(compiled, attributes));
+                    assertEquals(satisfies(naive, attributes), satisfies(compiled, attributes));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void geoHashRegionTest() throws ParseException {
+        List<WGS84Point> polygon = new ArrayList<WGS84Point>();
+        polygon.add(new WGS84Point(52.3, 13.0));
+        polygon.add(new WGS84Point(52.7, 13.2));
+        polygon.add(new WGS84Point(52.6, 13.8));
+
+        GeoHashPolicyCompiler compiler = new GeoHashPolicyCompiler("a");
+        compiler.addRegion(polygon, 24);
+        String policy = compiler.toPolicy();
+
+        String parsedPolicy = PolicyParsing.parsePolicy(policy);
+        assertEquals(compiler.getLeafCount(), countLeaves(parsedPolicy));
+
+        Path2D.Double region = new Path2D.Double();
+        region.moveTo(13.0, 52.3);
+        region.lineTo(13.2, 52.7);
+        region.lineTo(13.8, 52.6);
+        region.closePath();
+        // points inside of the region are granted, points whose smallest cell doesn't touch the region are not
+        for (double lat = 52.2; lat <= 52.8; lat += 0.01) {
+            for (double lon = 12.9; lon <= 13.9; lon += 0.01) {
+                String point = lat + ":" + lon;
+                boolean granted = satisfies(parsedPolicy, locationAttributes("a", lat, lon));
+                if (region.contains(lon, lat)) {
+                    assertTrue(point, granted);
+                }
+                BoundingBox cell = GeoHash.withBitPrecision(lat, lon, 24).getBoundingBox();
+                if (!region.intersects(cell.getMinLon(), cell.getMinLat(), cell.getLongitudeSize(), cell.getLatitudeSize())) {
+                    assertFalse(point, granted);
+                }
+            }
+        }
+    }
+
     @Test //TODO finish writing test
     public void testAttributeParser() throws ParseException {
         //String attributes4 = "att1:52.52001:13.40495";
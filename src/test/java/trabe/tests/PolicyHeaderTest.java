@@ -0,0 +1,128 @@
+package trabe.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.*;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trabe.*;
+
+public class PolicyHeaderTest {
+
+    private static SecureRandom random;
+
+    @BeforeClass
+    public static void testSetup() {
+        random = new SecureRandom();
+    }
+
+    public byte[] getRandomData() {
+        byte[] data = new byte[random.nextInt(100) + 20];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void canDecryptHeaderTest() throws Exception {
+        File folder = TestUtil.prepareTestFolder();
+        File scanFolder = new File(folder, "scan");
+        scanFolder.mkdirs();
+        for (File file : scanFolder.listFiles()) {
+            file.delete();
+        }
+
+        AbeSecretMasterKey msk = Cpabe.setup(4);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(msk, "att1 att2");
+
+        String[] policies = { "(att1 and att2) or att3", "att3", "att1 and att4" };
+        for (int i = 0; i < policies.length; i++) {
+            byte[] data = getRandomData();
+            FileOutputStream out = new FileOutputStream(new File(scanFolder, "file" + i + ".cpabe"));
+            Cpabe.encrypt(pub, policies[i], data).writeEncryptedFile(out, pub);
+            out.close();
+        }
+
+        assertTrue(Cpabe.canDecrypt(key, new File(scanFolder, "file0.cpabe")));
+        assertFalse(Cpabe.canDecrypt(key, new File(scanFolder, "file1.cpabe")));
+        assertFalse(Cpabe.canDecrypt(key, new File(scanFolder, "file2.cpabe")));
+
+        // only the header is needed
+        byte[] full = TestUtil.read(new File(scanFolder, "file0.cpabe"));
+        int headerLength = ((full[4] & 0xFF) << 24) | ((full[5] & 0xFF) << 16) | ((full[6] & 0xFF) << 8) | (full[7] & 0xFF);
+        assertTrue(headerLength > 0);
+        assertTrue(Cpabe.canDecrypt(key, new ByteArrayInputStream(Arrays.copyOf(full, 8 + headerLength))));
+
+        FileOutputStream junk = new FileOutputStream(new File(scanFolder, "junk.txt"));
+        junk.write(new byte[]{ 1, 2, 3 });
+        junk.close();
+
+        List<File> decryptable = Cpabe.findDecryptable(key, scanFolder);
+        assertEquals(1, decryptable.size());
+        assertEquals("file0.cpabe", decryptable.get(0).getName());
+    }
+
+    private static byte[] withHeader(byte[] version, int headerLength, byte[] header) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(version);
+        out.writeInt(headerLength);
+        out.write(header);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void assertMalformedHeader(AbePrivateKey key, byte[] encrypted) throws Exception {
+        try {
+            Cpabe.canDecrypt(key, new ByteArrayInputStream(encrypted));
+            fail("Malformed header was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void malformedHeaderTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(4);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey key = Cpabe.keygenSingle(msk, "att1 att2");
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        Cpabe.encrypt(pub, "att1 and att2", getRandomData()).writeEncryptedFile(encrypted, pub);
+        byte[] full = encrypted.toByteArray();
+        byte[] version = Arrays.copyOf(full, 4);
+        int headerLength = ByteBuffer.wrap(full, 4, 4).getInt();
+        byte[] header = Arrays.copyOfRange(full, 8, 8 + headerLength);
+        assertTrue(Cpabe.canDecrypt(key, new ByteArrayInputStream(withHeader(version, headerLength, header))));
+
+        assertMalformedHeader(key, withHeader(version, -1, header));
+        assertMalformedHeader(key, withHeader(version, Integer.MAX_VALUE, header));
+        // bytes behind the policy tree
+        assertMalformedHeader(key, withHeader(version, headerLength + 4, Arrays.copyOf(header, headerLength + 4)));
+
+        // a chain of gates that is too deep to be read recursively
+        ByteArrayOutputStream deep = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(deep);
+        out.writeInt(1);
+        out.writeInt(1);
+        out.write(1);
+        for (int i = 0; i < 100000; i++) {
+            out.writeInt(1);
+            out.writeInt(1);
+        }
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.close();
+        assertMalformedHeader(key, withHeader(version, deep.size(), deep.toByteArray()));
+    }
+}
@@ -0,0 +1,126 @@
+package trabe.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.security.SecureRandom;
+import java.util.*;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trabe.*;
+import trabe.lw14.*;
+
+public class RevocationBitmapTest {
+
+    private static SecureRandom random;
+
+    @BeforeClass
+    public static void testSetup() {
+        random = new SecureRandom();
+    }
+
+    public byte[] getRandomData() {
+        byte[] data = new byte[random.nextInt(100) + 20];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void revocationBitmapTest() throws Exception {
+        // sparse chunk (array), dense chunk (bitmap) and a long run
+        SortedSet<Integer> expected = new TreeSet<Integer>();
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < 100; i++) {
+            expected.add(random.nextInt(1 << 16));
+        }
+        for (int i = 0; i < 20000; i++) {
+            expected.add((1 << 16) + random.nextInt(1 << 16));
+        }
+        for (int i = 3 << 16; i < (3 << 16) + 50000; i++) {
+            expected.add(i);
+        }
+        int[] indexes = new int[expected.size()];
+        int n = 0;
+        for (Integer index : expected) {
+            indexes[n++] = index;
+        }
+        int[] shuffled = indexes.clone();
+        for (int i = shuffled.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = t;
+        }
+
+        RevocationBitmap bitmap = RevocationBitmap.of(shuffled);
+        assertEquals(indexes.length, bitmap.getCardinality());
+        assertArrayEquals(indexes, bitmap.toArray());
+        for (int i = 0; i < 4 << 16; i += 7) {
+            assertEquals(expected.contains(i), bitmap.contains(i));
+        }
+
+        int rowLength = 1000;
+        for (int row = 0; row < (4 << 16) / rowLength; row += 13) {
+            SortedSet<Integer> inRow = expected.subSet(row * rowLength, (row + 1) * rowLength);
+            int[] columns = bitmap.revokedInRow(row, rowLength);
+            assertEquals(inRow.size(), columns.length);
+            int c = 0;
+            for (Integer index : inRow) {
+                assertEquals(index - row * rowLength, columns[c++]);
+            }
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        bitmap.writeToStream(new DataOutputStream(baos));
+        assertTrue(baos.size() < indexes.length); // less than a byte per revoked user
+        RevocationBitmap read = RevocationBitmap.readFromStream(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(bitmap, read);
+        assertArrayEquals(indexes, read.toArray());
+
+        assertTrue(RevocationBitmap.of(new int[0]).isEmpty());
+        assertEquals(0, RevocationBitmap.EMPTY.revokedInRow(0, 10).length);
+    }
+
+    @Test
+    public void revocationContextTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(16);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey[] keys = new AbePrivateKey[7];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = Cpabe.keygenSingle(msk, "att1 att2");
+            assertEquals(i, keys[i].position.counter);
+        }
+        AbePrivateKey key0 = keys[0], key1 = keys[1], key5 = keys[5], key6 = keys[6];
+
+        int[] revoked = new int[]{ 6, 1 };
+        RevocationContext context = new RevocationContext(pub, revoked);
+        assertEquals(6, revoked[0]); // the caller's array isn't sorted
+        assertTrue(context.isRevoked(1));
+        assertFalse(context.isRevoked(5));
+        // user index = row * sqrtUsers + column, both revoked users are in different rows
+        int m = pub.getSqrtUsers();
+        assertTrue(1 / m != 6 / m);
+        assertArrayEquals(new int[]{ 1 % m }, context.getRevocationBitmap().revokedInRow(1 / m, m));
+        assertArrayEquals(new int[]{ 6 % m }, context.getRevocationBitmap().revokedInRow(6 / m, m));
+
+        byte[] data = getRandomData();
+        for (int i = 0; i < 2; i++) {
+            byte[] ct = Cpabe.encrypt(pub, "att1 and att2", data, context).writeEncryptedData(pub);
+            assertTrue(Arrays.equals(data, Cpabe.decrypt(key0, AbeEncrypted.read(ct, pub))));
+            assertTrue(Arrays.equals(data, Cpabe.decrypt(key5, AbeEncrypted.read(ct, pub))));
+            for (AbePrivateKey revokedKey : new AbePrivateKey[]{ key1, key6 }) {
+                try {
+                    Cpabe.decrypt(revokedKey, AbeEncrypted.read(ct, pub));
+                    fail();
+                } catch (DecryptionException e) {
+                    // revoked
+                }
+            }
+        }
+    }
+}
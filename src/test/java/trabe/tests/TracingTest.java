@@ -0,0 +1,138 @@
+package trabe.tests;
+
+import static org.junit.Assert.*;
+
+import java.security.SecureRandom;
+import java.util.*;
+
+import it.unisa.dia.gas.jpbc.Element;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trabe.*;
+import trabe.lw14.*;
+
+public class TracingTest {
+
+    private static SecureRandom random;
+
+    @BeforeClass
+    public static void testSetup() {
+        random = new SecureRandom();
+    }
+
+    public byte[] getRandomData() {
+        byte[] data = new byte[random.nextInt(100) + 20];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void traceTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(2);
+        AbePublicKey pub = msk.getPublicKey();
+        AbePrivateKey[] keys = new AbePrivateKey[pub.getMaxUsers() + 1];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = Cpabe.keygenSingle(msk, "att1 att2");
+        }
+        assertEquals(1, keys[1].position.counter);
+
+        final List<Integer> decided = new ArrayList<Integer>();
+        AbeTracer.ProgressCallback callback = new AbeTracer.ProgressCallback() {
+            @Override
+            public void probed(int userIndex, long probes, long successes) {
+                assertTrue(successes <= probes);
+            }
+
+            @Override
+            public void decided(int userIndex, boolean traitor) {
+                decided.add(userIndex);
+            }
+        };
+
+        DecryptionBlackBox blackBox = new MockBlackBox(new AbePrivateKey[]{ keys[1] }, pub);
+        List<Integer> traitors = Cpabe.trace(pub, "att1 and att2", blackBox, 0.9, 2, callback);
+        assertEquals(Arrays.asList(1), traitors);
+        assertEquals(Arrays.asList(0, 1, 2), decided);
+
+        // the probes exclude revoked users, so the key of a revoked traitor doesn't decrypt any of them
+        RevocationContext revocation = new RevocationContext(pub, new int[]{ 1 });
+        assertEquals(Collections.<Integer>emptyList(),
+                Cpabe.trace(pub, "att1 and att2", blackBox, 0.9, 2, null, revocation));
+    }
+
+    @Test
+    public void probeGeneratorTest() throws Exception {
+        AbeSecretMasterKey msk = Cpabe.setup(2);
+        AbePublicKey pub = msk.getPublicKey();
+        // the last index is reserved for tracing, so no key decrypts probes for it
+        AbePrivateKey[] keys = new AbePrivateKey[pub.getMaxUsers()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = Cpabe.keygenSingle(msk, "att1 att2");
+        }
+
+        Lw14ProbeGenerator generator = new Lw14ProbeGenerator(pub, "att1 and (att2 or att3)", new int[0], null);
+        generator.setRefreshInterval(3);
+        int[] indexes = { 0, 1, 2, 3, 1, 2 };
+        List<Pair<CipherText, Element>> probes = generator.generate(indexes);
+        assertEquals(indexes.length, probes.size());
+
+        for (int p = 0; p < probes.size(); p++) {
+            for (int k = 0; k < keys.length; k++) {
+                Element decrypted;
+                try {
+                    decrypted = Lw14.decrypt(keys[k], probes.get(p).getFirst());
+                } catch (AbeDecryptionException e) {
+                    decrypted = null;
+                }
+                boolean expected = k >= indexes[p];
+                assertEquals(expected, decrypted != null && decrypted.isEqual(probes.get(p).getSecond()));
+            }
+        }
+        // the probes within the interval share their policy components
+        assertEquals(probes.get(0).getFirst().accessTree, probes.get(1).getFirst().accessTree);
+
+        // by default every probe is a fresh encryption
+        generator = new Lw14ProbeGenerator(pub, "att1 and (att2 or att3)", new int[0], null);
+        List<Pair<CipherText, Element>> fresh = generator.generate(new int[] { 1, 1 });
+        assertFalse(fresh.get(0).getFirst().accessTree.equals(fresh.get(1).getFirst().accessTree));
+        for (Pair<CipherText, Element> probe : fresh) {
+            assertTrue(Lw14.decrypt(keys[1], probe.getFirst()).isEqual(probe.getSecond()));
+        }
+    }
+
+    @Test
+    public void bisectionTraceTest() throws Exception {
+        AbeSecretMasterKey msk = Lw14.setup(15);
+        AbePublicKey pub = msk.getPublicKey();
+        assertEquals(15, pub.getMaxUsers());
+        Element zr = pub.getPairing().getZr().newElement();
+        AbePrivateKey key5 = Lw14.keygen(msk, new Pair<Element, Integer>(zr.duplicate().setToRandom(), 5), new String[]{ "att1", "att2" });
+        AbePrivateKey key9 = Lw14.keygen(msk, new Pair<Element, Integer>(zr.duplicate().setToRandom(), 9), new String[]{ "att1", "att2" });
+
+        assertEquals(Arrays.asList(5), Lw14.trace(pub, "att1 and att2", new Lw14MockBlackBox(new AbePrivateKey[]{ key5 }, pub), 1.0));
+
+        // the mock box decrypts with the first key that satisfies the policy, which decrypts probes up to index 9
+        Lw14Tracer tracer = new Lw14Tracer(pub, "att1 and att2", new Lw14MockBlackBox(new AbePrivateKey[]{ key9, key5 }, pub));
+        assertEquals(Arrays.asList(9), tracer.trace(1.0));
+        assertTrue(tracer.getProbeCount() > 0);
+
+        // a pirate box that decrypts with a random key of adjacent traitors, every gap is below p / 4
+        final List<AbePrivateKey> coalition = new ArrayList<AbePrivateKey>();
+        for (int index = 3; index <= 7; index++) {
+            coalition.add(Lw14.keygen(msk, new Pair<Element, Integer>(zr.duplicate().setToRandom(), index), new String[]{ "att1", "att2" }));
+        }
+        final Random random = new Random(42);
+        Lw14DecryptionBlackBox pirate = new Lw14DecryptionBlackBox() {
+            @Override
+            public Element decrypt(CipherText ct) {
+                try {
+                    return Lw14.decrypt(coalition.get(random.nextInt(coalition.size())), ct);
+                } catch (AbeDecryptionException e) {
+                    return null;
+                }
+            }
+        };
+        assertEquals(Arrays.asList(3, 4, 5, 6, 7), new Lw14Tracer(pub, "att1 and att2", pirate).trace(1.0));
+    }
+}